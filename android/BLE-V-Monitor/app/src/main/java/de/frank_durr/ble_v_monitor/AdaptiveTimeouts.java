@@ -0,0 +1,109 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.Arrays;
+
+/**
+ * Deadlines for the phases of Bluetooth tasks, adapted to the observed latencies.
+ *
+ * For each phase, the latencies of the most recent operations are kept. As soon as enough
+ * latencies have been observed, the deadline of a phase is P95_FACTOR times the 95th
+ * percentile of these latencies, bounded by a minimum deadline (to tolerate jitter) and a
+ * maximum deadline. Before that, a conservative default deadline is used.
+ */
+public class AdaptiveTimeouts {
+
+    public enum Phase {
+        // Connection establishment
+        connect,
+        // Service discovery
+        discovery,
+        // Writing a client characteristic configuration descriptor (subscribe, unsubscribe)
+        descriptorWrite,
+        // Other GATT operations (read, write, MTU exchange)
+        operation,
+        // Gap between two consecutive history samples or frames
+        gap
+    }
+
+    // Default, minimum, and maximum deadlines in milliseconds, indexed by phase.
+    static final long[] DEFAULT_DEADLINES = {10000, 10000, 5000, 5000, 5000};
+    static final long[] MIN_DEADLINES = {2000, 1000, 1000, 1000, 1000};
+    static final long[] MAX_DEADLINES = {20000, 20000, 10000, 10000, 10000};
+
+    // Number of latencies kept per phase, and minimum number required to adapt deadlines.
+    static final int HISTORY_SIZE = 32;
+    static final int MIN_SAMPLES = 5;
+
+    static final int P95_FACTOR = 3;
+
+    private final long[][] latencies = new long[Phase.values().length][HISTORY_SIZE];
+    private final int[] latencyCounts = new int[Phase.values().length];
+    private final int[] nextLatency = new int[Phase.values().length];
+
+    /**
+     * Record the latency of a completed phase.
+     *
+     * @param phase the phase
+     * @param latency latency in milliseconds
+     */
+    synchronized public void recordLatency(Phase phase, long latency) {
+        int i = phase.ordinal();
+        latencies[i][nextLatency[i]] = latency;
+        nextLatency[i] = (nextLatency[i]+1)%HISTORY_SIZE;
+        if (latencyCounts[i] < HISTORY_SIZE) {
+            latencyCounts[i]++;
+        }
+    }
+
+    /**
+     * Get the 95th percentile of the recent latencies of a phase.
+     *
+     * @param phase the phase
+     * @return the latency in milliseconds, or -1 if not enough latencies have been observed
+     */
+    synchronized public long getP95(Phase phase) {
+        int i = phase.ordinal();
+        int count = latencyCounts[i];
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+
+        long[] sorted = Arrays.copyOf(latencies[i], count);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(0.95*count)-1];
+    }
+
+    /**
+     * Get the deadline of a phase.
+     *
+     * @param phase the phase
+     * @return the deadline in milliseconds
+     */
+    synchronized public long getDeadline(Phase phase) {
+        int i = phase.ordinal();
+        long p95 = getP95(phase);
+        if (p95 < 0) {
+            return DEFAULT_DEADLINES[i];
+        }
+
+        return Math.min(MAX_DEADLINES[i], Math.max(MIN_DEADLINES[i], P95_FACTOR*p95));
+    }
+}
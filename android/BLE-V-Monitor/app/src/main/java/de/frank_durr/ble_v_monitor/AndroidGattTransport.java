@@ -0,0 +1,313 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * GATT transport using the Android Bluetooth stack to talk to a real BLE-V-Monitor device.
+ */
+public class AndroidGattTransport implements GattTransport {
+
+    public static final String TAG = AndroidGattTransport.class.getName();
+
+    private final Context context;
+    private final BluetoothDevice device;
+
+    private BluetoothGatt gatt = null;
+    private Callback callback = null;
+
+    // Service and characteristics are looked up once after service discovery and re-used
+    // for all subsequent operations on this link.
+    private BluetoothGattService service = null;
+    private final Map<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<>();
+
+    /**
+     * Handler for GATT callbacks. Forwards the callbacks of the Android Bluetooth stack
+     * to the transport callback.
+     */
+    private class GattCallbackHandler extends BluetoothGattCallback {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            Callback cb = getCallback();
+            if (cb == null) {
+                return;
+            }
+
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.i(TAG, "Bluetooth: connected");
+                cb.onConnectionStateChange(true);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.i(TAG, "Bluetooth: disconnected");
+                cb.onConnectionStateChange(false);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            Callback cb = getCallback();
+            if (cb != null) {
+                cb.onServicesDiscovered(status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic, int status) {
+            Callback cb = getCallback();
+            if (cb != null) {
+                cb.onCharacteristicRead(characteristic.getUuid(), characteristic.getValue(),
+                        status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic, int status) {
+            Callback cb = getCallback();
+            if (cb != null) {
+                cb.onCharacteristicWrite(characteristic.getUuid(),
+                        status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            Callback cb = getCallback();
+            if (cb != null) {
+                cb.onDescriptorWrite(descriptor.getCharacteristic().getUuid(),
+                        status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            Callback cb = getCallback();
+            if (cb != null) {
+                cb.onCharacteristicChanged(characteristic.getUuid(), characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Callback cb = getCallback();
+            if (cb != null) {
+                cb.onMtuChanged(mtu, status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param context the context used to connect to the GATT server
+     * @param device the Bluetooth device hosting the GATT server
+     */
+    public AndroidGattTransport(Context context, BluetoothDevice device) {
+        this.context = context;
+        this.device = device;
+    }
+
+    synchronized private Callback getCallback() {
+        return callback;
+    }
+
+    @Override
+    synchronized public boolean connect(Callback callback) {
+        this.callback = callback;
+        gatt = device.connectGatt(context, false, new GattCallbackHandler());
+        return (gatt != null);
+    }
+
+    @Override
+    synchronized public boolean discoverServices() {
+        return (gatt != null && gatt.discoverServices());
+    }
+
+    @Override
+    synchronized public boolean hasService() {
+        return (getService() != null);
+    }
+
+    @Override
+    synchronized public boolean hasCharacteristic(UUID characteristicUUID) {
+        return (getCharacteristic(characteristicUUID) != null);
+    }
+
+    @Override
+    synchronized public boolean canNotify(UUID characteristicUUID) {
+        BluetoothGattCharacteristic characteristic = getCharacteristic(characteristicUUID);
+        return (characteristic != null && (characteristic.getProperties() &
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0);
+    }
+
+    @Override
+    synchronized public boolean readCharacteristic(UUID characteristicUUID) {
+        BluetoothGattCharacteristic characteristic = getCharacteristic(characteristicUUID);
+        return (characteristic != null && gatt.readCharacteristic(characteristic));
+    }
+
+    @Override
+    synchronized public boolean writeCharacteristic(UUID characteristicUUID, byte[] value) {
+        BluetoothGattCharacteristic characteristic = getCharacteristic(characteristicUUID);
+        if (characteristic == null) {
+            return false;
+        }
+
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        if (!characteristic.setValue(value)) {
+            return false;
+        }
+
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    synchronized public boolean subscribe(UUID characteristicUUID, boolean indications) {
+        byte[] value = indications ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE :
+                BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+
+        return writeClientCharacteristicConfiguration(characteristicUUID, true, value);
+    }
+
+    @Override
+    synchronized public boolean unsubscribe(UUID characteristicUUID) {
+        return writeClientCharacteristicConfiguration(characteristicUUID, false,
+                BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+    }
+
+    /**
+     * Enable or disable notifications/indications locally and write the client
+     * characteristic configuration descriptor of the GATT server accordingly.
+     *
+     * @param characteristicUUID UUID of the characteristic
+     * @param enable true to enable, false to disable notifications/indications
+     * @param value value of the client characteristic configuration descriptor
+     * @return true, if the descriptor write operation has been started
+     */
+    private boolean writeClientCharacteristicConfiguration(UUID characteristicUUID,
+                                                           boolean enable, byte[] value) {
+        BluetoothGattCharacteristic characteristic = getCharacteristic(characteristicUUID);
+        if (characteristic == null) {
+            return false;
+        }
+
+        if (!gatt.setCharacteristicNotification(characteristic, enable)) {
+            return false;
+        }
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+                GattProfile.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
+        if (descriptor == null) {
+            return false;
+        }
+        if (!descriptor.setValue(value)) {
+            return false;
+        }
+
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    synchronized public boolean requestConnectionPriority(ConnectionPriority priority) {
+        if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        int connectionPriority;
+        switch (priority) {
+            case high:
+                connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+                break;
+            case lowPower:
+                connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+                break;
+            default:
+                connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        }
+
+        return gatt.requestConnectionPriority(connectionPriority);
+    }
+
+    @Override
+    synchronized public boolean requestMtu(int mtu) {
+        if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        return gatt.requestMtu(mtu);
+    }
+
+    @Override
+    synchronized public void close() {
+        callback = null;
+        service = null;
+        characteristics.clear();
+        if (gatt != null) {
+            gatt.close();
+            gatt = null;
+            Log.i(TAG, "Bluetooth: diconnecting");
+        }
+    }
+
+    private BluetoothGattService getService() {
+        if (gatt == null) {
+            return null;
+        }
+
+        if (service == null) {
+            service = gatt.getService(GattProfile.SERVICE_UUID);
+        }
+
+        return service;
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic(UUID characteristicUUID) {
+        BluetoothGattCharacteristic characteristic = characteristics.get(characteristicUUID);
+        if (characteristic != null) {
+            return characteristic;
+        }
+
+        BluetoothGattService service = getService();
+        if (service == null) {
+            return null;
+        }
+
+        characteristic = service.getCharacteristic(characteristicUUID);
+        if (characteristic != null) {
+            characteristics.put(characteristicUUID, characteristic);
+        }
+
+        return characteristic;
+    }
+}
@@ -29,14 +29,17 @@ import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.CompoundButton;
 import android.widget.ImageView;
+import android.widget.Switch;
 import android.widget.TextView;
 
-import java.lang.ref.WeakReference;
-
 
 /**
  * Fragment displaying current voltage information from the data model.
+ *
+ * In live mode, the device notifies the fragment of every new voltage sample over a link
+ * that is kept open. The model change bus updates the view at most once per display frame.
  */
 public class CurrentVoltageFragment extends Fragment {
 
@@ -54,28 +57,20 @@ public class CurrentVoltageFragment extends Fragment {
     private TextView textViewBatteryVoltage;
     private TextView textViewChargeStatus;
     private ImageView imageViewChargeStatus;
+    private Switch switchLiveVoltage;
 
-    private MainActivity activity = null;
-
-    // Handler to receive a notification when the data model has been updated.
-    public ModelUpdateNotificationHandler updateNotificationHandler = null;
+    // Version of the data model snapshot in which the shown voltage has been set.
+    private long shownVoltageVersion = -1;
 
-    /**
-     * The update notification handler receives a message when the data model has been
-     * updated, and then triggers a view update.
-     */
-    private static class UpdateNotificationHandler extends ModelUpdateNotificationHandler {
-        private final WeakReference<CurrentVoltageFragment> fragment;
-
-        public UpdateNotificationHandler(CurrentVoltageFragment fragment) {
-            this.fragment = new WeakReference<>(fragment);
-        }
+    private MainActivity activity = null;
 
+    // Subscriber updating the view when the current voltage of the data model has changed.
+    private final ModelChangeBus.Subscriber voltageSubscriber = new ModelChangeBus.Subscriber() {
         @Override
-        public void handleMessage(Message message) {
-            fragment.get().updateView();
+        public void onModelChanged(DataModel.Snapshot snapshot) {
+            updateView();
         }
-    }
+    };
 
     /**
      * Use this factory method to create a new instance of
@@ -102,12 +97,19 @@ public class CurrentVoltageFragment extends Fragment {
      * Update the view according to the data of the data model.
      */
     private void updateView() {
-        if (DataModel.theModel.getCurrentVoltage() == DataModel.INVALID_VOLTAGE) {
+        DataModel.Snapshot model = DataModel.theModel.getSnapshot();
+        if (model.getCurrentVoltageVersion() == shownVoltageVersion) {
+            // Voltage has not changed since the last update.
+            return;
+        }
+        shownVoltageVersion = model.getCurrentVoltageVersion();
+
+        if (model.getCurrentVoltage() == DataModel.INVALID_VOLTAGE) {
             textViewBatteryVoltage.setText(R.string.unknown);
             textViewChargeStatus.setText(R.string.unknown);
             imageViewChargeStatus.setImageResource(R.drawable.ic_battery_unknown);
         } else {
-            double voltage = (double) (DataModel.theModel.getCurrentVoltage())/1000.0;
+            double voltage = (double) (model.getCurrentVoltage())/1000.0;
 
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
             float voltageOffset = prefs.getFloat("pref_voltage_offset", 0.0f);
@@ -144,7 +146,7 @@ public class CurrentVoltageFragment extends Fragment {
      * All interaction with the GATT server is done by the main activity, thus, we need
      * to send a message to the main activity to trigger the update. After the data model
      * has been updated, this fragment will receive a notification via the
-     * update notification handler.
+     * model change bus.
      */
     private void triggerVoltageUpdate() {
         if (activity.updateTriggerHandler != null) {
@@ -154,6 +156,21 @@ public class CurrentVoltageFragment extends Fragment {
         }
     }
 
+    /**
+     * Start or stop live voltage updates. Like voltage updates, this request is handled by
+     * the main activity.
+     *
+     * @param live true to start live updates; false to stop them
+     */
+    private void triggerLiveVoltage(boolean live) {
+        if (activity != null && activity.updateTriggerHandler != null) {
+            Message msg = activity.updateTriggerHandler.obtainMessage();
+            msg.arg1 = (live ? MainActivity.START_LIVE_VOLTAGE :
+                    MainActivity.STOP_LIVE_VOLTAGE);
+            msg.sendToTarget();
+        }
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -171,13 +188,42 @@ public class CurrentVoltageFragment extends Fragment {
         textViewBatteryVoltage = (TextView) v.findViewById(R.id.textview_value_batteryvoltage);
         textViewChargeStatus = (TextView) v.findViewById(R.id.textview_value_chargestatus);
         imageViewChargeStatus = (ImageView) v.findViewById(R.id.imageView_chargestatus);
+        shownVoltageVersion = -1;
         updateView();
 
-        updateNotificationHandler = new UpdateNotificationHandler(this);
+        switchLiveVoltage = (Switch) v.findViewById(R.id.switch_live_voltage);
+        switchLiveVoltage.setOnCheckedChangeListener(
+                new CompoundButton.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged(CompoundButton button, boolean isChecked) {
+                        triggerLiveVoltage(isChecked);
+                    }
+                });
 
         return v;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        // The voltage offset might have been changed in the settings.
+        shownVoltageVersion = -1;
+        ModelChangeBus.theBus.subscribeCurrentVoltage(voltageSubscriber);
+
+        // The link is closed while the app is in the background. Restart live updates.
+        if (switchLiveVoltage != null && switchLiveVoltage.isChecked()) {
+            triggerLiveVoltage(true);
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        ModelChangeBus.theBus.unsubscribe(voltageSubscriber);
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -18,10 +18,24 @@
 
 package de.frank_durr.ble_v_monitor;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * The central data model storing all data of the remote GATT server.
+ * The data model storing all data of the remote GATT server.
+ *
+ * The app shows the data of the selected device in theModel. Devices synced in the
+ * background have their own model instances (cf. MonitoredDevice).
+ *
+ * The data is published as immutable snapshots through an atomic reference. Writers (e.g.,
+ * Bluetooth callbacks) replace the snapshot; readers (e.g., the UI thread) get the current
+ * snapshot without locking and always see a consistent state. Every snapshot has a version,
+ * and each part of the data records the version in which it has been changed last. Thus,
+ * readers can skip work if the part they show has not changed.
+ *
+ * Change listeners are called on the writer thread after every change. Views should not
+ * listen directly but subscribe to the ModelChangeBus, which coalesces changes.
  */
 public class DataModel {
 
@@ -29,43 +43,322 @@ public class DataModel {
 
     public static final DataModel theModel = new DataModel();
 
-    private int currentVoltage = INVALID_VOLTAGE;
-    private List<Integer> minutelyHistory = null;
-    private List<Integer> hourlyHistory = null;
-    private List<Integer> dailyHistory = null;
+    /**
+     * Listener called whenever a new snapshot has been published.
+     */
+    public interface ChangeListener {
+        /**
+         * Called on the thread that changed the model.
+         *
+         * @param snapshot the new snapshot
+         */
+        void onModelChanged(Snapshot snapshot);
+    }
+
+    /**
+     * An immutable state of the data model. Histories must not be modified after they have
+     * been published.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final int currentVoltage;
+        private final long currentVoltageVersion;
+        private final HistorySeries[] histories;
+        private final long[] historyVersions;
+        private final long[] historyTimes;
+        private final long[][] historySampleTimes;
+        private final HistorySeries[] receivedHistories;
+        private final long[] receivedTimes;
+        private final int historyProgress;
+        private final long historyProgressVersion;
+
+        private Snapshot(long version, int currentVoltage, long currentVoltageVersion,
+                         HistorySeries[] histories, long[] historyVersions,
+                         long[] historyTimes, long[][] historySampleTimes,
+                         HistorySeries[] receivedHistories, long[] receivedTimes,
+                         int historyProgress, long historyProgressVersion) {
+            this.version = version;
+            this.currentVoltage = currentVoltage;
+            this.currentVoltageVersion = currentVoltageVersion;
+            this.histories = histories;
+            this.historyVersions = historyVersions;
+            this.historyTimes = historyTimes;
+            this.historySampleTimes = historySampleTimes;
+            this.receivedHistories = receivedHistories;
+            this.receivedTimes = receivedTimes;
+            this.historyProgress = historyProgress;
+            this.historyProgressVersion = historyProgressVersion;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int getCurrentVoltage() {
+            return currentVoltage;
+        }
+
+        /**
+         * Get the version of the snapshot in which the current voltage has been set.
+         *
+         * @return the version
+         */
+        public long getCurrentVoltageVersion() {
+            return currentVoltageVersion;
+        }
+
+        /**
+         * Get a history.
+         *
+         * @param historyType the history
+         * @return the history, or null if the history has not been retrieved yet
+         */
+        public HistorySeries getHistory(HistoryType historyType) {
+            return histories[historyType.ordinal()];
+        }
+
+        /**
+         * Get the timestamp of the newest sample of a history.
+         *
+         * @param historyType the history
+         * @return the timestamp in milliseconds since the epoch, or -1 if not known
+         */
+        public long getHistoryTime(HistoryType historyType) {
+            return historyTimes[historyType.ordinal()];
+        }
+
+        /**
+         * Get the timestamps of the samples of a history. Samples without timestamps are
+         * spaced by the sample interval of the history (cf. getHistoryTime()).
+         *
+         * @param historyType the history
+         * @return the timestamps in milliseconds since the epoch from the oldest to the
+         * newest sample, or null if the samples have no timestamps
+         */
+        public long[] getHistorySampleTimes(HistoryType historyType) {
+            return historySampleTimes[historyType.ordinal()];
+        }
+
+        /**
+         * Get the samples of a history received so far while the history is being
+         * downloaded. The received samples are newer than the samples of the history.
+         *
+         * @param historyType the history
+         * @return the samples in chronological order, or null if none
+         */
+        public HistorySeries getReceivedHistory(HistoryType historyType) {
+            return receivedHistories[historyType.ordinal()];
+        }
+
+        /**
+         * Get the timestamp of the newest received sample of a history.
+         *
+         * @param historyType the history
+         * @return the timestamp in milliseconds since the epoch, or -1 if no samples have
+         * been received
+         */
+        public long getReceivedHistoryTime(HistoryType historyType) {
+            return receivedTimes[historyType.ordinal()];
+        }
+
+        /**
+         * Get the version of the snapshot in which a history or its received samples have
+         * been set.
+         *
+         * @param historyType the history
+         * @return the version
+         */
+        public long getHistoryVersion(HistoryType historyType) {
+            return historyVersions[historyType.ordinal()];
+        }
+
+        /**
+         * Get the number of values of the history being downloaded.
+         *
+         * @return the number of values received so far
+         */
+        public int getHistoryProgress() {
+            return historyProgress;
+        }
+
+        /**
+         * Get the version of the snapshot in which the history progress has been set.
+         *
+         * @return the version
+         */
+        public long getHistoryProgressVersion() {
+            return historyProgressVersion;
+        }
+
+        private Snapshot withCurrentVoltage(int voltage) {
+            return new Snapshot(version+1, voltage, version+1, histories, historyVersions,
+                    historyTimes, historySampleTimes, receivedHistories, receivedTimes,
+                    historyProgress, historyProgressVersion);
+        }
+
+        private Snapshot withHistory(HistoryType historyType, HistorySeries history,
+                                     long newestTime, long[] sampleTimes) {
+            HistorySeries[] newHistories = histories.clone();
+            long[] newHistoryVersions = historyVersions.clone();
+            long[] newHistoryTimes = historyTimes.clone();
+            long[][] newHistorySampleTimes = historySampleTimes.clone();
+            newHistories[historyType.ordinal()] = history;
+            newHistoryVersions[historyType.ordinal()] = version+1;
+            newHistoryTimes[historyType.ordinal()] = newestTime;
+            newHistorySampleTimes[historyType.ordinal()] = sampleTimes;
+            // The received samples are included in the new history.
+            HistorySeries[] newReceivedHistories = receivedHistories.clone();
+            long[] newReceivedTimes = receivedTimes.clone();
+            newReceivedHistories[historyType.ordinal()] = null;
+            newReceivedTimes[historyType.ordinal()] = -1;
+            return new Snapshot(version+1, currentVoltage, currentVoltageVersion, newHistories,
+                    newHistoryVersions, newHistoryTimes, newHistorySampleTimes,
+                    newReceivedHistories, newReceivedTimes, historyProgress,
+                    historyProgressVersion);
+        }
+
+        private Snapshot withReceivedHistory(HistoryType historyType, HistorySeries received,
+                                             long newestTime) {
+            long[] newHistoryVersions = historyVersions.clone();
+            HistorySeries[] newReceivedHistories = receivedHistories.clone();
+            long[] newReceivedTimes = receivedTimes.clone();
+            newHistoryVersions[historyType.ordinal()] = version+1;
+            newReceivedHistories[historyType.ordinal()] = received;
+            newReceivedTimes[historyType.ordinal()] = newestTime;
+            return new Snapshot(version+1, currentVoltage, currentVoltageVersion, histories,
+                    newHistoryVersions, historyTimes, historySampleTimes, newReceivedHistories,
+                    newReceivedTimes, historyProgress, historyProgressVersion);
+        }
+
+        private Snapshot withHistoryProgress(int valueCount) {
+            return new Snapshot(version+1, currentVoltage, currentVoltageVersion, histories,
+                    historyVersions, historyTimes, historySampleTimes, receivedHistories,
+                    receivedTimes, valueCount, version+1);
+        }
+    }
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(
+            new Snapshot(0, INVALID_VOLTAGE, 0, new HistorySeries[HistoryType.values().length],
+                    new long[HistoryType.values().length], newUnknownTimes(),
+                    new long[HistoryType.values().length][],
+                    new HistorySeries[HistoryType.values().length], newUnknownTimes(), 0, 0));
+
+    private final CopyOnWriteArrayList<ChangeListener> listeners =
+            new CopyOnWriteArrayList<>();
 
     public DataModel() {
     }
 
-    public int getCurrentVoltage() {
-        return currentVoltage;
+    static private long[] newUnknownTimes() {
+        long[] times = new long[HistoryType.values().length];
+        Arrays.fill(times, -1);
+        return times;
+    }
+
+    /**
+     * Get the current state of the data model.
+     *
+     * @return the current snapshot
+     */
+    public Snapshot getSnapshot() {
+        return snapshot.get();
     }
 
-    public List<Integer> getMinutelyHistory() {
-        return minutelyHistory;
+    public void addChangeListener(ChangeListener listener) {
+        listeners.addIfAbsent(listener);
     }
 
-    public List<Integer> getHourlyHistory() {
-        return hourlyHistory;
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
     }
 
-    public List<Integer> getDailyHistory() {
-        return dailyHistory;
+    private void notifyListeners(Snapshot newSnapshot) {
+        for (ChangeListener listener : listeners) {
+            listener.onModelChanged(newSnapshot);
+        }
     }
 
     public void setCurrentVoltage(int currentVoltage) {
-        this.currentVoltage = currentVoltage;
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = snapshot.get();
+            next = current.withCurrentVoltage(currentVoltage);
+        } while (!snapshot.compareAndSet(current, next));
+        notifyListeners(next);
+    }
+
+    /**
+     * Set a history without timestamps of its samples, which are spaced by the sample
+     * interval. The history must not be modified afterwards.
+     *
+     * @param historyType the history
+     * @param history the history
+     * @param newestTime timestamp of the newest sample in milliseconds since the epoch,
+     *                   or -1 if not known
+     */
+    public void setHistory(HistoryType historyType, HistorySeries history, long newestTime) {
+        setHistory(historyType, history, newestTime, null);
+    }
+
+    /**
+     * Set a history with the timestamps of its samples. Neither the history nor the
+     * timestamps must be modified afterwards.
+     *
+     * @param historyType the history
+     * @param history the history
+     * @param sampleTimes timestamps of the samples in milliseconds since the epoch from the
+     *                    oldest to the newest sample
+     */
+    public void setHistory(HistoryType historyType, HistorySeries history, long[] sampleTimes) {
+        long newestTime = (sampleTimes.length > 0 ? sampleTimes[sampleTimes.length-1] : -1);
+        setHistory(historyType, history, newestTime, sampleTimes);
     }
 
-    public void setMinutelyHistory(List<Integer> history) {
-        minutelyHistory = history;
+    private void setHistory(HistoryType historyType, HistorySeries history, long newestTime,
+                            long[] sampleTimes) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = snapshot.get();
+            next = current.withHistory(historyType, history, newestTime, sampleTimes);
+        } while (!snapshot.compareAndSet(current, next));
+        notifyListeners(next);
     }
 
-    public void setHourlyHistory(List<Integer> history) {
-        hourlyHistory = history;
+    /**
+     * Set the samples of a history received so far while the history is being downloaded.
+     * The samples must be newer than the samples of the history, and must not be modified
+     * afterwards. Setting the history discards the received samples.
+     *
+     * @param historyType the history
+     * @param received the received samples in chronological order, or null if none
+     * @param newestTime timestamp of the newest received sample in milliseconds since the
+     *                   epoch
+     */
+    public void setReceivedHistory(HistoryType historyType, HistorySeries received,
+                                   long newestTime) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = snapshot.get();
+            next = current.withReceivedHistory(historyType, received, newestTime);
+        } while (!snapshot.compareAndSet(current, next));
+        notifyListeners(next);
     }
 
-    public void setDailyHistory(List<Integer> history) {
-        dailyHistory = history;
+    /**
+     * Set the number of values of the history being downloaded.
+     *
+     * @param valueCount the number of values received so far
+     */
+    public void setHistoryProgress(int valueCount) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = snapshot.get();
+            next = current.withHistoryProgress(valueCount);
+        } while (!snapshot.compareAndSet(current, next));
+        notifyListeners(next);
     }
 }
@@ -0,0 +1,61 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the devices monitored by the app, by device address.
+ */
+public class DeviceRegistry {
+
+    private final Map<String, MonitoredDevice> devices = new LinkedHashMap<>();
+
+    /**
+     * Register a device. Nothing happens if the device has already been registered.
+     *
+     * @param address address of the device
+     * @return the registered device
+     */
+    synchronized public MonitoredDevice add(String address) {
+        MonitoredDevice device = devices.get(address);
+        if (device == null) {
+            device = new MonitoredDevice(address);
+            devices.put(address, device);
+        }
+
+        return device;
+    }
+
+    synchronized public MonitoredDevice get(String address) {
+        return devices.get(address);
+    }
+
+    /**
+     * Get all registered devices in the order of registration.
+     *
+     * @return the devices
+     */
+    synchronized public List<MonitoredDevice> getDevices() {
+        return new ArrayList<>(devices.values());
+    }
+}
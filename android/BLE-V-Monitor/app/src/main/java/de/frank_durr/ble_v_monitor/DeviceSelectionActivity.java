@@ -23,6 +23,11 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -31,6 +36,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.ParcelUuid;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.Toolbar;
@@ -43,14 +49,23 @@ import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Activity for selecting a Bluetooth device supporting the required BLE-V-Monitor GATT service.
+ *
+ * Only devices advertising the BLE-V-Monitor service are reported by the scan. Since
+ * Android 5.0, the service UUID is passed as scan filter (offloaded to the controller if
+ * supported), and results are batched by the controller if supported. Thus, advertisements
+ * of other devices do not wake up the app. Before Android 5.0, the scan is not filtered
+ * since the platform does not match 128 bit service UUIDs, and the scan records are
+ * checked by the app. Discovered devices are de-duplicated by address and added to the
+ * list in coalesced updates on the UI thread.
  */
-public class DeviceSelectionActivity extends android.support.v7.app.AppCompatActivity implements
-        BluetoothAdapter.LeScanCallback {
+public class DeviceSelectionActivity extends android.support.v7.app.AppCompatActivity {
 
     public final static String TAG = DeviceSelectionActivity.class.getName();
 
@@ -63,14 +78,33 @@ public class DeviceSelectionActivity extends android.support.v7.app.AppCompatAct
 
     public static final int SELECTED_NONE = -1;
 
+    // Delay in milliseconds of batched scan results.
+    static private final long SCAN_REPORT_DELAY = 1000;
+
+    // Delay in milliseconds of list updates, so devices discovered at the same time are
+    // added in one update.
+    static private final long LIST_UPDATE_DELAY = 250;
+
     private static final int PERMISSION_REQUEST_COARSE_LOCATION = 1;
 
     private BluetoothAdapter bluetoothAdapter = null;
 
     private List<BLEDevice> devices;
 
+    // Devices discovered by the current scan by address, and discovered devices not added to
+    // the list yet (guarded by discoveredDevices; scan callbacks can be called on any
+    // thread).
+    private final Map<String, BLEDevice> discoveredDevices = new HashMap<>();
+    private final List<BLEDevice> pendingDevices = new ArrayList<>();
+    private boolean listUpdatePosted = false;
+
+    // Scanner filtering by service UUID (Android 5.0 and later; null on older versions).
+    private FilteredScanner filteredScanner = null;
+
     private Handler timeoutHandler;
 
+    private final ScanTimeoutLogic timeoutLogic = new ScanTimeoutLogic();
+
     private boolean isScanning = false;
 
     private ListView deviceListView;
@@ -111,6 +145,90 @@ public class DeviceSelectionActivity extends android.support.v7.app.AppCompatAct
         }
     }
 
+    /**
+     * Logic to add pending discovered devices to the list.
+     */
+    private final Runnable listUpdateLogic = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (discoveredDevices) {
+                listUpdatePosted = false;
+                devices.addAll(pendingDevices);
+                pendingDevices.clear();
+            }
+            deviceListAdapter.notifyDataSetChanged();
+        }
+    };
+
+    /**
+     * Callback of scans on Android versions before 5.0, which filters by service UUID in the
+     * scan records.
+     */
+    private final BluetoothAdapter.LeScanCallback leScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if (GattProfile.advertisesService(scanRecord)) {
+                onDeviceDiscovered(device);
+            }
+        }
+    };
+
+    /**
+     * Scanner using scan filters and batched scan results (Android 5.0 and later). Only
+     * instantiated on these versions, so its classes are not loaded on older versions.
+     */
+    private class FilteredScanner extends ScanCallback {
+        private BluetoothLeScanner scanner = null;
+
+        void start() {
+            scanner = bluetoothAdapter.getBluetoothLeScanner();
+            List<ScanFilter> filters = new ArrayList<>();
+            filters.add(new ScanFilter.Builder().setServiceUuid(
+                    new ParcelUuid(GattProfile.SERVICE_UUID)).build());
+
+            // The scan is limited by the scan timeout, so the user does not need to wait
+            // longer than necessary.
+            ScanSettings.Builder settings = new ScanSettings.Builder();
+            settings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+            if (bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                settings.setReportDelay(SCAN_REPORT_DELAY);
+            }
+            scanner.startScan(filters, settings.build(), this);
+        }
+
+        void stop() {
+            if (scanner == null) {
+                return;
+            }
+            scanner.stopScan(this);
+            scanner = null;
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onDeviceDiscovered(result.getDevice());
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onDeviceDiscovered(result.getDevice());
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Scan failed: " + errorCode);
+            timeoutHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopScanning();
+                }
+            });
+        }
+    }
+
     private class ItemClickListener implements AdapterView.OnItemClickListener {
         @Override
         public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -135,8 +253,11 @@ public class DeviceSelectionActivity extends android.support.v7.app.AppCompatAct
         toolbar.setTitle(appName);
         setSupportActionBar(toolbar);
 
+        // The handler is running on the UI thread.
+        timeoutHandler = new Handler(Looper.getMainLooper());
+
         selected = SELECTED_NONE;
-        devices = new LinkedList<>();
+        devices = new ArrayList<>();
         deviceListAdapter = new ArrayAdapter<>(this, R.layout.textview_deviceselection,
                 devices);
         deviceListView = (ListView) findViewById(R.id.listView_deviceselection);
@@ -208,23 +329,29 @@ public class DeviceSelectionActivity extends android.support.v7.app.AppCompatAct
         }
     }
 
-    @Override
-    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-        Log.i(TAG, "Discovered device: " + device.getName() + " " + device.getAddress());
-
-        // Check, whether we have already seen this device
-        for (BLEDevice d : devices) {
-            if (d.device.hashCode() == device.hashCode()) {
+    /**
+     * Called by scan callbacks for every advertisement of a device with the BLE-V-Monitor
+     * service. New devices are added to the list with the next list update.
+     *
+     * @param device the device
+     */
+    private void onDeviceDiscovered(BluetoothDevice device) {
+        synchronized (discoveredDevices) {
+            if (discoveredDevices.containsKey(device.getAddress())) {
                 // This device, we know already
                 return;
             }
-        }
-
-        // Device is new
 
-        BLEDevice newDevice = new BLEDevice(device);
-        devices.add(newDevice);
-        deviceListAdapter.notifyDataSetChanged();
+            // Device is new
+            Log.i(TAG, "Discovered device: " + device.getName() + " " + device.getAddress());
+            BLEDevice newDevice = new BLEDevice(device);
+            discoveredDevices.put(device.getAddress(), newDevice);
+            pendingDevices.add(newDevice);
+            if (!listUpdatePosted) {
+                listUpdatePosted = true;
+                timeoutHandler.postDelayed(listUpdateLogic, LIST_UPDATE_DELAY);
+            }
+        }
     }
 
     @Override
@@ -254,7 +381,12 @@ public class DeviceSelectionActivity extends android.support.v7.app.AppCompatAct
 
         textviewScanstatus.setText(getString(R.string.notscanning));
 
-        bluetoothAdapter.stopLeScan(this);
+        timeoutHandler.removeCallbacks(timeoutLogic);
+        if (filteredScanner != null) {
+            filteredScanner.stop();
+        } else {
+            bluetoothAdapter.stopLeScan(leScanCallback);
+        }
         isScanning = false;
     }
 
@@ -302,13 +434,21 @@ public class DeviceSelectionActivity extends android.support.v7.app.AppCompatAct
         devices.clear();
         deviceListAdapter.notifyDataSetChanged();
 
+        synchronized (discoveredDevices) {
+            discoveredDevices.clear();
+            pendingDevices.clear();
+        }
         isScanning = true;
-        bluetoothAdapter.startLeScan(this);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (filteredScanner == null) {
+                filteredScanner = new FilteredScanner();
+            }
+            filteredScanner.start();
+        } else {
+            bluetoothAdapter.startLeScan(leScanCallback);
+        }
 
         // Stop scanning after timeout.
-        // The handler is running on the UI thread.
-        timeoutHandler = new Handler(Looper.getMainLooper());
-        ScanTimeoutLogic timeoutLogic = new ScanTimeoutLogic();
         timeoutHandler.postDelayed(timeoutLogic, SCAN_TIMEOUT);
     }
 
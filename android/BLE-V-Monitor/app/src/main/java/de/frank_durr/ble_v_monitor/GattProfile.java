@@ -0,0 +1,290 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.UUID;
+
+/**
+ * Definition of the BLE-V-Monitor GATT service as implemented by the device firmware.
+ *
+ * This class does not depend on the Android framework, so it can be shared by the Android
+ * GATT transport and the simulated peripheral.
+ */
+public final class GattProfile {
+
+    // Standard base UUID (used to extend standard 16 bit UUIDs)
+    public static final long STANDARD_BASE_UUID_MSB = 0x0000000000001000L;
+    public static final long STANDARD_BASE_UUID_LSB = 0x800000805f9b34fbL;
+    // 16 bit id of client characteristic configuration descriptor
+    public static final short CLIENT_CHARACTERISTIC_CONFIGURATION_ID = 0x2902;
+
+    // Base UUID of BLE-V-Monitor Service and its characteristics:
+    //   0xde0eXXXXf0af4d389a1a33e88519d3b2L
+    // XXXX will be replaced by the 16 bit ID of the service or characteristic defined below.
+    public static final long BASE_UUID_MSB = 0xde0e0000f0af4d38L;
+    public static final long BASE_UUID_LSB = 0x9a1a33e88519d3b2L;
+    // 16 bit ids of BLE-V-Monitor service and characteristics
+    public static final short SERVICE_ID = 0x0001;
+    public static final short CHARACTERISTIC_ID_CURRENT_VOLTAGE = 0x0100;
+    public static final short CHARACTERISTIC_ID_MINUTELY_HISTORY = 0x0200;
+    public static final short CHARACTERISTIC_ID_HOURLY_HISTORY = 0x0300;
+    public static final short CHARACTERISTIC_ID_DAILY_HISTORY = 0x0400;
+    public static final short CHARACTERISTIC_ID_HISTORY_DATA = 0x0500;
+    public static final short CHARACTERISTIC_ID_HISTORY_CONTROL_POINT = 0x0600;
+
+    public static final UUID SERVICE_UUID = getUUID(BASE_UUID_MSB, BASE_UUID_LSB, SERVICE_ID);
+    public static final UUID CURRENT_VOLTAGE_UUID =
+            getUUID(BASE_UUID_MSB, BASE_UUID_LSB, CHARACTERISTIC_ID_CURRENT_VOLTAGE);
+    public static final UUID MINUTELY_HISTORY_UUID =
+            getUUID(BASE_UUID_MSB, BASE_UUID_LSB, CHARACTERISTIC_ID_MINUTELY_HISTORY);
+    public static final UUID HOURLY_HISTORY_UUID =
+            getUUID(BASE_UUID_MSB, BASE_UUID_LSB, CHARACTERISTIC_ID_HOURLY_HISTORY);
+    public static final UUID DAILY_HISTORY_UUID =
+            getUUID(BASE_UUID_MSB, BASE_UUID_LSB, CHARACTERISTIC_ID_DAILY_HISTORY);
+    public static final UUID HISTORY_DATA_UUID =
+            getUUID(BASE_UUID_MSB, BASE_UUID_LSB, CHARACTERISTIC_ID_HISTORY_DATA);
+    public static final UUID HISTORY_CONTROL_POINT_UUID =
+            getUUID(BASE_UUID_MSB, BASE_UUID_LSB, CHARACTERISTIC_ID_HISTORY_CONTROL_POINT);
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID =
+            getUUID(STANDARD_BASE_UUID_MSB, STANDARD_BASE_UUID_LSB,
+                    CLIENT_CHARACTERISTIC_CONFIGURATION_ID);
+
+    // Default ATT MTU of a link, and the MTU requested for bulk transfers. A frame of the
+    // history data characteristic always fits into the default MTU (MTU-3 bytes payload).
+    public static final int DEFAULT_MTU = 23;
+    public static final int PREFERRED_MTU = 247;
+
+    // Size of the history ring buffers of the device.
+    public static final int HISTORY_RING_SIZE = 128;
+
+    // Highest sequence number (seq. numbers are uint32 values on the device).
+    public static final long MAX_SEQ_NO = 0xffffffffL;
+
+    // Value sent by the device to signal the end of a history.
+    public static final int END_OF_HISTORY = -1;
+
+    // Opcodes of the history control point:
+    // - Start a framed transfer of a complete history: [opcode, history]
+    // - Start a framed transfer of a range of a history (e.g., samples lost during a
+    //   transfer through notifications): [opcode, history, fromSeqNo (uint32),
+    //   toSeqNo (uint32)]. Samples are sent backwards from toSeqNo to fromSeqNo.
+    public static final byte HISTORY_CP_OPCODE_START = 0x01;
+    public static final byte HISTORY_CP_OPCODE_RANGE = 0x02;
+
+    // Types of the advertising data structures listing 128 bit service UUIDs (incomplete and
+    // complete list).
+    static private final int AD_TYPE_INCOMPLETE_UUIDS_128 = 0x06;
+    static private final int AD_TYPE_COMPLETE_UUIDS_128 = 0x07;
+
+    private GattProfile() {
+    }
+
+    /**
+     * Creates a 128 bit UUID of a service or characteristic from a 128 base UUID and 16 bit
+     * service/characteristic id.
+     *
+     * Example: Given
+     * - 128 bit base UUID 550eXXXX-e29b-11d4-a716-446655440000
+     * - 16 bit service ID: 0x1234
+     * The resulting UUID is generated by replacing XXXX by the 16 bit id of the service:
+     * - UUID: 550e1234-e29b-11d4-a716-446655440000
+     *
+     * @param baseMSB most significant bits of the base UUID
+     * @param baseLSB least significant bits of the base UUID
+     * @param id 16 bit id of the service or characteristic
+     * @return UUID of the service of characteristic
+     */
+    public static UUID getUUID(long baseMSB, long baseLSB, short id) {
+        long msb = baseMSB & 0xffff0000ffffffffL;
+        msb |= ((long) id)<<32;
+
+        return new UUID(msb, baseLSB);
+    }
+
+    /**
+     * Get the UUID of the characteristic providing the given history.
+     *
+     * @param historyType the history type
+     * @return UUID of the history characteristic
+     */
+    public static UUID getHistoryUUID(HistoryType historyType) {
+        switch (historyType) {
+            case minutely:
+                return MINUTELY_HISTORY_UUID;
+            case hourly:
+                return HOURLY_HISTORY_UUID;
+            default:
+                return DAILY_HISTORY_UUID;
+        }
+    }
+
+    /**
+     * Check whether advertising data (e.g., the scan record of a scan result) lists the
+     * BLE-V-Monitor service.
+     *
+     * @param advertisingData the advertising data structures [length, type, data]
+     * @return true if one of the lists of 128 bit service UUIDs contains the service
+     */
+    public static boolean advertisesService(byte[] advertisingData) {
+        if (advertisingData == null) {
+            return false;
+        }
+
+        int i = 0;
+        while (i+1 < advertisingData.length) {
+            int length = advertisingData[i] & 0xff;
+            if (length == 0 || i+1+length > advertisingData.length) {
+                // End of the significant part, or malformed.
+                break;
+            }
+            int type = advertisingData[i+1] & 0xff;
+            if (type == AD_TYPE_INCOMPLETE_UUIDS_128 || type == AD_TYPE_COMPLETE_UUIDS_128) {
+                for (int j = i+2; j+16 <= i+1+length; j += 16) {
+                    if (getUUIDLittleEndian(advertisingData, j).equals(SERVICE_UUID)) {
+                        return true;
+                    }
+                }
+            }
+            i += 1+length;
+        }
+
+        return false;
+    }
+
+    /**
+     * Get a 128 bit UUID sent least significant byte first.
+     */
+    static private UUID getUUIDLittleEndian(byte[] data, int offset) {
+        long lsb = 0;
+        long msb = 0;
+        for (int k = 7; k >= 0; k--) {
+            lsb = (lsb<<8) | (data[offset+k] & 0xff);
+            msb = (msb<<8) | (data[offset+8+k] & 0xff);
+        }
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * Get the nominal interval between two samples of a history.
+     *
+     * @param historyType the history type
+     * @return the interval in milliseconds
+     */
+    public static long getSampleInterval(HistoryType historyType) {
+        switch (historyType) {
+            case minutely:
+                return 60*1000L;
+            case hourly:
+                return 60*60*1000L;
+            default:
+                return 24*60*60*1000L;
+        }
+    }
+
+    /**
+     * Get the history selected by a history selector of the control point or a history frame.
+     *
+     * @param selector the history selector
+     * @return the history type, or null if the selector is invalid
+     */
+    public static HistoryType getHistoryType(int selector) {
+        HistoryType[] historyTypes = HistoryType.values();
+        if (selector < 0 || selector >= historyTypes.length) {
+            return null;
+        }
+
+        return historyTypes[selector];
+    }
+
+    /**
+     * Encode the control point command starting the framed transfer of a history.
+     *
+     * @param historyType the history to be transferred
+     * @return the value to be written to the history control point
+     */
+    public static byte[] encodeStartHistoryCommand(HistoryType historyType) {
+        return new byte[] {HISTORY_CP_OPCODE_START, (byte) historyType.ordinal()};
+    }
+
+    /**
+     * Encode the control point command starting the framed transfer of a range of a history.
+     *
+     * @param historyType the history to be transferred
+     * @param fromSeqNo sequence number of the oldest sample to be transferred
+     * @param toSeqNo sequence number of the newest sample to be transferred
+     * @return the value to be written to the history control point
+     */
+    public static byte[] encodeRangeHistoryCommand(HistoryType historyType, long fromSeqNo,
+                                                   long toSeqNo) {
+        byte[] command = new byte[10];
+        command[0] = HISTORY_CP_OPCODE_RANGE;
+        command[1] = (byte) historyType.ordinal();
+        encodeUint32(fromSeqNo, command, 2);
+        encodeUint32(toSeqNo, command, 6);
+
+        return command;
+    }
+
+    /**
+     * Decode a signed 16 bit value sent by the device in little endian byte order.
+     *
+     * @param value the characteristic value
+     * @param offset offset of the first byte of the value
+     * @return the decoded value
+     */
+    public static int decodeSint16(byte[] value, int offset) {
+        return (short) ((value[offset] & 0xff) | (value[offset+1]<<8));
+    }
+
+    /**
+     * Encode a signed 16 bit value in little endian byte order as done by the device.
+     *
+     * @param value the value to be encoded
+     * @return the encoded value
+     */
+    public static byte[] encodeSint16(int value) {
+        return new byte[] {(byte) value, (byte) (value>>8)};
+    }
+
+    /**
+     * Decode an unsigned 32 bit value sent by the device in little endian byte order.
+     *
+     * @param value the characteristic value
+     * @param offset offset of the first byte of the value
+     * @return the decoded value
+     */
+    public static long decodeUint32(byte[] value, int offset) {
+        return ((value[offset] & 0xffL) | ((value[offset+1] & 0xffL)<<8) |
+                ((value[offset+2] & 0xffL)<<16) | ((value[offset+3] & 0xffL)<<24));
+    }
+
+    /**
+     * Encode an unsigned 32 bit value in little endian byte order as done by the device.
+     *
+     * @param value the value to be encoded
+     * @param buffer buffer receiving the encoded value
+     * @param offset offset of the first byte of the value
+     */
+    public static void encodeUint32(long value, byte[] buffer, int offset) {
+        buffer[offset] = (byte) value;
+        buffer[offset+1] = (byte) (value>>8);
+        buffer[offset+2] = (byte) (value>>16);
+        buffer[offset+3] = (byte) (value>>24);
+    }
+}
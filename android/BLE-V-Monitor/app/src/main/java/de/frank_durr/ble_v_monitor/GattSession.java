@@ -0,0 +1,462 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A GATT session keeping the link to a BLE-V-Monitor device open across several tasks.
+ *
+ * Connection establishment and service discovery are only performed when the first task
+ * acquires the session. When the last task releases the session, the link is kept open
+ * for an idle timeout, so a subsequent task can re-use the link (and the discovered
+ * services) right away.
+ *
+ * Connection establishment and service discovery are supervised by the deadlines of the
+ * adaptive timeouts. If a deadline expires, the link is closed and the client is notified
+ * of the failure.
+ *
+ * At most one client can use the session at a time. Client callbacks are never invoked
+ * while holding the lock of the session.
+ */
+public class GattSession implements GattTransport.Callback {
+
+    /**
+     * A client of the session (usually a sync engine).
+     */
+    public interface Client {
+        /**
+         * The session is connected and services have been discovered.
+         *
+         * @param transport the transport to be used for GATT operations
+         */
+        void onSessionReady(GattTransport transport);
+
+        /**
+         * The session has been lost, e.g., because the link broke down.
+         *
+         * @param failure reason of the failure
+         */
+        void onSessionFailed(SyncEngine.Failure failure);
+
+        void onCharacteristicRead(UUID characteristicUUID, byte[] value, boolean success);
+
+        void onCharacteristicWrite(UUID characteristicUUID, boolean success);
+
+        void onDescriptorWrite(UUID characteristicUUID, boolean success);
+
+        void onCharacteristicChanged(UUID characteristicUUID, byte[] value);
+
+        void onMtuChanged(int mtu, boolean success);
+    }
+
+    private enum State {disconnected, connecting, discovering, ready}
+
+    private final GattTransport.Factory transportFactory;
+    private final ScheduledExecutorService scheduler;
+    private final AdaptiveTimeouts timeouts = new AdaptiveTimeouts();
+
+    // Time in milliseconds an idle link is kept open.
+    private long idleTimeout;
+
+    private State state = State.disconnected;
+    private GattTransport transport = null;
+    private Client client = null;
+
+    private ScheduledFuture<?> idleTimer = null;
+
+    // Timer supervising the current phase of link setup.
+    private ScheduledFuture<?> phaseTimer = null;
+    private AdaptiveTimeouts.Phase phase = null;
+    private long phaseStartTime = 0;
+
+    // Number of links for which the services have been discovered.
+    private int discoveryCount = 0;
+
+    /**
+     * Task closing the link after the idle timeout.
+     */
+    private class IdleTimeoutTask implements Runnable {
+        @Override
+        public void run() {
+            synchronized (GattSession.this) {
+                if (client != null) {
+                    // Session has been acquired again in the meantime.
+                    return;
+                }
+                idleTimer = null;
+                closeTransport();
+            }
+        }
+    }
+
+    /**
+     * Task failing the link setup after the deadline of the current phase has expired.
+     */
+    private class PhaseTimeoutTask implements Runnable {
+        private final ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+
+        @Override
+        public void run() {
+            synchronized (GattSession.this) {
+                if (phaseTimer != self[0]) {
+                    // Phase has been completed in the meantime.
+                    return;
+                }
+                phaseTimer = null;
+            }
+            fail(SyncEngine.Failure.timeout);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param transportFactory factory creating transports to the device
+     * @param scheduler scheduler used for the idle timeout
+     * @param idleTimeout time in milliseconds an idle link is kept open
+     */
+    public GattSession(GattTransport.Factory transportFactory, ScheduledExecutorService scheduler,
+                       long idleTimeout) {
+        this.transportFactory = transportFactory;
+        this.scheduler = scheduler;
+        this.idleTimeout = idleTimeout;
+    }
+
+    synchronized public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    synchronized public boolean isConnected() {
+        return (state == State.ready);
+    }
+
+    /**
+     * Get the scheduler of the session, which can also be used by the client for its
+     * timeouts.
+     *
+     * @return the scheduler
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Get the adaptive timeouts of the session, which are shared with the client.
+     *
+     * @return the adaptive timeouts
+     */
+    public AdaptiveTimeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Get the number of links for which the services have been discovered.
+     *
+     * @return number of service discoveries
+     */
+    synchronized public int getDiscoveryCount() {
+        return discoveryCount;
+    }
+
+    /**
+     * Acquire the session. The client is notified through onSessionReady() as soon as the link
+     * is ready, which happens immediately if the link is still open from a previous task.
+     *
+     * @param client the client using the session
+     * @return false, if the session is in use by another client
+     */
+    public boolean acquire(Client client) {
+        GattTransport readyTransport = null;
+        boolean failed = false;
+
+        synchronized (this) {
+            if (this.client != null) {
+                return false;
+            }
+
+            this.client = client;
+            cancelIdleTimer();
+
+            switch (state) {
+                case ready:
+                    readyTransport = transport;
+                    break;
+                case disconnected:
+                    state = State.connecting;
+                    transport = transportFactory.createTransport();
+                    if (!transport.connect(this)) {
+                        closeTransport();
+                        this.client = null;
+                        failed = true;
+                    } else {
+                        startPhaseTimer(AdaptiveTimeouts.Phase.connect);
+                    }
+                    break;
+                default:
+                    // Link establishment in progress. Wait for callback.
+                    break;
+            }
+        }
+
+        if (failed) {
+            client.onSessionFailed(SyncEngine.Failure.connection);
+        } else if (readyTransport != null) {
+            client.onSessionReady(readyTransport);
+        }
+
+        return true;
+    }
+
+    /**
+     * Release the session after a task has finished. The link is kept open until the
+     * idle timeout expires.
+     */
+    synchronized public void release() {
+        client = null;
+
+        if (state == State.disconnected) {
+            return;
+        }
+
+        if (idleTimeout <= 0) {
+            closeTransport();
+            return;
+        }
+
+        cancelIdleTimer();
+        try {
+            idleTimer = scheduler.schedule(new IdleTimeoutTask(), idleTimeout,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            closeTransport();
+        }
+    }
+
+    /**
+     * Close the link immediately, e.g., when the app goes to the background.
+     * The client (if any) is not notified; it is the responsibility of the caller to
+     * cancel the active task.
+     */
+    synchronized public void close() {
+        client = null;
+        cancelIdleTimer();
+        closeTransport();
+    }
+
+    private void cancelIdleTimer() {
+        if (idleTimer != null) {
+            idleTimer.cancel(false);
+            idleTimer = null;
+        }
+    }
+
+    /**
+     * Start supervising a phase of link setup. The previous phase is completed.
+     *
+     * @param phase the phase
+     */
+    private void startPhaseTimer(AdaptiveTimeouts.Phase phase) {
+        stopPhaseTimer();
+
+        this.phase = phase;
+        phaseStartTime = System.nanoTime();
+        PhaseTimeoutTask task = new PhaseTimeoutTask();
+        try {
+            phaseTimer = scheduler.schedule(task, timeouts.getDeadline(phase),
+                    TimeUnit.MILLISECONDS);
+            task.self[0] = phaseTimer;
+        } catch (RejectedExecutionException e) {
+            // Scheduler has been shut down. Link setup is not supervised.
+            phaseTimer = null;
+        }
+    }
+
+    /**
+     * The current phase of link setup has been completed. Record its latency.
+     */
+    private void stopPhaseTimer() {
+        if (phase != null) {
+            timeouts.recordLatency(phase, (System.nanoTime() - phaseStartTime)/1000000);
+            phase = null;
+        }
+        cancelPhaseTimer();
+    }
+
+    private void cancelPhaseTimer() {
+        phase = null;
+        if (phaseTimer != null) {
+            phaseTimer.cancel(false);
+            phaseTimer = null;
+        }
+    }
+
+    private void closeTransport() {
+        cancelPhaseTimer();
+        if (transport != null) {
+            transport.close();
+            transport = null;
+        }
+        state = State.disconnected;
+    }
+
+    /**
+     * Start service discovery.
+     *
+     * @return true, if service discovery has been started
+     */
+    private boolean startDiscovery() {
+        startPhaseTimer(AdaptiveTimeouts.Phase.discovery);
+        state = State.discovering;
+        discoveryCount++;
+        return transport.discoverServices();
+    }
+
+    /**
+     * The link is ready. Notify the client.
+     */
+    private void setReady() {
+        Client c;
+        GattTransport t;
+        synchronized (this) {
+            if (transport == null) {
+                // Link has been closed in the meantime.
+                return;
+            }
+            stopPhaseTimer();
+            state = State.ready;
+            c = client;
+            t = transport;
+        }
+
+        if (c != null) {
+            c.onSessionReady(t);
+        } else {
+            // Nobody is waiting for the session anymore.
+            release();
+        }
+    }
+
+    /**
+     * Close the link because of a failure and notify the client.
+     *
+     * @param failure reason of the failure
+     */
+    private void fail(SyncEngine.Failure failure) {
+        Client c;
+        synchronized (this) {
+            c = client;
+            client = null;
+            cancelIdleTimer();
+            closeTransport();
+        }
+
+        if (c != null) {
+            c.onSessionFailed(failure);
+        }
+    }
+
+    synchronized private Client getClient() {
+        return client;
+    }
+
+    @Override
+    public void onConnectionStateChange(boolean connected) {
+        if (!connected) {
+            // Lost the link.
+            fail(SyncEngine.Failure.connection);
+            return;
+        }
+
+        boolean started;
+        synchronized (this) {
+            if (state != State.connecting) {
+                return;
+            }
+
+            started = startDiscovery();
+        }
+
+        if (!started) {
+            // Cannot start discovery
+            fail(SyncEngine.Failure.discovery);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(boolean success) {
+        if (!success) {
+            // Service discovery failed.
+            fail(SyncEngine.Failure.discovery);
+            return;
+        }
+
+        synchronized (this) {
+            if (state != State.discovering) {
+                return;
+            }
+        }
+
+        setReady();
+    }
+
+    @Override
+    public void onCharacteristicRead(UUID characteristicUUID, byte[] value, boolean success) {
+        Client c = getClient();
+        if (c != null) {
+            c.onCharacteristicRead(characteristicUUID, value, success);
+        }
+    }
+
+    @Override
+    public void onCharacteristicWrite(UUID characteristicUUID, boolean success) {
+        Client c = getClient();
+        if (c != null) {
+            c.onCharacteristicWrite(characteristicUUID, success);
+        }
+    }
+
+    @Override
+    public void onDescriptorWrite(UUID characteristicUUID, boolean success) {
+        Client c = getClient();
+        if (c != null) {
+            c.onDescriptorWrite(characteristicUUID, success);
+        }
+    }
+
+    @Override
+    public void onCharacteristicChanged(UUID characteristicUUID, byte[] value) {
+        Client c = getClient();
+        if (c != null) {
+            c.onCharacteristicChanged(characteristicUUID, value);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, boolean success) {
+        Client c = getClient();
+        if (c != null) {
+            c.onMtuChanged(mtu, success);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.UUID;
+
+/**
+ * A GATT client link to a BLE-V-Monitor device.
+ *
+ * The transport hides whether the GATT server is a real device reached through the
+ * Android Bluetooth stack or a simulated peripheral running in the same JVM.
+ * All operations are asynchronous. A return value of false means that the operation could
+ * not be started; otherwise, the result is signaled through the callback passed to connect().
+ * Callbacks may be invoked on an arbitrary thread.
+ */
+public interface GattTransport {
+
+    /**
+     * Connection priority requested from the peripheral (cf. connection interval).
+     * High priority (short interval) speeds up bulk transfers; low power (long interval)
+     * saves energy while the link is idle or only carries live values.
+     */
+    enum ConnectionPriority {high, balanced, lowPower}
+
+    /**
+     * Factory creating new transports to a device.
+     */
+    interface Factory {
+        GattTransport createTransport();
+    }
+
+    /**
+     * Callbacks signaling the results of GATT operations.
+     */
+    interface Callback {
+        void onConnectionStateChange(boolean connected);
+
+        void onServicesDiscovered(boolean success);
+
+        void onCharacteristicRead(UUID characteristicUUID, byte[] value, boolean success);
+
+        void onCharacteristicWrite(UUID characteristicUUID, boolean success);
+
+        void onDescriptorWrite(UUID characteristicUUID, boolean success);
+
+        void onCharacteristicChanged(UUID characteristicUUID, byte[] value);
+
+        void onMtuChanged(int mtu, boolean success);
+    }
+
+    /**
+     * Connect to the GATT server.
+     *
+     * @param callback callback receiving the results of all subsequent operations
+     * @return true, if connection establishment has been started
+     */
+    boolean connect(Callback callback);
+
+    /**
+     * Discover the services of the GATT server.
+     *
+     * @return true, if service discovery has been started
+     */
+    boolean discoverServices();
+
+    /**
+     * Check whether the BLE-V-Monitor service has been discovered.
+     *
+     * @return true, if the service is available
+     */
+    boolean hasService();
+
+    /**
+     * Check whether a characteristic of the BLE-V-Monitor service has been discovered.
+     *
+     * @param characteristicUUID UUID of the characteristic
+     * @return true, if the characteristic is available
+     */
+    boolean hasCharacteristic(UUID characteristicUUID);
+
+    /**
+     * Check whether a characteristic supports notifications (unacknowledged) in addition
+     * to or instead of indications.
+     *
+     * @param characteristicUUID UUID of the characteristic
+     * @return true, if the client can subscribe to notifications
+     */
+    boolean canNotify(UUID characteristicUUID);
+
+    /**
+     * Read the value of a characteristic.
+     *
+     * @param characteristicUUID UUID of the characteristic
+     * @return true, if the read operation has been started
+     */
+    boolean readCharacteristic(UUID characteristicUUID);
+
+    /**
+     * Write the value of a characteristic (write request with response).
+     *
+     * @param characteristicUUID UUID of the characteristic
+     * @param value the value to be written
+     * @return true, if the write operation has been started
+     */
+    boolean writeCharacteristic(UUID characteristicUUID, byte[] value);
+
+    /**
+     * Subscribe to indications or notifications of a characteristic by writing its client
+     * characteristic configuration descriptor.
+     *
+     * @param characteristicUUID UUID of the characteristic
+     * @param indications true to subscribe to indications, false to subscribe to notifications
+     * @return true, if the descriptor write operation has been started
+     */
+    boolean subscribe(UUID characteristicUUID, boolean indications);
+
+    /**
+     * Unsubscribe from indications or notifications of a characteristic. The device stops
+     * an ongoing history transfer when the client unsubscribes, and starts a new transfer
+     * when the client subscribes again.
+     *
+     * @param characteristicUUID UUID of the characteristic
+     * @return true, if the descriptor write operation has been started
+     */
+    boolean unsubscribe(UUID characteristicUUID);
+
+    /**
+     * Request new connection parameters. The result is not signaled; the peripheral
+     * might reject or adjust the parameters.
+     *
+     * @param priority the requested connection priority
+     * @return true, if the request has been sent
+     */
+    boolean requestConnectionPriority(ConnectionPriority priority);
+
+    /**
+     * Request a larger ATT MTU. The MTU actually used for the link is signaled through
+     * onMtuChanged().
+     *
+     * @param mtu the requested MTU in bytes
+     * @return true, if the MTU exchange has been started; false, if not supported
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * Close the connection and release all resources. No more callbacks are invoked after
+     * this method has returned.
+     */
+    void close();
+}
@@ -0,0 +1,472 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Chart data of a history, prepared off the UI thread and ready to be attached to a chart.
+ *
+ * Payloads are immutable once prepared (also the pyramid, except for its selection buffer,
+ * which is only used by the UI thread after the payload has been handed over). Preparing a
+ * payload converts the samples to volts and formats the x labels.
+ *
+ * Samples with timestamps are placed on the x axis by time: every x position spans one
+ * sample interval, so samples missing from a history (e.g., while the device was out of
+ * range) leave a gap rather than shifting the older samples. Samples without timestamps
+ * are placed one after the other.
+ *
+ * While a history is being downloaded, the samples received so far (at most one ring of
+ * the device) are placed after the history. The history part of the previous payload is
+ * re-used as long as the history has not changed, so preparing a payload for newly
+ * received samples only takes time proportional to the number of received samples.
+ */
+public class HistoryChartPayload {
+
+    public final HistoryType historyType;
+
+    // Version of the data model snapshot in which the history has been set.
+    public final long version;
+
+    // History the payload has been prepared for (null if none), and the timestamps of its
+    // samples as set in the data model.
+    private final HistorySeries history;
+    private final long[] sampleTimes;
+    private final long historyTime;
+
+    // Number of samples of the history.
+    public final int size;
+
+    // X positions of the samples in ascending order, or null if sample i is placed at x = i.
+    private final int[] positions;
+
+    // Time of x position 0 in milliseconds since the epoch, or -1 if not known.
+    private final long firstTime;
+
+    // X labels of all positions (unmodifiable), and number of labels of the positions of
+    // the history.
+    public final List<String> labels;
+    private final int historyLabelCount;
+
+    // Samples in volts if all samples are drawn; null otherwise.
+    public final float[] values;
+
+    // Pyramid and samples selected for the whole history if the history is downsampled;
+    // null otherwise.
+    public final SeriesPyramid pyramid;
+    public final int[] overview;
+    public final int overviewCount;
+
+    // Received samples in volts and their x positions (after the samples of the history).
+    public final int receivedCount;
+    public final float[] receivedValues;
+    public final int[] receivedPositions;
+
+    // Number of positions the gap between the history and the received samples has been
+    // shortened by (cf. MAX_GAP).
+    private final int gapShortening;
+
+    // Maximum number of empty positions between the history and the received samples.
+    // Longer gaps (e.g., if a device has not been synced for months) are shortened, so the
+    // received samples do not stretch the x axis arbitrarily.
+    static private final int MAX_GAP = 24*60;
+
+    // Relative labels and time formats by history (guarded by the class lock).
+    static private final EnumMap<HistoryType, String[]> relativeLabels =
+            new EnumMap<>(HistoryType.class);
+    static private final EnumMap<HistoryType, DateFormat> timeFormats =
+            new EnumMap<>(HistoryType.class);
+
+    private HistoryChartPayload(HistoryType historyType, long version, HistorySeries history,
+                                long[] sampleTimes, long historyTime, int size,
+                                int[] positions, long firstTime, List<String> labels,
+                                int historyLabelCount, float[] values, SeriesPyramid pyramid,
+                                int[] overview, int overviewCount, int receivedCount,
+                                float[] receivedValues, int[] receivedPositions,
+                                int gapShortening) {
+        this.historyType = historyType;
+        this.version = version;
+        this.history = history;
+        this.sampleTimes = sampleTimes;
+        this.historyTime = historyTime;
+        this.size = size;
+        this.positions = positions;
+        this.firstTime = firstTime;
+        this.labels = labels;
+        this.historyLabelCount = historyLabelCount;
+        this.values = values;
+        this.pyramid = pyramid;
+        this.overview = overview;
+        this.overviewCount = overviewCount;
+        this.receivedCount = receivedCount;
+        this.receivedValues = receivedValues;
+        this.receivedPositions = receivedPositions;
+        this.gapShortening = gapShortening;
+    }
+
+    /**
+     * Check whether two payloads have been prepared for the same history. If so, they share
+     * the samples of the history and only differ in the received samples.
+     *
+     * @param other the other payload (might be null)
+     * @return true if the payloads share the history
+     */
+    public boolean hasSameHistory(HistoryChartPayload other) {
+        return (other != null && other.historyType == historyType &&
+                other.history == history && other.sampleTimes == sampleTimes &&
+                other.historyTime == historyTime && other.values == values &&
+                other.pyramid == pyramid);
+    }
+
+    /**
+     * Get the x position of a sample.
+     *
+     * @param i index of the sample (0 is the oldest sample)
+     * @return the x position
+     */
+    public int getPosition(int i) {
+        return (positions != null ? positions[i] : i);
+    }
+
+    /**
+     * Find the first sample at or after an x position.
+     *
+     * @param x the x position
+     * @return index of the sample, or size if all samples are placed before x
+     */
+    public int findSample(int x) {
+        if (positions == null) {
+            return Math.max(0, Math.min(size, x));
+        }
+
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low+high) >>> 1;
+            if (positions[mid] < x) {
+                low = mid+1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Prepare the chart data of a history. Preparation stops early if the calling thread
+     * gets interrupted (i.e., the preparation has been cancelled since newer data arrived).
+     *
+     * @param model the data model snapshot containing the history
+     * @param historyType the history
+     * @param pointBudget maximum number of points drawn for a range of the history
+     * @param previous the payload shown so far (null if none), whose history part and labels
+     *                 are re-used if possible
+     * @return the payload, or null if the preparation has been cancelled
+     */
+    public static HistoryChartPayload prepare(DataModel.Snapshot model, HistoryType historyType,
+                                              int pointBudget, HistoryChartPayload previous) {
+        long version = model.getHistoryVersion(historyType);
+        HistorySeries history = model.getHistory(historyType);
+        if (previous == null || previous.historyType != historyType ||
+                previous.history != history ||
+                previous.sampleTimes != model.getHistorySampleTimes(historyType) ||
+                previous.historyTime != model.getHistoryTime(historyType)) {
+            previous = prepareHistory(model, historyType, pointBudget);
+            if (previous == null) {
+                return null;
+            }
+        }
+
+        // Place the received samples after the samples of the history.
+        HistorySeries received = model.getReceivedHistory(historyType);
+        long receivedTime = model.getReceivedHistoryTime(historyType);
+        int size = previous.size;
+        int lastX = (size > 0 ? previous.getPosition(size-1) : -1);
+        long firstTime = previous.firstTime;
+        long interval = GattProfile.getSampleInterval(historyType);
+        int receivedSize = (received != null ? received.size() : 0);
+        if (size == 0) {
+            // Nothing but received samples.
+            firstTime = (receivedSize > 0 && receivedTime >= 0 ?
+                    receivedTime - (receivedSize-1)*interval : -1);
+        }
+        float[] receivedValues = new float[receivedSize];
+        int[] receivedPositions = new int[receivedSize];
+        int receivedCount = 0;
+        int gapEnd = lastX + 1 + MAX_GAP;
+        long gapShortening = 0;
+        if (firstTime >= 0 && receivedTime >= 0) {
+            // Positions from gapEnd on are shifted by the shortening, which only depends on
+            // the newest received sample, so the labels do not change while older samples
+            // are received.
+            long newestX = (receivedTime - firstTime + interval/2)/interval;
+            gapShortening = Math.max(0, newestX - (gapEnd + GattProfile.HISTORY_RING_SIZE));
+        }
+        for (int i = 0; i < receivedSize; i++) {
+            long x;
+            if (firstTime >= 0 && receivedTime >= 0) {
+                long time = receivedTime - (receivedSize-1-i)*interval;
+                x = (time - firstTime + interval/2)/interval;
+                if (x >= gapEnd + gapShortening) {
+                    x -= gapShortening;
+                }
+            } else {
+                x = lastX+1;
+            }
+            if (x <= lastX) {
+                // Overlaps the history (e.g., the clock has been set back).
+                continue;
+            }
+            receivedValues[receivedCount] = (float) (received.get(i)/1000.0);
+            receivedPositions[receivedCount] = (int) x;
+            receivedCount++;
+            lastX = (int) x;
+        }
+
+        List<String> labels = createLabels(historyType, firstTime, lastX+1, gapEnd,
+                (int) gapShortening, previous);
+        if (labels == null) {
+            return null;
+        }
+
+        return new HistoryChartPayload(historyType, version, history, previous.sampleTimes,
+                previous.historyTime, size, previous.positions, firstTime, labels,
+                previous.historyLabelCount, previous.values, previous.pyramid, previous.overview,
+                previous.overviewCount, receivedCount, receivedValues, receivedPositions,
+                (int) gapShortening);
+    }
+
+    /**
+     * Prepare the chart data of the samples of a history.
+     *
+     * @return the payload without received samples, or null if the preparation has been
+     * cancelled
+     */
+    static private HistoryChartPayload prepareHistory(DataModel.Snapshot model,
+                                                      HistoryType historyType,
+                                                      int pointBudget) {
+        long version = model.getHistoryVersion(historyType);
+        HistorySeries history = model.getHistory(historyType);
+        long[] modelSampleTimes = model.getHistorySampleTimes(historyType);
+        long newestTime = model.getHistoryTime(historyType);
+        int size = (history != null ? history.size() : 0);
+
+        int[] positions = null;
+        long firstTime = -1;
+        long[] sampleTimes = null;
+        if (modelSampleTimes != null && modelSampleTimes.length == size) {
+            sampleTimes = modelSampleTimes;
+            positions = getPositions(historyType, sampleTimes);
+            firstTime = (size > 0 ? sampleTimes[0] : -1);
+        } else {
+            if (newestTime >= 0 && size > 0) {
+                firstTime = newestTime - (size-1)*GattProfile.getSampleInterval(historyType);
+            }
+        }
+        List<String> labels = createHistoryLabels(historyType, size, positions, sampleTimes,
+                firstTime);
+        if (labels == null) {
+            return null;
+        }
+
+        if (size <= pointBudget) {
+            float[] values = new float[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = (float) (history.get(i)/1000.0);
+            }
+            return new HistoryChartPayload(historyType, version, history, modelSampleTimes,
+                    newestTime, size, positions, firstTime, labels, labels.size(), values, null,
+                    null, 0, 0, null, null, 0);
+        }
+
+        // Too many samples to draw. Only the samples selected from the pyramid are drawn.
+        SeriesPyramid pyramid = new SeriesPyramid(history);
+        if (Thread.currentThread().isInterrupted()) {
+            return null;
+        }
+        int[] overview = new int[pointBudget];
+        int overviewCount = pyramid.select(0, size-1, pointBudget, overview);
+
+        return new HistoryChartPayload(historyType, version, history, modelSampleTimes,
+                newestTime, size, positions, firstTime, labels, labels.size(), null, pyramid,
+                overview, overviewCount, 0, null, null, 0);
+    }
+
+    /**
+     * Get the x positions of samples with timestamps. Position 0 starts at the oldest
+     * sample, and every position spans one sample interval.
+     */
+    static private int[] getPositions(HistoryType historyType, long[] sampleTimes) {
+        long interval = GattProfile.getSampleInterval(historyType);
+        int[] positions = new int[sampleTimes.length];
+        int x = 0;
+        for (int i = 0; i < sampleTimes.length; i++) {
+            long offset = (sampleTimes[i] - sampleTimes[0] + interval/2)/interval;
+            // Keep the positions ascending even if the clock has been set back.
+            x = (int) Math.max(x, offset);
+            positions[i] = x;
+        }
+        return positions;
+    }
+
+    /**
+     * Create the x labels of the positions of a history. Positions are labeled with their
+     * times if the times of the samples are known; otherwise, with their age relative to
+     * the newest sample.
+     *
+     * @return the labels, or null if the preparation has been cancelled
+     */
+    synchronized static private List<String> createHistoryLabels(HistoryType historyType,
+                                                                 int size, int[] positions,
+                                                                 long[] sampleTimes,
+                                                                 long firstTime) {
+        if (firstTime < 0) {
+            return getRelativeLabels(historyType, size);
+        }
+
+        long interval = GattProfile.getSampleInterval(historyType);
+        DateFormat timeFormat = getTimeFormat(historyType);
+        int count = (size > 0 && positions != null ? positions[size-1]+1 : size);
+        ArrayList<String> labels = new ArrayList<>(count);
+        int i = 0;
+        for (int x = 0; x < count; x++) {
+            if (x%1024 == 0 && Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            while (i < size && (positions != null ? positions[i] : i) < x) {
+                i++;
+            }
+            // Positions with a sample are labeled with its time, empty positions with the
+            // time they span.
+            long time = (sampleTimes != null && i < size && positions[i] == x ?
+                    sampleTimes[i] : firstTime + x*interval);
+            labels.add(timeFormat.format(new Date(time)));
+        }
+
+        return Collections.unmodifiableList(labels);
+    }
+
+    /**
+     * Create the x labels of the positions of a history and its received samples. The
+     * labels of the positions of the history are taken from the payload of the history.
+     *
+     * @param firstTime time of x position 0, or -1 if not known
+     * @param count number of positions
+     * @param gapEnd first position after the longest gap allowed after the history
+     * @param gapShortening number of positions the gap has been shortened by
+     * @param historyPayload payload of the history
+     * @return the labels, or null if the preparation has been cancelled
+     */
+    synchronized static private List<String> createLabels(HistoryType historyType,
+                                                          long firstTime, int count,
+                                                          int gapEnd, int gapShortening,
+                                                          HistoryChartPayload historyPayload) {
+        if (firstTime < 0) {
+            return getRelativeLabels(historyType, count);
+        }
+        if (firstTime == historyPayload.firstTime && historyPayload.labels.size() == count &&
+                gapShortening == historyPayload.gapShortening) {
+            // Labels of the previous payload are re-used.
+            return historyPayload.labels;
+        }
+        int historyCount = (historyPayload.size > 0 ? historyPayload.historyLabelCount : 0);
+
+        long interval = GattProfile.getSampleInterval(historyType);
+        DateFormat timeFormat = getTimeFormat(historyType);
+        ArrayList<String> labels = new ArrayList<>(count);
+        labels.addAll(historyPayload.labels.subList(0, Math.min(historyCount, count)));
+        for (int x = labels.size(); x < count; x++) {
+            if (x%1024 == 0 && Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            long shift = (x >= gapEnd ? gapShortening : 0);
+            labels.add(timeFormat.format(new Date(firstTime + (x+shift)*interval)));
+        }
+
+        return Collections.unmodifiableList(labels);
+    }
+
+    static private DateFormat getTimeFormat(HistoryType historyType) {
+        DateFormat timeFormat = timeFormats.get(historyType);
+        if (timeFormat == null) {
+            timeFormat = (historyType == HistoryType.daily ?
+                    DateFormat.getDateInstance(DateFormat.SHORT) :
+                    DateFormat.getTimeInstance(DateFormat.SHORT));
+            timeFormats.put(historyType, timeFormat);
+        }
+        return timeFormat;
+    }
+
+    /**
+     * Get the labels of the positions of a history relative to the newest position.
+     *
+     * @param historyType the history
+     * @param count number of positions
+     * @return the labels (unmodifiable)
+     */
+    static private List<String> getRelativeLabels(HistoryType historyType, int count) {
+        String[] labels = getRelativeLabelArray(historyType, count);
+        return Collections.unmodifiableList(
+                Arrays.asList(labels).subList(labels.length-count, labels.length));
+    }
+
+    /**
+     * Get the relative labels of a history, which are shared by all payloads of the
+     * history.
+     *
+     * @param historyType the history
+     * @param size minimum number of labels
+     * @return the labels of the oldest to the newest sample; the last size labels label a
+     * history of size samples
+     */
+    static private String[] getRelativeLabelArray(HistoryType historyType, int size) {
+        String[] labels = relativeLabels.get(historyType);
+        if (labels != null && labels.length >= size) {
+            return labels;
+        }
+
+        String timeUnitStr = null;
+        switch (historyType) {
+            case minutely:
+                timeUnitStr = "min";
+                break;
+            case hourly:
+                timeUnitStr = "h";
+                break;
+            case daily:
+                timeUnitStr = "d";
+                break;
+        }
+
+        int count = Math.max(size, GattProfile.HISTORY_RING_SIZE-1);
+        labels = new String[count];
+        for (int i = 0; i < count; i++) {
+            labels[i] = Integer.toString(-count+i+1) + timeUnitStr;
+        }
+        relativeLabels.put(historyType, labels);
+
+        return labels;
+    }
+}
@@ -22,11 +22,13 @@ import android.app.Activity;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 
@@ -35,15 +37,26 @@ import com.github.mikephil.charting.components.YAxis;
 import com.github.mikephil.charting.data.Entry;
 import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
+import com.github.mikephil.charting.listener.OnChartGestureListener;
 
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
  * Fragment displaying history information from the data model.
  * The fragment is parametrized to show minutely, hourly, or daily history information.
+ *
+ * Archived histories can have tens of thousands of samples. If a history has more samples
+ * than the chart has pixels, only the samples selected by a SeriesPyramid are drawn: for
+ * the visible range in detail, and for the rest of the history coarsely. The selection is
+ * updated when the chart is zoomed or panned.
+ *
+ * Chart data (values, labels, pyramid) is prepared off the UI thread (cf.
+ * HistoryChartPayload); the UI thread only attaches it to the chart.
  */
 public class HistoryFragment extends Fragment {
 
@@ -51,47 +64,80 @@ public class HistoryFragment extends Fragment {
 
     static final String BUNDLE_KEY_HISTORY_TYPE = "history_type";
 
-    public enum HistoryType {minutely, hourly, daily};
     private HistoryType historyType;
 
     private MainActivity activity = null;
 
-    // Handler to receive a notification when the data model has been updated.
-    public ModelUpdateNotificationHandler updateNotificationHandler = null;
-
     private LineChart chart = null;
 
-    /**
-     * The update notification handler receives a message when the data model has been
-     * updated, and then triggers a view update.
-     */
-    private static class UpdateNotificationHandler extends ModelUpdateNotificationHandler {
-        private final WeakReference<HistoryFragment> fragment;
+    // Minimum number of points drawn for a range of a history.
+    static private final int MIN_POINT_BUDGET = 128;
+
+    // Data of the chart, kept between updates of the view.
+    private LineData chartData = null;
+    private LineDataSet dataSet = null;
+
+    // Executor preparing the chart data off the UI thread (shared by all history fragments).
+    static private final ExecutorService chartExecutor = Executors.newSingleThreadExecutor();
+
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    // Version of the data model snapshot in which the history to be shown has been set.
+    private long requestedHistoryVersion = -1;
+
+    // Preparation of the chart data of the requested version, or null if none in flight.
+    private Future<?> pendingPreparation = null;
+
+    // Chart data shown.
+    private HistoryChartPayload shownPayload = null;
+
+    // Samples selected for the visible range of a downsampled history.
+    private int[] detail = new int[0];
+
+    // Number of entries of the samples of the shown history, which are followed by the
+    // entries of the received samples.
+    private int historyEntryCount = 0;
+
+    // Subscriber updating the view when the history of the data model has changed.
+    private final ModelChangeBus.Subscriber historySubscriber = new ModelChangeBus.Subscriber() {
+        @Override
+        public void onModelChanged(DataModel.Snapshot snapshot) {
+            updateView();
+        }
+    };
 
-        public UpdateNotificationHandler(HistoryFragment fragment) {
-            this.fragment = new WeakReference<>(fragment);
+    // Listener selecting the samples of the visible range of a downsampled history when the
+    // chart is zoomed or panned.
+    private final OnChartGestureListener zoomListener = new OnChartGestureListener() {
+        @Override
+        public void onChartLongPressed(MotionEvent me) {
         }
 
         @Override
-        public void handleMessage(Message message) {
-            HistoryFragment f = fragment.get();
+        public void onChartDoubleTapped(MotionEvent me) {
+            onVisibleRangeChanged();
+        }
 
-            if (message.arg1 == ModelUpdateNotificationHandler.HISTORY_UPDATED_MINUTELY &&
-                    f.historyType == HistoryType.minutely) {
-                f.updateView();
-            }
+        @Override
+        public void onChartSingleTapped(MotionEvent me) {
+        }
 
-            if (message.arg1 == ModelUpdateNotificationHandler.HISTORY_UPDATED_HOURLY &&
-                    f.historyType == HistoryType.hourly) {
-                f.updateView();
-            }
+        @Override
+        public void onChartFling(MotionEvent me1, MotionEvent me2, float velocityX,
+                                 float velocityY) {
+            onVisibleRangeChanged();
+        }
 
-            if (message.arg1 == ModelUpdateNotificationHandler.HISTORY_UPDATED_DAILY &&
-                    f.historyType == HistoryType.daily) {
-                f.updateView();
-            }
+        @Override
+        public void onChartScale(MotionEvent me, float scaleX, float scaleY) {
+            onVisibleRangeChanged();
         }
-    }
+
+        @Override
+        public void onChartTranslate(MotionEvent me, float dX, float dY) {
+            onVisibleRangeChanged();
+        }
+    };
 
     /**
      * Use this factory method to create a new instance of
@@ -137,8 +183,11 @@ public class HistoryFragment extends Fragment {
         });
 
         chart = (LineChart) v.findViewById(R.id.charthistory);
-
-        updateNotificationHandler = new UpdateNotificationHandler(this);
+        chart.setOnChartGestureListener(zoomListener);
+        chartData = null;
+        dataSet = null;
+        shownPayload = null;
+        requestedHistoryVersion = -1;
 
         if (savedInstanceState != null) {
             int i = savedInstanceState.getInt(getTag()+BUNDLE_KEY_HISTORY_TYPE);
@@ -164,6 +213,18 @@ public class HistoryFragment extends Fragment {
 
         Log.i(TAG, "Started");
         updateView();
+        ModelChangeBus.theBus.subscribeHistory(historyType, historySubscriber);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+
+        ModelChangeBus.theBus.unsubscribe(historySubscriber);
+        cancelPreparation();
+
+        // Prepare the chart data again when the fragment is started next time.
+        requestedHistoryVersion = (shownPayload != null ? shownPayload.version : -1);
     }
 
     @Override
@@ -187,43 +248,229 @@ public class HistoryFragment extends Fragment {
 
     /**
      * Update the view data according to the data stored by the data model.
+     *
+     * The chart data is prepared by the chart executor and attached to the chart on the UI
+     * thread. A preparation still in flight when newer data arrives is cancelled.
      */
     private void updateView() {
-        List<Integer> historyData = null;
+        final DataModel.Snapshot model = DataModel.theModel.getSnapshot();
+        final long version = model.getHistoryVersion(historyType);
+        if (version == requestedHistoryVersion) {
+            // History has not changed since the last update.
+            return;
+        }
+
+        if (model.getHistory(historyType) == null &&
+                model.getReceivedHistory(historyType) == null) {
+            // No history data in data model
+            return;
+        }
+        requestedHistoryVersion = version;
+
+        cancelPreparation();
+        final HistoryType type = historyType;
+        final int pointBudget = getPointBudget();
+        final HistoryChartPayload previous = shownPayload;
+        pendingPreparation = chartExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final HistoryChartPayload payload = HistoryChartPayload.prepare(model, type,
+                        pointBudget, previous);
+                if (payload == null) {
+                    // Cancelled.
+                    return;
+                }
+                uiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (payload.version == requestedHistoryVersion && chart != null) {
+                            pendingPreparation = null;
+                            attachPayload(payload);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void cancelPreparation() {
+        if (pendingPreparation != null) {
+            pendingPreparation.cancel(true);
+            pendingPreparation = null;
+        }
+    }
+
+    /**
+     * Attach prepared chart data to the chart. The data set of the chart is kept between
+     * updates: entries are updated in place and only added for new samples, and labels are
+     * only replaced if they have changed. If only the received samples of a history being
+     * downloaded have changed, only their entries are updated.
+     */
+    private void attachPayload(HistoryChartPayload payload) {
+        if (chartData == null) {
+            createChartData();
+        }
+
+        List<String> xVals = chartData.getXVals();
+        if (shownPayload == null || payload.labels != shownPayload.labels) {
+            xVals.clear();
+            xVals.addAll(payload.labels);
+        }
+
+        boolean sameHistory = payload.hasSameHistory(shownPayload);
+        if (!sameHistory && payload.pyramid == null && shownPayload != null &&
+                shownPayload.pyramid != null) {
+            // Entries of downsampled series do not match the sample indices.
+            dataSet.clear();
+        }
+        shownPayload = payload;
+        if (sameHistory) {
+            updateReceivedEntries();
+        } else if (payload.pyramid != null) {
+            dataSet.setDrawCircles(false);
+            updateDownsampledEntries();
+        } else {
+            dataSet.setDrawCircles(true);
+            updateEntries();
+        }
+
+        refreshChart();
+    }
+
+    private void refreshChart() {
+        dataSet.notifyDataSetChanged();
+        chartData.notifyDataChanged();
+        chart.notifyDataSetChanged();
+        chart.invalidate();
+    }
+
+    /**
+     * Update the entries of the shown samples and add entries for new samples.
+     */
+    private void updateEntries() {
+        float[] values = shownPayload.values;
+        int size = values.length;
+        List<Entry> entries = dataSet.getYVals();
+        for (int i = 0; i < size; i++) {
+            setEntry(entries, i, values[i], shownPayload.getPosition(i));
+        }
+        historyEntryCount = size;
+        updateReceivedEntries();
+    }
+
+    /**
+     * Update the entries of the received samples, which follow the entries of the history,
+     * and remove the entries left over (e.g., if another device has been selected).
+     */
+    private void updateReceivedEntries() {
+        List<Entry> entries = dataSet.getYVals();
+        int count = historyEntryCount;
+        for (int i = 0; i < shownPayload.receivedCount; i++) {
+            setEntry(entries, count++, shownPayload.receivedValues[i],
+                    shownPayload.receivedPositions[i]);
+        }
+        while (entries.size() > count) {
+            entries.remove(entries.size()-1);
+        }
+    }
+
+    /**
+     * Set the entries of a downsampled series: the samples selected for the visible range,
+     * and the samples selected for the whole series outside of the visible range (drawn
+     * when panning). Entry objects are re-used.
+     */
+    private void updateDownsampledEntries() {
+        SeriesPyramid pyramid = shownPayload.pyramid;
+        int[] overview = shownPayload.overview;
+        int overviewCount = shownPayload.overviewCount;
+        int size = pyramid.size();
+        int from = 0;
+        int to = size-1;
+        if (chart.getScaleX() > 1.0f) {
+            // Zoomed in. Select the visible samples in detail.
+            from = Math.min(size-1, shownPayload.findSample(chart.getLowestVisibleXIndex()));
+            to = Math.max(from,
+                    shownPayload.findSample(chart.getHighestVisibleXIndex()+1)-1);
+        }
+        int budget = getPointBudget();
+        if (detail.length < budget) {
+            detail = new int[budget];
+        }
+        int detailCount = pyramid.select(from, to, budget, detail);
+
+        List<Entry> entries = dataSet.getYVals();
+        int count = 0;
+        for (int i = 0; i < overviewCount && overview[i] < from; i++) {
+            setEntry(entries, count++, overview[i]);
+        }
+        for (int i = 0; i < detailCount; i++) {
+            setEntry(entries, count++, detail[i]);
+        }
+        for (int i = 0; i < overviewCount; i++) {
+            if (overview[i] > to) {
+                setEntry(entries, count++, overview[i]);
+            }
+        }
+        historyEntryCount = count;
+        updateReceivedEntries();
+    }
+
+    /**
+     * Set entry i to a sample of a downsampled series.
+     */
+    private void setEntry(List<Entry> entries, int i, int sample) {
+        setEntry(entries, i, (float) (shownPayload.pyramid.getValue(sample)/1000.0),
+                shownPayload.getPosition(sample));
+    }
+
+    private void setEntry(List<Entry> entries, int i, float v, int x) {
+        if (i < entries.size()) {
+            Entry entry = entries.get(i);
+            entry.setVal(v);
+            entry.setXIndex(x);
+        } else {
+            entries.add(new Entry(v, x));
+        }
+    }
+
+    /**
+     * Get the maximum number of points drawn for a range of a history, which is about the
+     * width of the chart in pixels.
+     */
+    private int getPointBudget() {
+        int width = chart.getWidth();
+        if (width <= 0) {
+            // Not laid out yet.
+            width = getResources().getDisplayMetrics().widthPixels;
+        }
+        return Math.max(MIN_POINT_BUDGET, width);
+    }
+
+    private void onVisibleRangeChanged() {
+        if (shownPayload != null && shownPayload.pyramid != null) {
+            updateDownsampledEntries();
+            refreshChart();
+        }
+    }
+
+    /**
+     * Create the data of the chart, which is kept between updates.
+     */
+    private void createChartData() {
         String label = null;
-        String timeUnitStr = null;
         switch (historyType) {
             case minutely:
-                historyData = DataModel.theModel.getMinutelyHistory();
                 label = getResources().getString(R.string.minutely_history);
-                timeUnitStr = "min";
                 break;
             case hourly:
-                historyData = DataModel.theModel.getHourlyHistory();
                 label = getResources().getString(R.string.hourly_history);
-                timeUnitStr = "h";
                 break;
             case daily:
-                historyData = DataModel.theModel.getDailyHistory();
                 label = getResources().getString(R.string.daily_history);
-                timeUnitStr = "d";
                 break;
         }
 
-        if (historyData == null) {
-            // No history data in data model
-            return;
-        }
-
-        ArrayList<Entry> values = new ArrayList<>();
-        int x = 0;
-        for (Integer value: historyData) {
-            float v = (float) (value.floatValue()/1000.0);
-            Entry entry = new Entry(v, x++);
-            values.add(entry);
-        }
-
-        LineDataSet dataSet = new LineDataSet(values, label);
+        dataSet = new LineDataSet(new ArrayList<Entry>(), label);
         dataSet.setLineWidth(2.5f);
         dataSet.setCircleSize(4.5f);
         dataSet.setColor(Color.rgb(255, 0, 0));
@@ -235,20 +482,10 @@ public class HistoryFragment extends Fragment {
 
         ArrayList<LineDataSet> dataSets = new ArrayList<>();
         dataSets.add(dataSet);
-
-        int xValueCnt = historyData.size();
-        ArrayList<String> xVals = new ArrayList<>();
-        for (int i = 0; i < xValueCnt; i++) {
-            xVals.add(Integer.toString(-xValueCnt+i+1) + timeUnitStr);
-        }
-        LineData data = new LineData(xVals, dataSets);
+        chartData = new LineData(new ArrayList<String>(), dataSets);
 
         chart.setDescription("");
-
-        // Refresh chart
-        chart.setData(data);
-        chart.notifyDataSetChanged();
-        chart.invalidate();
+        chart.setData(chartData);
     }
 
     /**
@@ -256,7 +493,7 @@ public class HistoryFragment extends Fragment {
      * All interaction with the GATT server is done by the main activity, thus, we need
      * to send a message to the main activity to trigger the update. After the data model
      * has been updated, this fragment will receive a notification via the
-     * update notification handler.
+     * model change bus.
      */
     private void triggerHistoryUpdate() {
         if (activity.updateTriggerHandler != null) {
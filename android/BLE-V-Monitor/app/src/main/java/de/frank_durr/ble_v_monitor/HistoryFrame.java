@@ -0,0 +1,201 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+/**
+ * A frame of a framed history transfer as sent by the device through the history data
+ * characteristic.
+ *
+ * Every frame starts with a two byte header:
+ * - byte 0: bits 7-6 frame type, bits 5-4 history, bits 3-0 number of samples
+ * - byte 1: frame number (incremented with every frame of a transfer, modulo 256)
+ * A transfer starts with a start frame (frame number 0) carrying the sequence number of the
+ * first (newest) sample to be sent (uint32). Thus, the client knows the sequence number of
+ * every sample as soon as it arrives, and can resume an interrupted transfer. Newer firmware
+ * appends the age of this sample in seconds (uint32), derived from the minute, hour, and day
+ * phase counters of the device, so the client can timestamp every sample.
+ * A data frame carries up to MAX_SAMPLES signed 16 bit samples in little endian byte order.
+ * Like the per-sample histories, samples are sent backwards in history (newest first).
+ * The end frame carries the sequence number of the first (newest) sample sent (uint32) and
+ * the total number of samples sent (uint16).
+ */
+public class HistoryFrame {
+
+    public enum Type {start, data, end}
+
+    public static final int HEADER_SIZE = 2;
+    public static final int MAX_SAMPLES = 9;
+    // A frame fits into a single ATT notification/indication with the default MTU.
+    public static final int MAX_SIZE = HEADER_SIZE + 2*MAX_SAMPLES;
+    public static final int START_FRAME_SIZE = HEADER_SIZE + 4;
+    public static final int START_FRAME_WITH_AGE_SIZE = START_FRAME_SIZE + 4;
+    public static final int END_FRAME_SIZE = HEADER_SIZE + 4 + 2;
+
+    // Age of a start frame without age.
+    public static final long UNKNOWN_AGE = -1;
+
+    static private final int FRAME_TYPE_DATA = 0x00;
+    static private final int FRAME_TYPE_END = 0x40;
+    static private final int FRAME_TYPE_START = 0x80;
+    static private final int FRAME_TYPE_MASK = 0xc0;
+
+    public final Type type;
+    public final HistoryType historyType;
+    public final int frameNo;
+
+    // Samples of a data frame (newest first).
+    public final int[] samples;
+
+    // Fields of the start frame (startSeqNo, startAge) and end frame.
+    public final long startSeqNo;
+    public final int sampleCount;
+
+    // Age of the first sample in seconds, or UNKNOWN_AGE.
+    public final long startAge;
+
+    private HistoryFrame(Type type, HistoryType historyType, int frameNo, int[] samples,
+                         long startSeqNo, int sampleCount, long startAge) {
+        this.type = type;
+        this.historyType = historyType;
+        this.frameNo = frameNo;
+        this.samples = samples;
+        this.startSeqNo = startSeqNo;
+        this.sampleCount = sampleCount;
+        this.startAge = startAge;
+    }
+
+    /**
+     * Decode a frame.
+     *
+     * @param value value of the history data characteristic
+     * @return the decoded frame, or null if the value is not a valid frame
+     */
+    public static HistoryFrame decode(byte[] value) {
+        if (value == null || value.length < HEADER_SIZE) {
+            return null;
+        }
+
+        int header = value[0] & 0xff;
+        HistoryType historyType = GattProfile.getHistoryType((header>>4) & 0x03);
+        int count = header & 0x0f;
+        int frameNo = value[1] & 0xff;
+        if (historyType == null) {
+            return null;
+        }
+
+        switch (header & FRAME_TYPE_MASK) {
+            case FRAME_TYPE_START:
+                if (value.length < START_FRAME_SIZE) {
+                    return null;
+                }
+                long startAge = (value.length >= START_FRAME_WITH_AGE_SIZE ?
+                        GattProfile.decodeUint32(value, START_FRAME_SIZE) : UNKNOWN_AGE);
+                return new HistoryFrame(Type.start, historyType, frameNo, null,
+                        GattProfile.decodeUint32(value, HEADER_SIZE), 0, startAge);
+            case FRAME_TYPE_DATA:
+                if (count > MAX_SAMPLES || value.length < HEADER_SIZE + 2*count) {
+                    return null;
+                }
+                int[] samples = new int[count];
+                for (int i = 0; i < count; i++) {
+                    samples[i] = GattProfile.decodeSint16(value, HEADER_SIZE + 2*i);
+                }
+                return new HistoryFrame(Type.data, historyType, frameNo, samples, 0, count,
+                        UNKNOWN_AGE);
+            case FRAME_TYPE_END:
+                if (value.length < END_FRAME_SIZE) {
+                    return null;
+                }
+                long startSeqNo = GattProfile.decodeUint32(value, HEADER_SIZE);
+                int sampleCount = (value[HEADER_SIZE+4] & 0xff) |
+                        ((value[HEADER_SIZE+5] & 0xff)<<8);
+                return new HistoryFrame(Type.end, historyType, frameNo, null, startSeqNo,
+                        sampleCount, UNKNOWN_AGE);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Encode a start frame.
+     *
+     * @param historyType the history
+     * @param frameNo frame number
+     * @param startSeqNo sequence number of the first sample to be sent
+     * @param startAge age of the first sample in seconds, or UNKNOWN_AGE to encode a
+     *                 start frame without age
+     * @return the encoded frame
+     */
+    public static byte[] encodeStart(HistoryType historyType, int frameNo, long startSeqNo,
+                                     long startAge) {
+        byte[] frame = new byte[startAge == UNKNOWN_AGE ? START_FRAME_SIZE :
+                START_FRAME_WITH_AGE_SIZE];
+        frame[0] = (byte) (FRAME_TYPE_START | (historyType.ordinal()<<4));
+        frame[1] = (byte) frameNo;
+        GattProfile.encodeUint32(startSeqNo, frame, HEADER_SIZE);
+        if (startAge != UNKNOWN_AGE) {
+            GattProfile.encodeUint32(startAge, frame, START_FRAME_SIZE);
+        }
+
+        return frame;
+    }
+
+    /**
+     * Encode a data frame.
+     *
+     * @param historyType the history
+     * @param frameNo frame number
+     * @param samples samples (newest first)
+     * @param count number of samples (at most MAX_SAMPLES)
+     * @return the encoded frame
+     */
+    public static byte[] encodeData(HistoryType historyType, int frameNo, int[] samples,
+                                    int count) {
+        byte[] frame = new byte[HEADER_SIZE + 2*count];
+        frame[0] = (byte) (FRAME_TYPE_DATA | (historyType.ordinal()<<4) | count);
+        frame[1] = (byte) frameNo;
+        for (int i = 0; i < count; i++) {
+            frame[HEADER_SIZE + 2*i] = (byte) samples[i];
+            frame[HEADER_SIZE + 2*i + 1] = (byte) (samples[i]>>8);
+        }
+
+        return frame;
+    }
+
+    /**
+     * Encode an end frame.
+     *
+     * @param historyType the history
+     * @param frameNo frame number
+     * @param startSeqNo sequence number of the first sample sent
+     * @param sampleCount number of samples sent
+     * @return the encoded frame
+     */
+    public static byte[] encodeEnd(HistoryType historyType, int frameNo, long startSeqNo,
+                                   int sampleCount) {
+        byte[] frame = new byte[END_FRAME_SIZE];
+        frame[0] = (byte) (FRAME_TYPE_END | (historyType.ordinal()<<4));
+        frame[1] = (byte) frameNo;
+        GattProfile.encodeUint32(startSeqNo, frame, HEADER_SIZE);
+        frame[HEADER_SIZE+4] = (byte) sampleCount;
+        frame[HEADER_SIZE+5] = (byte) (sampleCount>>8);
+
+        return frame;
+    }
+}
@@ -0,0 +1,388 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Rollups (min, max, mean, last) of the voltage per hour, day, and week, maintained
+ * incrementally from the minutely samples of a device.
+ *
+ * The device only records a single voltage reading at the end of every hour and day, and
+ * the minutes and hours in between are lost once its minutely and hourly rings wrap around.
+ * Instead, every minutely sample stored on the phone updates the rollups of its hour, day,
+ * and week. The hourly and daily samples of the device only backfill hours and days without
+ * minutely samples.
+ *
+ * The rollups of a device and resolution are kept in a file of fixed-size records indexed
+ * by the number of the hour, day, or week (local time; weeks start on Monday) relative to
+ * the first one. Thus, updating a rollup takes O(1) time. Consecutive samples of the same
+ * period are aggregated in memory and written back by flush().
+ */
+public class HistoryRollups {
+
+    public enum Resolution {hour, day, week}
+
+    /**
+     * The rollup of one period.
+     */
+    public static class Rollup {
+        // Start of the period in milliseconds since the epoch.
+        public final long startTime;
+        public final int min;
+        public final int max;
+        public final int last;
+        // Number of minutely samples of the period; 0 if backfilled from a device sample.
+        public final int count;
+        private final long sum;
+
+        Rollup(long startTime, int min, int max, int last, int count, long sum) {
+            this.startTime = startTime;
+            this.min = min;
+            this.max = max;
+            this.last = last;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public boolean isBackfilled() {
+            return (count == 0);
+        }
+
+        public double getMean() {
+            return (count == 0 ? last : (double) sum/count);
+        }
+    }
+
+    // Header: number of the first period (int64).
+    static private final int HEADER_SIZE = 8;
+
+    // Record: sum (int32), count (uint16), flags (uint16), min, max, last (sint16 each),
+    // reserved (uint16).
+    static private final int RECORD_SIZE = 16;
+
+    static private final int FLAG_MINUTELY = 0x01;
+    static private final int FLAG_BACKFILLED = 0x02;
+
+    // Periods too far from the first period (e.g., after the clock has been set wrongly)
+    // are ignored rather than growing the file. About 20 years of hours.
+    static final long MAX_PERIODS = 20*366*24;
+
+    // The first period of a new file leaves room for backfilling from the oldest daily
+    // sample of the device.
+    static private final long BACKFILL_HORIZON =
+            GattProfile.HISTORY_RING_SIZE*GattProfile.getSampleInterval(HistoryType.daily);
+
+    // 1970-01-01 was a Thursday. Weeks start on Monday.
+    static private final long WEEK_OFFSET = 3*24*60*60*1000L;
+
+    private final File dir;
+    private final TimeZone timeZone;
+
+    private final HashMap<String, Series> series = new HashMap<>();
+
+    /**
+     * The rollups of one device and resolution, caching the period updated last.
+     */
+    private class Series {
+        final Resolution resolution;
+        final RandomAccessFile file;
+        long firstPeriod = -1;
+
+        // Period updated last (-1 if none) and its aggregate.
+        long period = -1;
+        boolean dirty = false;
+        int flags;
+        long sum;
+        int count;
+        int min;
+        int max;
+        int last;
+
+        Series(File path, Resolution resolution) throws IOException {
+            this.resolution = resolution;
+            file = new RandomAccessFile(path, "rw");
+            if (file.length() >= HEADER_SIZE) {
+                file.seek(0);
+                firstPeriod = file.readLong();
+            }
+        }
+
+        /**
+         * Make the period of a point in time the cached period.
+         *
+         * @return false, if the period cannot be stored
+         */
+        boolean load(long time) throws IOException {
+            long p = getPeriod(resolution, time);
+            if (p == period) {
+                return true;
+            }
+            if (firstPeriod < 0) {
+                firstPeriod = getPeriod(resolution, time - BACKFILL_HORIZON);
+                file.seek(0);
+                file.writeLong(firstPeriod);
+            }
+            if (p < firstPeriod || p - firstPeriod >= MAX_PERIODS) {
+                return false;
+            }
+
+            write();
+            period = p;
+            long offset = HEADER_SIZE + (p - firstPeriod)*RECORD_SIZE;
+            if (offset + RECORD_SIZE > file.length()) {
+                // New period.
+                flags = 0;
+                sum = count = min = max = last = 0;
+                return true;
+            }
+
+            byte[] record = new byte[RECORD_SIZE];
+            file.seek(offset);
+            file.readFully(record);
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            sum = buffer.getInt();
+            count = buffer.getShort() & 0xffff;
+            flags = buffer.getShort() & 0xffff;
+            min = buffer.getShort();
+            max = buffer.getShort();
+            last = buffer.getShort();
+            return true;
+        }
+
+        /**
+         * Write the cached period back to the file.
+         */
+        void write() throws IOException {
+            if (!dirty) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+            buffer.putInt((int) sum);
+            buffer.putShort((short) count);
+            buffer.putShort((short) flags);
+            buffer.putShort((short) min);
+            buffer.putShort((short) max);
+            buffer.putShort((short) last);
+            file.seek(HEADER_SIZE + (period - firstPeriod)*RECORD_SIZE);
+            file.write(buffer.array());
+            dirty = false;
+        }
+
+        void add(long time, int value) throws IOException {
+            if (!load(time)) {
+                return;
+            }
+            if ((flags & FLAG_MINUTELY) == 0) {
+                // First minutely sample replaces a backfilled reading.
+                flags = FLAG_MINUTELY;
+                sum = count = 0;
+                min = max = value;
+            }
+            sum += value;
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            last = value;
+            dirty = true;
+        }
+
+        void backfill(long time, int value) throws IOException {
+            if (!load(time) || flags != 0) {
+                return;
+            }
+            flags = FLAG_BACKFILLED;
+            sum = count = 0;
+            min = max = last = value;
+            dirty = true;
+        }
+
+        void read(long fromPeriod, long toPeriod, List<Rollup> rollups) throws IOException {
+            write();
+            if (firstPeriod < 0) {
+                return;
+            }
+            long first = Math.max(fromPeriod, firstPeriod);
+            long end = Math.min(toPeriod,
+                    firstPeriod + (file.length() - HEADER_SIZE)/RECORD_SIZE);
+            if (first >= end) {
+                return;
+            }
+
+            byte[] records = new byte[(int) (end - first)*RECORD_SIZE];
+            file.seek(HEADER_SIZE + (first - firstPeriod)*RECORD_SIZE);
+            file.readFully(records);
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            for (long p = first; p < end; p++) {
+                int s = buffer.getInt();
+                int c = buffer.getShort() & 0xffff;
+                int f = buffer.getShort() & 0xffff;
+                int mn = buffer.getShort();
+                int mx = buffer.getShort();
+                int l = buffer.getShort();
+                buffer.getShort();
+                if (f != 0) {
+                    rollups.add(new Rollup(getStartTime(resolution, p), mn, mx, l, c, s));
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dir directory containing the rollup files
+     */
+    public HistoryRollups(File dir) {
+        this(dir, TimeZone.getDefault());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dir directory containing the rollup files
+     * @param timeZone time zone defining the start of hours, days, and weeks
+     */
+    public HistoryRollups(File dir, TimeZone timeZone) {
+        this.dir = dir;
+        this.timeZone = timeZone;
+    }
+
+    private long getPeriodLength(Resolution resolution) {
+        switch (resolution) {
+            case hour:
+                return 60*60*1000L;
+            case day:
+                return 24*60*60*1000L;
+            default:
+                return 7*24*60*60*1000L;
+        }
+    }
+
+    private long getPeriod(Resolution resolution, long time) {
+        long localTime = time + timeZone.getOffset(time);
+        if (resolution == Resolution.week) {
+            localTime += WEEK_OFFSET;
+        }
+        return Math.max(0, localTime)/getPeriodLength(resolution);
+    }
+
+    private long getStartTime(Resolution resolution, long period) {
+        long localTime = period*getPeriodLength(resolution);
+        if (resolution == Resolution.week) {
+            localTime -= WEEK_OFFSET;
+        }
+        return localTime - timeZone.getOffset(localTime);
+    }
+
+    private Series getSeries(String deviceAddress, Resolution resolution) throws IOException {
+        String name = deviceAddress.replace(':', '_') + "_rollup_" + resolution.toString() +
+                ".dat";
+        Series s = series.get(name);
+        if (s == null) {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir.getPath());
+            }
+            s = new Series(new File(dir, name), resolution);
+            series.put(name, s);
+        }
+        return s;
+    }
+
+    /**
+     * Add a minutely sample to the rollups of its hour, day, and week.
+     *
+     * @param deviceAddress address of the device
+     * @param time timestamp of the sample in milliseconds since the epoch
+     * @param value value of the sample
+     * @throws IOException if the rollups cannot be updated
+     */
+    synchronized public void add(String deviceAddress, long time, int value)
+            throws IOException {
+        if (value < 0) {
+            // Invalid reading of the device (e.g., before the first sample).
+            return;
+        }
+        for (Resolution resolution : Resolution.values()) {
+            getSeries(deviceAddress, resolution).add(time, value);
+        }
+    }
+
+    /**
+     * Backfill the rollup of an hour or day without minutely samples with a sample of the
+     * hourly or daily history of the device.
+     *
+     * @param deviceAddress address of the device
+     * @param historyType the history of the sample (minutely samples are ignored)
+     * @param time timestamp of the sample in milliseconds since the epoch
+     * @param value value of the sample
+     * @throws IOException if the rollups cannot be updated
+     */
+    synchronized public void backfill(String deviceAddress, HistoryType historyType,
+                                      long time, int value) throws IOException {
+        if (value < 0) {
+            return;
+        }
+        switch (historyType) {
+            case hourly:
+                getSeries(deviceAddress, Resolution.hour).backfill(time, value);
+                break;
+            case daily:
+                getSeries(deviceAddress, Resolution.day).backfill(time, value);
+                break;
+        }
+    }
+
+    /**
+     * Write the cached rollups back to their files.
+     *
+     * @throws IOException if the rollups cannot be written
+     */
+    synchronized public void flush() throws IOException {
+        for (Series s : series.values()) {
+            s.write();
+        }
+    }
+
+    /**
+     * Get the rollups of a time range.
+     *
+     * @param deviceAddress address of the device
+     * @param resolution the resolution
+     * @param fromTime start of the range in milliseconds since the epoch (inclusive)
+     * @param toTime end of the range in milliseconds since the epoch (exclusive)
+     * @return the rollups of the periods overlapping the range in chronological order;
+     * periods without samples are omitted
+     * @throws IOException if the rollups cannot be read
+     */
+    synchronized public List<Rollup> read(String deviceAddress, Resolution resolution,
+                                          long fromTime, long toTime) throws IOException {
+        List<Rollup> rollups = new ArrayList<>();
+        getSeries(deviceAddress, resolution).read(getPeriod(resolution, fromTime),
+                getPeriod(resolution, toTime-1)+1, rollups);
+        return rollups;
+    }
+}
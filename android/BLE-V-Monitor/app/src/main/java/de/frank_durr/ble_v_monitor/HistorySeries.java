@@ -0,0 +1,128 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+/**
+ * A series of voltage samples in chronological order, stored like the history ring buffers
+ * of the firmware as 16 bit values (millivolts) in a ring of fixed capacity.
+ *
+ * Samples can be appended (newest) and prepended (oldest, e.g., when a history is received
+ * newest first) without allocating memory. Consumers read the samples in place by index.
+ * For saving the series, it is encoded by SeriesCodec (about one byte per sample).
+ */
+public class HistorySeries {
+
+    private final short[] values;
+
+    // Index of the oldest sample in the ring, and number of samples.
+    private int first = 0;
+    private int size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity maximum number of samples
+     */
+    public HistorySeries(int capacity) {
+        values = new short[capacity];
+    }
+
+    public int getCapacity() {
+        return values.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return (size == 0);
+    }
+
+    /**
+     * Get a sample.
+     *
+     * @param i index of the sample (0 is the oldest sample)
+     * @return the sample in millivolts
+     */
+    public int get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+        }
+
+        return values[(first+i)%values.length];
+    }
+
+    /**
+     * Append a sample as newest sample. If the series is full, the oldest sample is dropped.
+     *
+     * @param value the sample in millivolts
+     */
+    public void addLast(int value) {
+        if (values.length == 0) {
+            return;
+        }
+
+        values[(first+size)%values.length] = (short) value;
+        if (size < values.length) {
+            size++;
+        } else {
+            first = (first+1)%values.length;
+        }
+    }
+
+    /**
+     * Prepend a sample as oldest sample. If the series is full, the sample is dropped.
+     *
+     * @param value the sample in millivolts
+     */
+    public void addFirst(int value) {
+        if (size == values.length) {
+            return;
+        }
+
+        first = (first+values.length-1)%values.length;
+        values[first] = (short) value;
+        size++;
+    }
+
+    public void clear() {
+        first = 0;
+        size = 0;
+    }
+
+    /**
+     * Encode the series compactly, e.g., to save it (cf. SeriesCodec).
+     *
+     * @return the encoded series
+     */
+    public byte[] encode() {
+        return SeriesCodec.encodeValues(this);
+    }
+
+    /**
+     * Decode a series encoded by encode().
+     *
+     * @param encoded the encoded series
+     * @return the series, or null if the encoded series is malformed
+     */
+    public static HistorySeries decode(byte[] encoded) {
+        return SeriesCodec.decodeValues(encoded);
+    }
+}
@@ -0,0 +1,588 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Local storage of the histories retrieved from BLE-V-Monitor devices.
+ *
+ * The samples of each history of a device are appended to a directory of memory-mapped
+ * segment files. Each segment has a fixed size of SEGMENT_RECORDS records of the sequence
+ * number (uint32), the timestamp (uint32, seconds since the epoch), the value (sint16), and
+ * a check value (uint16) of a sample. All segments except the last one are full, so
+ * opening a history only scans the last segment, and samples are read sequentially from
+ * the mapped segments without deserializing the whole history.
+ *
+ * Only the last segment takes appends. As soon as a segment is full (sealed), it is
+ * compressed with SeriesCodec into blocks of SeriesCodec.BLOCK_SIZE records, which takes
+ * about a tenth of the space of the raw records. A compressed segment starts with the
+ * offsets of its blocks (int32 each), so reads decode only the blocks they access.
+ *
+ * Timestamps never decrease within a history. Thus, the samples of a time range are found
+ * by binary search over the mapped records in O(log n).
+ *
+ * Appended minutely samples update the rollups of their hour, day, and week; hourly and
+ * daily samples backfill rollups without minutely samples (cf. HistoryRollups).
+ *
+ * Samples are identified by their sequence numbers, so samples already stored are not
+ * appended again when the same history is retrieved repeatedly. The check value is written
+ * last. A record left partially written by a crash does not pass the check, and the
+ * history is truncated before it when the history is opened again. Since a retrieved
+ * history always covers more than the samples lost this way, they are stored again with
+ * the next sync.
+ *
+ * There must be only one store per directory in a process, cf. getInstance().
+ */
+public class HistoryStore {
+
+    /**
+     * Visitor of stored samples.
+     */
+    public interface Visitor {
+        /**
+         * Called for every visited sample in chronological order.
+         *
+         * @param seqNo sequence number of the sample
+         * @param time timestamp of the sample in milliseconds since the epoch
+         * @param value value of the sample
+         */
+        void onSample(long seqNo, long time, int value);
+    }
+
+    // Size of a record: sequence number (4 bytes), timestamp (4 bytes), value (2 bytes),
+    // check value (2 bytes).
+    static private final int RECORD_SIZE = 12;
+
+    // Number of records per segment file (48 kB).
+    static private final int SEGMENT_RECORDS = 4096;
+
+    static private final int SEGMENT_SIZE = SEGMENT_RECORDS*RECORD_SIZE;
+
+    static private final String RAW_SUFFIX = ".seg";
+    static private final String COMPRESSED_SUFFIX = ".cseg";
+    static private final String TMP_SUFFIX = ".tmp";
+
+    // Makes zero-filled records fail the check.
+    static private final int CHECK_SEED = 0x5a5a;
+
+    static private final HashMap<File, HistoryStore> stores = new HashMap<>();
+
+    private final File dir;
+    private final HistoryRollups rollups;
+
+    // Histories opened so far, by directory name.
+    private final HashMap<String, History> histories = new HashMap<>();
+
+    /**
+     * A segment of a history, either raw (mapped records) or compressed.
+     */
+    static private class Segment {
+        // Mapped records; null if the segment is compressed.
+        MappedByteBuffer records;
+
+        // Mapped compressed segment and the offsets of its blocks.
+        MappedByteBuffer blocks;
+        int[] blockOffsets;
+    }
+
+    /**
+     * A history stored in a directory of segment files.
+     */
+    static private class History {
+        final File dir;
+
+        // Segments; sealed segments are mapped read-only on demand (null before).
+        final ArrayList<Segment> segments = new ArrayList<>();
+
+        // Number of records in all segments.
+        long count = 0;
+
+        // Last decoded block of a compressed segment, as raw records.
+        int decodedSegment = -1;
+        int decodedBlock = -1;
+        final ByteBuffer decodedRecords =
+                ByteBuffer.allocate(SeriesCodec.BLOCK_SIZE*RECORD_SIZE);
+
+        // Location of a record set by locate().
+        ByteBuffer recordBuffer;
+        int recordOffset;
+
+        History(File dir) {
+            this.dir = dir;
+        }
+
+        File getSegmentFile(int segment, String suffix) {
+            return new File(dir, String.format(Locale.US, "%08d", segment) + suffix);
+        }
+
+        static MappedByteBuffer map(File file, boolean writable, long size)
+                throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+            try {
+                // The mapping stays valid after the file has been closed.
+                return raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE :
+                        FileChannel.MapMode.READ_ONLY, 0, size < 0 ? raf.length() : size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        static int check(int seqNo, int time, short value) {
+            return (seqNo ^ (seqNo >>> 16) ^ time ^ (time >>> 16) ^ value ^ CHECK_SEED) &
+                    0xffff;
+        }
+
+        static boolean isValid(MappedByteBuffer segment, int record) {
+            int offset = record*RECORD_SIZE;
+            int seqNo = segment.getInt(offset);
+            int time = segment.getInt(offset + 4);
+            short value = segment.getShort(offset + 8);
+            return (segment.getShort(offset + 10) & 0xffff) == check(seqNo, time, value);
+        }
+
+        /**
+         * Find the segments and recover the end of the last segment. Sealed segments not
+         * compressed yet (e.g., after a crash) are compressed.
+         */
+        void open() throws IOException {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir.getPath());
+            }
+
+            int segmentCount = 0;
+            while (getSegmentFile(segmentCount, RAW_SUFFIX).exists() ||
+                    getSegmentFile(segmentCount, COMPRESSED_SUFFIX).exists()) {
+                segments.add(null);
+                File tmp = getSegmentFile(segmentCount, COMPRESSED_SUFFIX + TMP_SUFFIX);
+                if (tmp.exists() && !tmp.delete()) {
+                    throw new IOException("Cannot delete " + tmp.getPath());
+                }
+                segmentCount++;
+            }
+            if (segmentCount == 0) {
+                return;
+            }
+
+            for (int i = 0; i < segmentCount-1; i++) {
+                compress(i);
+            }
+
+            if (!getSegmentFile(segmentCount-1, RAW_SUFFIX).exists()) {
+                // The last segment is full and has been compressed.
+                count = (long) segmentCount*SEGMENT_RECORDS;
+                return;
+            }
+
+            Segment segment = new Segment();
+            segment.records = map(getSegmentFile(segmentCount-1, RAW_SUFFIX), true,
+                    SEGMENT_SIZE);
+            segments.set(segmentCount-1, segment);
+            MappedByteBuffer last = segment.records;
+            int tail = 0;
+            while (tail < SEGMENT_RECORDS && isValid(last, tail)) {
+                tail++;
+            }
+
+            // Clear the rest of the segment, so valid records of an earlier crash behind an
+            // invalid record are not taken for new records later.
+            for (int i = tail*RECORD_SIZE; i < SEGMENT_SIZE; i++) {
+                if (last.get(i) != 0) {
+                    for (int j = tail*RECORD_SIZE; j < SEGMENT_SIZE; j++) {
+                        last.put(j, (byte) 0);
+                    }
+                    break;
+                }
+            }
+
+            count = (long) (segmentCount-1)*SEGMENT_RECORDS + tail;
+        }
+
+        /**
+         * Compress a sealed (full) raw segment. The compressed segment is written to a
+         * temporary file first and renamed, so a crash leaves either the raw or the
+         * compressed segment.
+         */
+        void compress(int segment) throws IOException {
+            File raw = getSegmentFile(segment, RAW_SUFFIX);
+            File compressed = getSegmentFile(segment, COMPRESSED_SUFFIX);
+            if (!compressed.exists()) {
+                MappedByteBuffer records = map(raw, false, SEGMENT_SIZE);
+                int blockCount = SEGMENT_RECORDS/SeriesCodec.BLOCK_SIZE;
+                ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+                ByteBuffer index = ByteBuffer.allocate(4*blockCount);
+                SeriesCodec.BlockEncoder encoder = new SeriesCodec.BlockEncoder();
+                int headerSize = 4*blockCount;
+                for (int record = 0; record < SEGMENT_RECORDS; record++) {
+                    int offset = record*RECORD_SIZE;
+                    encoder.add(records.getInt(offset) & 0xffffffffL,
+                            records.getInt(offset + 4) & 0xffffffffL,
+                            records.getShort(offset + 8));
+                    if (encoder.isFull()) {
+                        index.putInt(headerSize + blocks.size());
+                        blocks.write(encoder.toByteArray());
+                        encoder.reset();
+                    }
+                }
+
+                File tmp = getSegmentFile(segment, COMPRESSED_SUFFIX + TMP_SUFFIX);
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    out.write(index.array());
+                    blocks.writeTo(out);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(compressed)) {
+                    throw new IOException("Cannot rename " + tmp.getPath());
+                }
+            }
+
+            if (raw.exists() && !raw.delete()) {
+                throw new IOException("Cannot delete " + raw.getPath());
+            }
+            segments.set(segment, null);
+            if (decodedSegment == segment) {
+                decodedSegment = -1;
+            }
+        }
+
+        Segment getSegment(int segment) throws IOException {
+            Segment s = segments.get(segment);
+            if (s == null) {
+                s = new Segment();
+                File compressed = getSegmentFile(segment, COMPRESSED_SUFFIX);
+                if (compressed.exists()) {
+                    s.blocks = map(compressed, false, -1);
+                    s.blockOffsets = new int[SEGMENT_RECORDS/SeriesCodec.BLOCK_SIZE];
+                    for (int i = 0; i < s.blockOffsets.length; i++) {
+                        s.blockOffsets[i] = s.blocks.getInt(4*i);
+                    }
+                } else {
+                    s.records = map(getSegmentFile(segment, RAW_SUFFIX), false, SEGMENT_SIZE);
+                }
+                segments.set(segment, s);
+            }
+            return s;
+        }
+
+        /**
+         * Locate a record. Afterwards, the record is at recordOffset of recordBuffer. Blocks
+         * of compressed segments are decoded on demand.
+         */
+        void locate(long index) throws IOException {
+            int segment = (int) (index/SEGMENT_RECORDS);
+            int record = (int) (index%SEGMENT_RECORDS);
+            Segment s = getSegment(segment);
+            if (s.records != null) {
+                recordBuffer = s.records;
+                recordOffset = record*RECORD_SIZE;
+                return;
+            }
+
+            int block = record/SeriesCodec.BLOCK_SIZE;
+            if (segment != decodedSegment || block != decodedBlock) {
+                SeriesCodec.BlockDecoder decoder = new SeriesCodec.BlockDecoder(s.blocks,
+                        s.blockOffsets[block], SeriesCodec.BLOCK_SIZE);
+                decodedRecords.clear();
+                while (decoder.next()) {
+                    decodedRecords.putInt((int) decoder.getSeqNo());
+                    decodedRecords.putInt((int) decoder.getTime());
+                    decodedRecords.putShort((short) decoder.getValue());
+                    decodedRecords.putShort((short) 0);
+                }
+                decodedSegment = segment;
+                decodedBlock = block;
+            }
+            recordBuffer = decodedRecords;
+            recordOffset = (record%SeriesCodec.BLOCK_SIZE)*RECORD_SIZE;
+        }
+
+        void append(long seqNo, long time, int value) throws IOException {
+            int segment = (int) (count/SEGMENT_RECORDS);
+            int record = (int) (count%SEGMENT_RECORDS);
+            if (segment == segments.size()) {
+                // The last segment is full (sealed). Start a new one, and compress the
+                // sealed one.
+                Segment s = new Segment();
+                s.records = map(getSegmentFile(segment, RAW_SUFFIX), true, SEGMENT_SIZE);
+                segments.add(s);
+                if (segment > 0) {
+                    compress(segment-1);
+                }
+            }
+
+            MappedByteBuffer buffer = segments.get(segment).records;
+            int offset = record*RECORD_SIZE;
+            buffer.putInt(offset, (int) seqNo);
+            buffer.putInt(offset + 4, (int) (time/1000));
+            buffer.putShort(offset + 8, (short) value);
+            // Write the check value last.
+            buffer.putShort(offset + 10, (short) check((int) seqNo, (int) (time/1000),
+                    (short) value));
+            count++;
+        }
+
+        void scan(long first, long last, Visitor visitor) throws IOException {
+            for (long i = first; i < last; i++) {
+                locate(i);
+                visitor.onSample(recordBuffer.getInt(recordOffset) & 0xffffffffL,
+                        (recordBuffer.getInt(recordOffset + 4) & 0xffffffffL)*1000,
+                        recordBuffer.getShort(recordOffset + 8));
+            }
+        }
+
+        long getTime(long index) throws IOException {
+            locate(index);
+            return (recordBuffer.getInt(recordOffset + 4) & 0xffffffffL)*1000;
+        }
+
+        /**
+         * Binary search for the first sample not older than a point in time.
+         */
+        long findIndex(long time) throws IOException {
+            long low = 0;
+            long high = count;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (getTime(mid) < time) {
+                    low = mid+1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        long getNewestSeqNo() throws IOException {
+            if (count == 0) {
+                return -1;
+            }
+            locate(count-1);
+            return recordBuffer.getInt(recordOffset) & 0xffffffffL;
+        }
+    }
+
+    /**
+     * Get the store of a directory.
+     *
+     * @param dir directory containing the histories
+     * @return the store; all calls with the same directory return the same store
+     */
+    synchronized static public HistoryStore getInstance(File dir) {
+        File key = dir.getAbsoluteFile();
+        HistoryStore store = stores.get(key);
+        if (store == null) {
+            store = new HistoryStore(key);
+            stores.put(key, store);
+        }
+        return store;
+    }
+
+    /**
+     * Constructor. Use getInstance() unless the store is the only one of the directory.
+     *
+     * @param dir directory containing the histories
+     */
+    public HistoryStore(File dir) {
+        this.dir = dir;
+        rollups = new HistoryRollups(dir);
+    }
+
+    /**
+     * Get the rollups of the stored histories.
+     *
+     * @return the rollups
+     */
+    public HistoryRollups getRollups() {
+        return rollups;
+    }
+
+    private History getHistory(String deviceAddress, HistoryType historyType)
+            throws IOException {
+        String name = deviceAddress.replace(':', '_') + "_" + historyType.toString();
+        History history = histories.get(name);
+        if (history == null) {
+            history = new History(new File(dir, name));
+            history.open();
+            histories.put(name, history);
+        }
+        return history;
+    }
+
+    /**
+     * Get the sequence number of the newest stored sample of a history.
+     *
+     * @param deviceAddress address of the device
+     * @param historyType the history
+     * @return the sequence number, or -1 if no samples have been stored
+     * @throws IOException if the history cannot be read
+     */
+    synchronized public long getNewestSeqNo(String deviceAddress, HistoryType historyType)
+            throws IOException {
+        return getHistory(deviceAddress, historyType).getNewestSeqNo();
+    }
+
+    /**
+     * Get the timestamp of the newest stored sample of a history.
+     *
+     * @param deviceAddress address of the device
+     * @param historyType the history
+     * @return the timestamp in milliseconds since the epoch, or -1 if no samples have been
+     * stored
+     * @throws IOException if the history cannot be read
+     */
+    synchronized public long getNewestTime(String deviceAddress, HistoryType historyType)
+            throws IOException {
+        History stored = getHistory(deviceAddress, historyType);
+        return (stored.count == 0 ? -1 : stored.getTime(stored.count-1));
+    }
+
+    /**
+     * Get the number of stored samples of a history.
+     *
+     * @param deviceAddress address of the device
+     * @param historyType the history
+     * @return the number of samples
+     * @throws IOException if the history cannot be read
+     */
+    synchronized public long getCount(String deviceAddress, HistoryType historyType)
+            throws IOException {
+        return getHistory(deviceAddress, historyType).count;
+    }
+
+    /**
+     * Append the samples of a retrieved history that have not been stored before.
+     * If the newest sequence number is smaller than the newest stored sequence number,
+     * the device has been reset, and all samples are appended. The timestamps of older
+     * samples are derived from the timestamp of the newest sample and the sample interval
+     * of the history. Timestamps older than the newest stored timestamp (e.g., if the clock
+     * of the phone has been set back) are raised to the newest stored timestamp.
+     *
+     * @param deviceAddress address of the device
+     * @param historyType the history
+     * @param newestSeqNo sequence number of the newest (last) sample of the history
+     * @param newestTime timestamp of the newest sample in milliseconds since the epoch
+     * @param history the history in chronological order
+     * @return the number of appended samples
+     * @throws IOException if the history cannot be written
+     */
+    synchronized public int append(String deviceAddress, HistoryType historyType,
+                                   long newestSeqNo, long newestTime, HistorySeries history)
+            throws IOException {
+        History stored = getHistory(deviceAddress, historyType);
+        long storedSeqNo = stored.getNewestSeqNo();
+        int first = 0;
+        if (storedSeqNo >= 0 && newestSeqNo >= storedSeqNo) {
+            long newCount = newestSeqNo - storedSeqNo;
+            first = (int) Math.max(0, history.size() - newCount);
+        }
+
+        int count = history.size() - first;
+        long interval = GattProfile.getSampleInterval(historyType);
+        long minTime = (stored.count == 0 ? 0 : stored.getTime(stored.count-1));
+        for (int i = first; i < history.size(); i++) {
+            int age = history.size()-1-i;
+            long time = Math.max(minTime, newestTime - age*interval);
+            stored.append(newestSeqNo - age, time, history.get(i));
+            if (historyType == HistoryType.minutely) {
+                rollups.add(deviceAddress, time, history.get(i));
+            } else {
+                rollups.backfill(deviceAddress, historyType, time, history.get(i));
+            }
+        }
+        rollups.flush();
+
+        return count;
+    }
+
+    /**
+     * Read the values of a stored history.
+     *
+     * @param deviceAddress address of the device
+     * @param historyType the history
+     * @param maxCount maximum number of values to be read
+     * @return the newest values in chronological order
+     * @throws IOException if the history cannot be read
+     */
+    synchronized public HistorySeries read(String deviceAddress, HistoryType historyType,
+                                           int maxCount) throws IOException {
+        History stored = getHistory(deviceAddress, historyType);
+        int count = (int) Math.min(stored.count, maxCount);
+        final HistorySeries values = new HistorySeries(count);
+        stored.scan(stored.count-count, stored.count, new Visitor() {
+            @Override
+            public void onSample(long seqNo, long time, int value) {
+                values.addLast(value);
+            }
+        });
+
+        return values;
+    }
+
+    /**
+     * Visit stored samples of a history sequentially.
+     *
+     * @param deviceAddress address of the device
+     * @param historyType the history
+     * @param first index of the first visited sample (0 is the oldest stored sample)
+     * @param count maximum number of visited samples
+     * @param visitor the visitor
+     * @throws IOException if the history cannot be read
+     */
+    synchronized public void scan(String deviceAddress, HistoryType historyType, long first,
+                                  long count, Visitor visitor) throws IOException {
+        History stored = getHistory(deviceAddress, historyType);
+        long last = Math.min(stored.count, first + count);
+        stored.scan(Math.max(0, first), last, visitor);
+    }
+
+    /**
+     * Visit the stored samples of a history within a time range sequentially. The first
+     * sample is found by binary search.
+     *
+     * @param deviceAddress address of the device
+     * @param historyType the history
+     * @param fromTime start of the range in milliseconds since the epoch (inclusive)
+     * @param toTime end of the range in milliseconds since the epoch (exclusive)
+     * @param visitor the visitor
+     * @return the number of visited samples
+     * @throws IOException if the history cannot be read
+     */
+    synchronized public long scanRange(String deviceAddress, HistoryType historyType,
+                                       long fromTime, long toTime, Visitor visitor)
+            throws IOException {
+        History stored = getHistory(deviceAddress, historyType);
+        long first = stored.findIndex(fromTime);
+        long last = Math.max(first, stored.findIndex(toTime));
+        stored.scan(first, last, visitor);
+        return last - first;
+    }
+}
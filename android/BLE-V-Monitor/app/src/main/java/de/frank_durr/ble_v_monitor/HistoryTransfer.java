@@ -0,0 +1,501 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reassembles a history from the frames of one or more framed transfers.
+ *
+ * Samples are addressed by the absolute sequence numbers of the history ring buffer of the
+ * device. Each transfer (pass) requests a range [fromSeqNo, toSeqNo] of sequence numbers
+ * and numbers its frames starting at 0. The start frame carries the sequence number of the
+ * newest sample of the pass; since the device fills every data frame except for the last
+ * one completely, the sequence number of each sample can be derived from the frame number.
+ * If the start frame gets lost, the sequence number is taken from the end frame.
+ *
+ * If the start frame carries the age of its first sample, the transfer anchors the history
+ * to wall-clock time: the newest sample was taken at the time the start frame has been
+ * received minus its age. Older samples follow at the sample interval of the history.
+ *
+ * If frames get lost (notifications are not acknowledged by the client), the missing
+ * samples are re-requested as ranges. At the end of a task, the transfer is suspended,
+ * whether it has been completed or interrupted (e.g., because the link broke down or the
+ * task was cancelled). A resumed transfer first requests the samples taken in the meantime,
+ * and then only the samples that have not been received before. Thus, re-using the transfer
+ * of the last sync only retrieves the new samples of the history.
+ */
+public class HistoryTransfer {
+
+    public enum Result {
+        // More frames expected.
+        progress,
+        // Pass finished, but samples are missing. Start the next pass.
+        incomplete,
+        // Complete history received.
+        complete,
+        // Protocol error.
+        error
+    }
+
+    // Maximum number of samples of a history. The device sends at most HISTORY_RING_SIZE-1
+    // samples since the oldest place of the ring buffer is next to be overwritten.
+    static private final int CAPACITY = GattProfile.HISTORY_RING_SIZE-1;
+
+    // Marks samples not received (samples are 16 bit).
+    static private final int NO_SAMPLE = Integer.MIN_VALUE;
+
+    private final HistoryType historyType;
+
+    // Data frames of the current pass, indexed by frame number-1 (null entries are gaps).
+    // Samples of data frames can only be placed after the start or end frame of the pass
+    // has been received.
+    private final List<HistoryFrame> passFrames = new ArrayList<>();
+    private int expectedFrameNo = 0;
+    private long passFromSeqNo = 0;
+    private long passToSeqNo = GattProfile.MAX_SEQ_NO;
+    private boolean passStartKnown = false;
+    private long passStartSeqNo = 0;
+
+    // Window of the history: sequence number of the newest sample and number of samples.
+    // Samples are stored by offset from the newest sample (offset 0 = newest sample).
+    // As long as the oldest sample of the device has not been reached, size is an upper
+    // bound of the number of samples.
+    private boolean windowKnown = false;
+    private long newestSeqNo = 0;
+    private int size = 0;
+    private final int[] values = new int[CAPACITY];
+
+    // Timestamp of the newest sample in milliseconds since the epoch; -1 if unknown.
+    private long newestTime = -1;
+    private final boolean[] received = new boolean[CAPACITY];
+    private int receivedCount = 0;
+
+    // Set if the transfer has been suspended. Newer samples might have been taken by the
+    // device in the meantime.
+    private boolean suspended = false;
+
+    /**
+     * Constructor.
+     *
+     * @param historyType the history to be transferred
+     */
+    public HistoryTransfer(HistoryType historyType) {
+        this.historyType = historyType;
+    }
+
+    public HistoryType getHistoryType() {
+        return historyType;
+    }
+
+    /**
+     * Get the sequence number of the newest sample of the history, which identifies the
+     * samples returned by getHistory().
+     *
+     * @return the sequence number, or -1 if not known yet
+     */
+    public long getNewestSeqNo() {
+        return (windowKnown ? newestSeqNo : -1);
+    }
+
+    /**
+     * Get the timestamp of the newest sample of the history.
+     *
+     * @return the timestamp in milliseconds since the epoch, or -1 if not known (e.g.,
+     * firmware without phase counters)
+     */
+    public long getNewestTime() {
+        return (windowKnown ? newestTime : -1);
+    }
+
+    /**
+     * Get the number of samples received so far. Samples of the current pass are counted
+     * before they can be placed.
+     *
+     * @return the number of samples received
+     */
+    public int getReceivedCount() {
+        int count = receivedCount;
+        for (HistoryFrame frame : passFrames) {
+            if (frame != null) {
+                count += frame.samples.length;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Start a new pass.
+     *
+     * @return the range [fromSeqNo, toSeqNo] to be requested, or null if the complete
+     * history is to be requested
+     */
+    public long[] startPass() {
+        passFrames.clear();
+        expectedFrameNo = 0;
+        passStartKnown = false;
+
+        long[] range = null;
+        if (suspended) {
+            // Resume with the samples taken since the transfer has been interrupted. The
+            // device sends samples up to the newest one.
+            suspended = false;
+            range = new long[] {(newestSeqNo+1) & GattProfile.MAX_SEQ_NO,
+                    GattProfile.MAX_SEQ_NO};
+        } else if (windowKnown) {
+            range = getMissingRange();
+        }
+
+        if (range == null) {
+            passFromSeqNo = 0;
+            passToSeqNo = GattProfile.MAX_SEQ_NO;
+        } else {
+            passFromSeqNo = range[0];
+            passToSeqNo = range[1];
+        }
+
+        return range;
+    }
+
+    /**
+     * Process a frame of the current pass.
+     *
+     * @param frame the frame
+     * @param receiveTime time the frame has been received in milliseconds since the epoch
+     * @return the state of the transfer
+     */
+    public Result onFrame(HistoryFrame frame, long receiveTime) {
+        if (frame.historyType != historyType) {
+            return Result.error;
+        }
+
+        // Frame numbers wrap around after 256 frames. A pass never has that many frames,
+        // so the frame number can be unwrapped relative to the expected frame number.
+        int frameNo = expectedFrameNo + ((frame.frameNo - expectedFrameNo) & 0xff);
+        expectedFrameNo = frameNo+1;
+
+        switch (frame.type) {
+            case start:
+                if (frameNo != 0 || !startPassWindow(frame.startSeqNo)) {
+                    return Result.error;
+                }
+                if (frame.startAge != HistoryFrame.UNKNOWN_AGE) {
+                    // Anchor the newest sample (which is the first sample of the pass or
+                    // newer) to the time of reception.
+                    newestTime = receiveTime - frame.startAge*1000 +
+                            (newestSeqNo - frame.startSeqNo)*
+                                    GattProfile.getSampleInterval(historyType);
+                }
+                return Result.progress;
+            case data:
+                if (frameNo == 0) {
+                    return Result.error;
+                }
+                while (passFrames.size() < frameNo-1) {
+                    // Gap. Frames have been lost.
+                    passFrames.add(null);
+                }
+                passFrames.add(frame);
+                return Result.progress;
+            default:
+                return finishPass(frameNo, frame.startSeqNo, frame.sampleCount);
+        }
+    }
+
+    /**
+     * Set the newest sample of the current pass, and move the window of the history
+     * accordingly if the device has taken newer samples.
+     *
+     * @param startSeqNo sequence number of the newest sample of the pass
+     * @return false, if the device has lost samples it has sent before (e.g., after a reset)
+     */
+    private boolean startPassWindow(long startSeqNo) {
+        if (passStartKnown) {
+            return (startSeqNo == passStartSeqNo);
+        }
+        passStartKnown = true;
+        passStartSeqNo = startSeqNo;
+
+        if (!windowKnown) {
+            startWindow(startSeqNo);
+            return true;
+        }
+
+        if (startSeqNo < newestSeqNo) {
+            if (passToSeqNo == GattProfile.MAX_SEQ_NO) {
+                // The device has lost samples sent before (e.g., it has been reset after a
+                // battery swap). Its history starts over.
+                startWindow(startSeqNo);
+                newestTime = -1;
+                return true;
+            }
+            // Only passes requesting up to the newest sample can detect lost samples.
+            return (passToSeqNo < newestSeqNo);
+        }
+
+        int shift = (int) Math.min(CAPACITY, startSeqNo - newestSeqNo);
+        if (shift == 0) {
+            return true;
+        }
+        // Newer samples have been taken. Move the received samples to higher offsets;
+        // samples beyond the capacity have been overwritten on the device anyway.
+        if (newestTime >= 0) {
+            newestTime += (startSeqNo - newestSeqNo)*GattProfile.getSampleInterval(historyType);
+        }
+        for (int offset = CAPACITY-1; offset >= 0; offset--) {
+            boolean isReceived = (offset >= shift && received[offset-shift]);
+            received[offset] = isReceived;
+            if (isReceived) {
+                values[offset] = values[offset-shift];
+            }
+        }
+        newestSeqNo = startSeqNo;
+        size = (int) Math.min(CAPACITY, Math.min((long) size + shift, startSeqNo+1));
+        countReceived();
+
+        return true;
+    }
+
+    /**
+     * Start a new window with no samples received.
+     *
+     * @param startSeqNo sequence number of the newest sample of the device
+     */
+    private void startWindow(long startSeqNo) {
+        windowKnown = true;
+        newestSeqNo = startSeqNo;
+        if (startSeqNo == GattProfile.MAX_SEQ_NO) {
+            // The device has not taken any sample yet (the sequence number of the newest
+            // sample is 0-1 as uint32).
+            size = 0;
+        } else {
+            size = (int) Math.min(CAPACITY, startSeqNo+1);
+        }
+        for (int i = 0; i < CAPACITY; i++) {
+            received[i] = false;
+        }
+        receivedCount = 0;
+    }
+
+    /**
+     * Place the buffered samples of the current pass.
+     */
+    private void placePassFrames() {
+        for (int i = 0; i < passFrames.size(); i++) {
+            HistoryFrame frame = passFrames.get(i);
+            if (frame == null) {
+                continue;
+            }
+            for (int j = 0; j < frame.samples.length; j++) {
+                long offset = newestSeqNo - (passStartSeqNo - i*HistoryFrame.MAX_SAMPLES - j);
+                if (offset >= 0 && offset < size && !received[(int) offset]) {
+                    values[(int) offset] = frame.samples[j];
+                    received[(int) offset] = true;
+                    receivedCount++;
+                }
+            }
+        }
+        passFrames.clear();
+    }
+
+    /**
+     * Place the samples of the current pass after its end frame has been received.
+     */
+    private Result finishPass(int endFrameNo, long startSeqNo, int sampleCount) {
+        int dataFrameCount = (sampleCount + HistoryFrame.MAX_SAMPLES - 1)/
+                HistoryFrame.MAX_SAMPLES;
+        if (endFrameNo != dataFrameCount+1) {
+            // Device sent more or less frames than samples announced.
+            return Result.error;
+        }
+
+        // If the start frame got lost, the start of the pass is known from the end frame.
+        if (!startPassWindow(startSeqNo)) {
+            return Result.error;
+        }
+        placePassFrames();
+
+        // If the device sent less samples than requested, the older samples of the range
+        // are not available anymore (overwritten on the device in the meantime, or before
+        // the first sample taken by the device). Drop these samples and all older ones.
+        long requestedCount = (startSeqNo >= passFromSeqNo ? startSeqNo-passFromSeqNo+1 : 0);
+        if (sampleCount < requestedCount) {
+            long offset = newestSeqNo - startSeqNo + sampleCount;
+            if (offset < size) {
+                size = (int) offset;
+                countReceived();
+            }
+        }
+
+        return (receivedCount == size ? Result.complete : Result.incomplete);
+    }
+
+    /**
+     * Count the received samples within the window.
+     */
+    private void countReceived() {
+        receivedCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (received[i]) {
+                receivedCount++;
+            }
+        }
+    }
+
+    /**
+     * Suspend the transfer at the end of a task. The samples received so far are kept;
+     * buffered samples of the current pass are placed if the start of the pass is known.
+     *
+     * @return true, if the transfer can be resumed, i.e., samples have been received
+     */
+    public boolean suspend() {
+        if (passStartKnown) {
+            placePassFrames();
+        }
+        passFrames.clear();
+        suspended = true;
+
+        return (windowKnown && receivedCount > 0);
+    }
+
+    /**
+     * Restore the window of a transfer of an earlier sync, e.g., from the samples stored by
+     * a previous run of the app. Like a suspended transfer, the restored transfer resumes
+     * with the samples taken since the newest restored sample. Samples are restored by
+     * restoreSample().
+     *
+     * @param newestSeqNo sequence number of the newest restored sample
+     * @param newestTime timestamp of the newest restored sample, or -1 if not known
+     */
+    public void restoreWindow(long newestSeqNo, long newestTime) {
+        passFrames.clear();
+        passStartKnown = false;
+        startWindow(newestSeqNo);
+        this.newestTime = newestTime;
+        suspended = true;
+    }
+
+    /**
+     * Restore a sample of the window set by restoreWindow(). Samples outside the window are
+     * ignored.
+     *
+     * @param seqNo sequence number of the sample
+     * @param value the sample
+     */
+    public void restoreSample(long seqNo, int value) {
+        long offset = newestSeqNo - seqNo;
+        if (!windowKnown || offset < 0 || offset >= size || received[(int) offset]) {
+            return;
+        }
+        values[(int) offset] = value;
+        received[(int) offset] = true;
+        receivedCount++;
+    }
+
+    /**
+     * Get the newest range of missing samples.
+     *
+     * @return the range [fromSeqNo, toSeqNo] or null, if no samples are missing
+     */
+    private long[] getMissingRange() {
+        int first = 0;
+        while (first < size && received[first]) {
+            first++;
+        }
+        if (first == size) {
+            return null;
+        }
+
+        int last = first;
+        while (last+1 < size && !received[last+1]) {
+            last++;
+        }
+
+        return new long[] {newestSeqNo - last, newestSeqNo - first};
+    }
+
+    /**
+     * Get the newest samples received so far without gaps, e.g., to show a history while it
+     * is being transferred. Buffered samples of the current pass are included as soon as
+     * the start of the pass is known.
+     *
+     * @param afterSeqNo only samples with larger sequence numbers are returned (-1 for all)
+     * @return the samples in chronological order, or null if the window is not known yet
+     */
+    public HistorySeries getReceivedHistory(long afterSeqNo) {
+        if (!windowKnown) {
+            return null;
+        }
+
+        int count = 0;
+        while (count < size && newestSeqNo - count > afterSeqNo &&
+                getReceivedSample(count) != NO_SAMPLE) {
+            count++;
+        }
+
+        HistorySeries history = new HistorySeries(count);
+        for (int offset = count-1; offset >= 0; offset--) {
+            history.addLast(getReceivedSample(offset));
+        }
+
+        return history;
+    }
+
+    /**
+     * Get a received sample, either placed or buffered in the current pass.
+     *
+     * @param offset offset of the sample from the newest sample
+     * @return the sample, or NO_SAMPLE if not received
+     */
+    private int getReceivedSample(int offset) {
+        if (received[offset]) {
+            return values[offset];
+        }
+
+        if (passStartKnown) {
+            long index = passStartSeqNo - (newestSeqNo - offset);
+            if (index >= 0 && index/HistoryFrame.MAX_SAMPLES < passFrames.size()) {
+                HistoryFrame frame = passFrames.get((int) (index/HistoryFrame.MAX_SAMPLES));
+                int j = (int) (index%HistoryFrame.MAX_SAMPLES);
+                if (frame != null && j < frame.samples.length) {
+                    return frame.samples[j];
+                }
+            }
+        }
+
+        return NO_SAMPLE;
+    }
+
+    /**
+     * Get the complete history in chronological order.
+     *
+     * @return the history
+     */
+    public HistorySeries getHistory() {
+        HistorySeries history = new HistorySeries(CAPACITY);
+        for (int i = size-1; i >= 0; i--) {
+            // Samples are stored newest first.
+            history.addLast(values[i]);
+        }
+
+        return history;
+    }
+}
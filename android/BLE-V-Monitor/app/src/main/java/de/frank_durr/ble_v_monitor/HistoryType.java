@@ -18,14 +18,7 @@
 
 package de.frank_durr.ble_v_monitor;
 
-import android.os.Handler;
-
 /**
- * Handler signaling updates of the central data model.
+ * The voltage histories recorded by the device.
  */
-public class ModelUpdateNotificationHandler extends Handler {
-    public static final int VOLTAGE_UPDATED = 1;
-    public static final int HISTORY_UPDATED_MINUTELY = 2;
-    public static final int HISTORY_UPDATED_HOURLY = 3;
-    public static final int HISTORY_UPDATED_DAILY = 4;
-}
+public enum HistoryType {minutely, hourly, daily}
@@ -18,22 +18,16 @@
 
 package de.frank_durr.ble_v_monitor;
 
-import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
-import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Message;
 import android.preference.PreferenceManager;
+import android.support.design.widget.Snackbar;
 import android.support.design.widget.TabLayout;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
@@ -51,10 +45,12 @@ import android.view.View;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * The main activity and entry point of the app.
@@ -63,30 +59,6 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
 
     public static final String TAG = MainActivity.class.getName();
 
-    private enum HistoryTypes {historyMinutely, historyHourly, historyDaily}
-
-    private enum BluetoothTasks {
-        none, getVoltage, getMinutelyHistory, getHourlyHistory, getDailyHistory
-    }
-
-    // Standard base UUID (used to extend standard 16 bit UUIDs)
-    public static final long STANDARD_BASE_UUID_MSB = 0x0000000000001000L;
-    public static final long STANDARD_BASE_UUID_LSB = 0x800000805f9b34fbL;
-    // 16 bit id of client characteristic configuration descriptor
-    public static final short CLIENT_CHARACTERISTIC_CONFIGURATION_ID = 0x2902;
-
-    // Base UUID of BLE-V-Monitor Service and its characteristics:
-    //   0xde0eXXXXf0af4d389a1a33e88519d3b2L
-    // XXXX will be replaced by the 16 bit ID of the service or characteristic defined below.
-    public static final long BASE_UUID_MSB = 0xde0e0000f0af4d38L;
-    public static final long BASE_UUID_LSB = 0x9a1a33e88519d3b2L;
-    // 16 bit ids of BLE-V-Monitor service and characteristics
-    public static final short SERVICE_ID = 0x0001;
-    public static final short CHARACTERISTIC_ID_CURRENT_VOLTAGE = 0x0100;
-    public static final short CHARACTERISTIC_ID_MINUTELY_HISTORY = 0x0200;
-    public static final short CHARACTERISTIC_ID_HOURLY_HISTORY = 0x0300;
-    public static final short CHARACTERISTIC_ID_DAILY_HISTORY = 0x0400;
-
     public static final int REQUEST_ENABLE_BT = 1;
     public static final int REQUEST_SELECT_DEVICE = 2;
 
@@ -94,37 +66,38 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
     static public final int UPDATE_MINUTELY_HISTORY = 2;
     static public final int UPDATE_HOURLY_HISTORY = 3;
     static public final int UPDATE_DAILY_HISTORY = 4;
+    static public final int UPDATE_ALL = 5;
+    static public final int START_LIVE_VOLTAGE = 6;
+    static public final int STOP_LIVE_VOLTAGE = 7;
 
     static private final String BUNDLE_KEY_CURRENT_VOLTAGE = "current_voltage";
     static private final String BUNDLE_KEY_HISTORY_MINUTELY = "history_minutely";
     static private final String BUNDLE_KEY_HISTORY_HOURLY = "history_hourly";
     static private final String BUNDLE_KEY_HISTORY_DAILY = "history_daily";
+    static private final String BUNDLE_KEY_HISTORY_TIMES = "history_times";
     static private final String BUNDLE_KEY_BLUETOOTH_DEVICE = "bluetooth_device";
     static private final String BUNDLE_KEY_CURRENT_VOLTAGE_FRAGMENT = "fragment_current_voltage";
     static private final String BUNDLE_KEY_MINUTELY_HISTORY_FRAGMENT = "fragment_minutely_history";
     static private final String BUNDLE_KEY_HOURLY_HISTORY_FRAGMENT = "fragment_hourly_history";
     static private final String BUNDLE_KEY_DAILY_HISTORY_FRAGMENT = "fragment_daily_history";
 
-    static private final UUID gattServiceUUID = getUUID(BASE_UUID_MSB, BASE_UUID_LSB, SERVICE_ID);
-    static private final UUID currentVoltageCharacteristicUUID =
-            getUUID(BASE_UUID_MSB, BASE_UUID_LSB, CHARACTERISTIC_ID_CURRENT_VOLTAGE);
-    static private final UUID minutelyHistoryCharacteristicUUID =
-            getUUID(BASE_UUID_MSB, BASE_UUID_LSB, CHARACTERISTIC_ID_MINUTELY_HISTORY);
-    static private final UUID hourlyHistoryCharacteristicUUID =
-            getUUID(BASE_UUID_MSB, BASE_UUID_LSB, CHARACTERISTIC_ID_HOURLY_HISTORY);
-    static private final UUID dailyHistoryCharacteristicUUID =
-            getUUID(BASE_UUID_MSB, BASE_UUID_LSB, CHARACTERISTIC_ID_DAILY_HISTORY);
-    static private final UUID clientCharacteristicConfigurationUUID =
-            getUUID(STANDARD_BASE_UUID_MSB, STANDARD_BASE_UUID_LSB,
-                    CLIENT_CHARACTERISTIC_CONFIGURATION_ID);
+    static private final String PREF_SELECTED_DEVICE = "pref_selected_device";
 
-    // Timeout of a task in milliseconds.
-    static private final int TASK_TIMOUT = 15000;
+    // Maximum number of archived samples shown per history (four weeks of minutely samples).
+    static private final int MAX_SHOWN_HISTORY_SIZE = 4*7*24*60;
 
-    static private final int MAX_HISTORY_SIZE = 128;
+    // Default time in seconds the link to the device is kept open after the last task.
+    static private final float DEFAULT_SESSION_IDLE_TIMEOUT = 30.0f;
 
     private BluetoothAdapter bluetoothAdapter = null;
-    private BluetoothDevice bluetoothDevice = null;
+    private volatile BluetoothDevice bluetoothDevice = null;
+
+    // Store keeping the histories of all devices across restarts of the app.
+    private HistoryStore historyStore = null;
+
+    // Executor reading and writing the history store. Neither the UI thread nor the sync
+    // engine, which calls its listener while holding its lock, must wait for the store.
+    static private final ExecutorService storeExecutor = Executors.newSingleThreadExecutor();
 
     // Handler to receive requests (e.g., from other views) to update the data model.
     public ModelUpdateTriggerHandler updateTriggerHandler = null;
@@ -134,22 +107,39 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
     private HistoryFragment fragmentHourlyHistory = null;
     private HistoryFragment fragmentDailyHistory = null;
 
-    // The currently active Bluetooth task for retrieving data from the GATT server.
-    // Only one task can be active at a time.
-    private BluetoothTasks activeBluetoothTask = BluetoothTasks.none;
+    // Bluetooth tasks requested before a device has been selected or Bluetooth has been
+    // turned on. As soon as the device is ready, the tasks are handed over to the sync engine,
+    // which executes them one after the other on a single connection.
+    private final LinkedList<SyncEngine.Task> requestedBluetoothTasks = new LinkedList<>();
+
+    // Engine performing the Bluetooth tasks through a GATT session.
+    private SyncEngine syncEngine = null;
 
-    private Handler taskTimoutHandler = null;
-    private TimeoutTask timeoutTask = null;
+    // Scheduler for the idle timeout of the GATT session.
+    private ScheduledExecutorService sessionScheduler = null;
 
-    private GattCallbackHandler gattHandler = null;
-    private BluetoothGatt gatt = null;
-    private BluetoothGattService gattService = null;
-    private boolean gattServicesDiscovered = false;
-    private BluetoothGattCharacteristic characteristic = null;
+    // Non-modal progress bar shown while histories are downloaded.
+    private Snackbar progressBar = null;
 
-    private LinkedList<Integer> tempHistoryValues = null;
+    // History being downloaded (null if none), and sequence numbers of the newest archived
+    // samples shown by history (-1 if none). Guarded by downloadLock, which is never held
+    // while calling the sync engine.
+    private final Object downloadLock = new Object();
+    private HistoryType downloadingHistory = null;
+    private final long[] archivedSeqNos = {-1, -1, -1};
 
-    private ProgressDialog progressDialog = null;
+    // Subscriber showing the samples received so far while histories are downloaded. Called
+    // at most once per frame, so the charts are redrawn at most at the frame rate.
+    private final ModelChangeBus.Subscriber progressSubscriber = new ModelChangeBus.Subscriber() {
+        @Override
+        public void onModelChanged(DataModel.Snapshot snapshot) {
+            if (progressBar != null) {
+                progressBar.setText(getString(R.string.download_progress,
+                        snapshot.getHistoryProgress()));
+            }
+            showReceivedHistory();
+        }
+    };
 
     /**
      * The model update trigger handler is used to signal that parts of the data model
@@ -164,16 +154,25 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
         public void handleMessage(Message message) {
             switch (message.arg1) {
                 case UPDATE_CURRENT_VOLTAGE:
-                    startTask(BluetoothTasks.getVoltage);
+                    startTask(SyncEngine.Task.getVoltage);
                     break;
                 case UPDATE_MINUTELY_HISTORY:
-                    startTask(BluetoothTasks.getMinutelyHistory);
+                    startTask(SyncEngine.Task.getMinutelyHistory);
                     break;
                 case UPDATE_HOURLY_HISTORY:
-                    startTask(BluetoothTasks.getHourlyHistory);
+                    startTask(SyncEngine.Task.getHourlyHistory);
                     break;
                 case UPDATE_DAILY_HISTORY:
-                    startTask(BluetoothTasks.getDailyHistory);
+                    startTask(SyncEngine.Task.getDailyHistory);
+                    break;
+                case UPDATE_ALL:
+                    startSyncAll();
+                    break;
+                case START_LIVE_VOLTAGE:
+                    startTask(SyncEngine.Task.subscribeVoltage);
+                    break;
+                case STOP_LIVE_VOLTAGE:
+                    stopLiveVoltage();
                     break;
             }
         }
@@ -204,17 +203,17 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
                     break;
                 case 1:
                     fragmentMinutelyHistory = HistoryFragment.newInstance(
-                            HistoryFragment.HistoryType.minutely);
+                            HistoryType.minutely);
                     fragment = fragmentMinutelyHistory;
                     break;
                 case 2:
                     fragmentHourlyHistory = HistoryFragment.newInstance(
-                            HistoryFragment.HistoryType.hourly);
+                            HistoryType.hourly);
                     fragment = fragmentHourlyHistory;
                     break;
                 case 3:
                     fragmentDailyHistory = HistoryFragment.newInstance(
-                            HistoryFragment.HistoryType.daily);
+                            HistoryType.daily);
                     fragment = fragmentDailyHistory;
                     break;
                 default:
@@ -249,134 +248,165 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
     }
 
     /**
-     * Handler for GATT callbacks.
+     * Listener receiving the results of Bluetooth tasks from the sync engine.
      */
-    private class GattCallbackHandler extends BluetoothGattCallback {
+    private class SyncListener implements SyncEngine.Listener {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.i(TAG, "Bluetooth: connected");
-                MainActivity.this.gatt = gatt;
-                // Connected. Continue current task.
-                switch (activeBluetoothTask) {
-                    case getVoltage:
-                        bleRetrieveCurrentVoltage();
-                        break;
-                    case getMinutelyHistory:
-                        bleRetrieveHistory(HistoryTypes.historyMinutely);
-                        break;
-                    case getHourlyHistory:
-                        bleRetrieveHistory(HistoryTypes.historyHourly);
-                        break;
-                    case getDailyHistory:
-                        bleRetrieveHistory(HistoryTypes.historyDaily);
-                        break;
-                }
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                if (activeBluetoothTask != BluetoothTasks.none) {
-                    // Disconnection while performing task. Cancel task.
-                    toast(R.string.err_bluetooth_connection);
+        public void onCurrentVoltage(int voltage) {
+            // Update data model. The model change bus notifies the view.
+            DataModel.theModel.setCurrentVoltage(voltage);
+        }
+
+        @Override
+        public void onHistory(final HistoryType historyType, final HistorySeries history) {
+            Log.i(TAG, "Sync metrics: " + syncEngine.getMetrics().getLastTransfer());
+
+            final long newestTime = syncEngine.getNewestTime(historyType);
+            final long newestSeqNo = syncEngine.getNewestSeqNo(historyType);
+            synchronized (downloadLock) {
+                if (downloadingHistory == historyType) {
+                    // The received samples are shown until the new history is set.
+                    downloadingHistory = null;
                 }
-                finishTask();
             }
+
+            BluetoothDevice device = bluetoothDevice;
+            if (newestSeqNo < 0 || device == null) {
+                // Nothing to archive. The model change bus notifies the corresponding fragment.
+                DataModel.theModel.setHistory(historyType, history, newestTime);
+                return;
+            }
+
+            // The sync engine holds its lock while calling this method. Archive the new
+            // samples and show the archived history from the store executor.
+            final String deviceAddress = device.getAddress();
+            storeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long storedTime = (newestTime >= 0 ? newestTime : System.currentTimeMillis());
+                    try {
+                        historyStore.append(deviceAddress, historyType, newestSeqNo, storedTime,
+                                history);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Cannot store history: " + e.getMessage());
+                        DataModel.theModel.setHistory(historyType, history, newestTime);
+                        return;
+                    }
+                    loadStoredHistory(deviceAddress, historyType);
+                    if (historyType == HistoryType.minutely) {
+                        // The minutely samples have updated the hourly and daily rollups.
+                        loadStoredHistory(deviceAddress, HistoryType.hourly);
+                        loadStoredHistory(deviceAddress, HistoryType.daily);
+                    }
+                }
+            });
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status != BluetoothGatt.GATT_SUCCESS) {
-                // Service discovery failed. Cancel task.
-                toast(R.string.err_bluetooth_discovery);
-                finishTask();
-            } else {
-                // Service discovered. Continue current task.
-                gattServicesDiscovered = true;
-                switch (activeBluetoothTask) {
-                    case getVoltage:
-                        bleRetrieveCurrentVoltage();
-                        break;
-                    case getMinutelyHistory:
-                        bleRetrieveHistory(HistoryTypes.historyMinutely);
-                        break;
-                    case getHourlyHistory:
-                        bleRetrieveHistory(HistoryTypes.historyHourly);
-                        break;
-                    case getDailyHistory:
-                        bleRetrieveHistory(HistoryTypes.historyDaily);
-                        break;
-                }
+        public void onHistoryProgress(HistoryType historyType, int valueCount) {
+            // Called for every value received. The model change bus updates the progress
+            // bar and the chart at most once per frame on the UI thread.
+            synchronized (downloadLock) {
+                downloadingHistory = historyType;
             }
+            DataModel.theModel.setHistoryProgress(valueCount);
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic, int status) {
-            if (status != BluetoothGatt.GATT_SUCCESS) {
-                // Read operation failed. Cancel task.
-                toast(R.string.err_bluetooth_read);
-                finishTask();
-            } else {
-                // Successfully retrieved data.
-                if (activeBluetoothTask == BluetoothTasks.getVoltage) {
-                    // Update data model
-                    int value = characteristic.getIntValue(
-                            BluetoothGattCharacteristic.FORMAT_SINT16, 0);
-                    DataModel.theModel.setCurrentVoltage(value);
-
-                    // Notify view that value has been updated.
-                    Message msg = fragmentCurrentVoltage.updateNotificationHandler.obtainMessage();
-                    msg.arg1 = ModelUpdateNotificationHandler.VOLTAGE_UPDATED;
-                    msg.sendToTarget();
-
-                    // Finish task (close connection, release GATT resources)
-                    finishTask();
-                }
+        public void onTaskFailed(SyncEngine.Failure failure) {
+            switch (failure) {
+                case connection:
+                    toast(R.string.err_bluetooth_connection);
+                    break;
+                case discovery:
+                    toast(R.string.err_bluetooth_discovery);
+                    break;
+                case service:
+                    toast(R.string.err_bluetooth_service);
+                    break;
+                case characteristic:
+                    toast(R.string.err_bluetooth_characteristic);
+                    break;
+                case read:
+                    toast(R.string.err_bluetooth_read);
+                    break;
+                case write:
+                    toast(R.string.err_bluetooth_write);
+                    break;
+                case notification:
+                    toast(R.string.err_bluetooth_notification);
+                    break;
+                case timeout:
+                    toast(R.string.err_bluetooth_timeout);
+                    break;
             }
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            int value = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, 0);
-            if (value == -1) {
-                // -1 indicates the end of the history
-                Message msg = null;
-                switch (activeBluetoothTask) {
-                    case getMinutelyHistory:
-                        DataModel.theModel.setMinutelyHistory(tempHistoryValues);
-                        msg = fragmentMinutelyHistory.updateNotificationHandler.obtainMessage();
-                        msg.arg1 = ModelUpdateNotificationHandler.HISTORY_UPDATED_MINUTELY;
-                        break;
-                    case getHourlyHistory:
-                        DataModel.theModel.setHourlyHistory(tempHistoryValues);
-                        msg = fragmentHourlyHistory.updateNotificationHandler.obtainMessage();
-                        msg.arg1 = ModelUpdateNotificationHandler.HISTORY_UPDATED_HOURLY;
-                        break;
-                    case getDailyHistory:
-                        DataModel.theModel.setDailyHistory(tempHistoryValues);
-                        msg = fragmentDailyHistory.updateNotificationHandler.obtainMessage();
-                        msg.arg1 = ModelUpdateNotificationHandler.HISTORY_UPDATED_DAILY;
-                        break;
-                    default:
-                        // Should never happen since indications are only sent for histories.
-                        return;
+        public void onTaskFinished() {
+            // The sync engine calls this method while holding its lock. Finish the task on
+            // the UI thread to avoid lock-order inversion with startTask().
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!syncEngine.isBusy()) {
+                        // No new tasks have been queued in the meantime.
+                        finishTask();
+                    }
                 }
+            });
+        }
+    }
 
-                // Notify corresponding fragment to update view.
-                msg.sendToTarget();
+    /**
+     * Factory creating transports to the currently selected Bluetooth device.
+     */
+    private class DeviceTransportFactory implements GattTransport.Factory {
+        @Override
+        public GattTransport createTransport() {
+            return new AndroidGattTransport(MainActivity.this, bluetoothDevice);
+        }
+    }
 
-                // Finish task (close connection, release GATT resources)
-                finishTask();
-            } else {
-                // The history is transmitted in reverse chronological order (newest first).
-                // Thus, we need to add values at the list head to achieve chronological
-                // order in the end.
-                Log.i(TAG, Integer.toString(value));
-                tempHistoryValues.addFirst(value);
-                ProgressDialog dlg = progressDialog;
-                if (dlg != null) {
-                    dlg.setProgress(tempHistoryValues.size());
-                }
+    /**
+     * Visitor collecting the newest visited samples of a stored history and their
+     * timestamps.
+     */
+    static private class SampleCollector implements HistoryStore.Visitor {
+        private final HistorySeries values;
+        private final long[] times;
+        private int count = 0;
+
+        public SampleCollector(int maxCount) {
+            values = new HistorySeries(maxCount);
+            times = new long[maxCount];
+        }
+
+        @Override
+        public void onSample(long seqNo, long time, int value) {
+            values.addLast(value);
+            times[count%times.length] = time;
+            count++;
+        }
+
+        /**
+         * @return the collected samples from the oldest to the newest sample
+         */
+        public HistorySeries getValues() {
+            return values;
+        }
+
+        /**
+         * @return the timestamps of the collected samples from the oldest to the newest
+         * sample in milliseconds since the epoch
+         */
+        public long[] getTimes() {
+            int size = values.size();
+            long[] ordered = new long[size];
+            for (int i = 0; i < size; i++) {
+                ordered[i] = times[(count-size+i)%times.length];
             }
+            return ordered;
         }
     }
 
@@ -398,23 +428,12 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
         }
     }
 
-    /**
-     * Task performed after a Bluetooth task timed-out.
-     */
-    private class TimeoutTask implements Runnable {
-
-        @Override
-        public void run() {
-            toast(R.string.err_bluetooth_timeout);
-            finishTask();
-        }
-    }
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        historyStore = HistoryStore.getInstance(getFilesDir());
         restoreDataModel(savedInstanceState);
 
         if (bluetoothAdapter == null) {
@@ -426,13 +445,26 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
         if (savedInstanceState != null &&
                 savedInstanceState.containsKey(BUNDLE_KEY_BLUETOOTH_DEVICE)) {
             bluetoothDevice = savedInstanceState.getParcelable(BUNDLE_KEY_BLUETOOTH_DEVICE);
+        } else if (savedInstanceState == null && bluetoothAdapter != null) {
+            // Cold start. Restore the last selected device and its stored histories.
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            String address = prefs.getString(PREF_SELECTED_DEVICE, null);
+            if (address != null && BluetoothAdapter.checkBluetoothAddress(address)) {
+                bluetoothDevice = bluetoothAdapter.getRemoteDevice(address);
+                loadStoredHistories(address);
+            }
         }
 
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
 
-        gattHandler = new GattCallbackHandler();
-
-        taskTimoutHandler = new Handler();
+        sessionScheduler = Executors.newSingleThreadScheduledExecutor();
+        GattSession session = new GattSession(new DeviceTransportFactory(), sessionScheduler,
+                getSessionIdleTimeout());
+        syncEngine = new SyncEngine(session, new SyncListener());
+        if (bluetoothDevice != null) {
+            syncEngine.setDevice(bluetoothDevice.getAddress());
+            SyncService.schedule(this);
+        }
 
         updateTriggerHandler = new ModelUpdateTriggerHandler();
 
@@ -471,14 +503,34 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
     }
 
     @Override
-    public void onStop() {
+    public void onStart() {
+        super.onStart();
+
+        // The idle timeout might have been changed in the settings.
+        syncEngine.getSession().setIdleTimeout(getSessionIdleTimeout());
+    }
+
+    @Override
+    synchronized public void onStop() {
         super.onStop();
+
+        // Do not keep an idle link open while the app is in the background. A running task
+        // is not cancelled here since the activity is also stopped while the user selects
+        // a device or turns on Bluetooth.
+        if (requestedBluetoothTasks.isEmpty() && !syncEngine.isBusy()) {
+            // Also stops live voltage updates, which are restarted by the fragment.
+            syncEngine.close();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
 
+        // Close the link before the scheduler of its idle timeout is shut down.
+        syncEngine.close();
+        sessionScheduler.shutdownNow();
+
         fragmentCurrentVoltage = null;
         fragmentMinutelyHistory = null;
         fragmentHourlyHistory = null;
@@ -491,26 +543,32 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
 
         // Save the data model
 
-        savedInstanceState.putInt(BUNDLE_KEY_CURRENT_VOLTAGE,
-                DataModel.theModel.getCurrentVoltage());
+        DataModel.Snapshot model = DataModel.theModel.getSnapshot();
 
-        List<Integer> minutelyHistory = DataModel.theModel.getMinutelyHistory();
+        savedInstanceState.putInt(BUNDLE_KEY_CURRENT_VOLTAGE, model.getCurrentVoltage());
+
+        // Histories are saved encoded (cf. SeriesCodec).
+
+        HistorySeries minutelyHistory = model.getHistory(HistoryType.minutely);
         if (minutelyHistory != null) {
-            ArrayList<Integer> values = new ArrayList<>(minutelyHistory);
-            savedInstanceState.putIntegerArrayList(BUNDLE_KEY_HISTORY_MINUTELY, values);
+            savedInstanceState.putByteArray(BUNDLE_KEY_HISTORY_MINUTELY, minutelyHistory.encode());
         }
 
-        List<Integer> hourlyHistory = DataModel.theModel.getHourlyHistory();
+        HistorySeries hourlyHistory = model.getHistory(HistoryType.hourly);
         if (hourlyHistory != null) {
-            ArrayList<Integer> values = new ArrayList<>(hourlyHistory);
-            savedInstanceState.putIntegerArrayList(BUNDLE_KEY_HISTORY_HOURLY, values);
+            savedInstanceState.putByteArray(BUNDLE_KEY_HISTORY_HOURLY, hourlyHistory.encode());
         }
 
-        List<Integer> dailyHistory = DataModel.theModel.getDailyHistory();
+        HistorySeries dailyHistory = model.getHistory(HistoryType.daily);
         if (dailyHistory != null) {
-            ArrayList<Integer> values = new ArrayList<>(dailyHistory);
-            savedInstanceState.putIntegerArrayList(BUNDLE_KEY_HISTORY_DAILY, values);
+            savedInstanceState.putByteArray(BUNDLE_KEY_HISTORY_DAILY, dailyHistory.encode());
+        }
+
+        long[] historyTimes = new long[HistoryType.values().length];
+        for (HistoryType historyType : HistoryType.values()) {
+            historyTimes[historyType.ordinal()] = model.getHistoryTime(historyType);
         }
+        savedInstanceState.putLongArray(BUNDLE_KEY_HISTORY_TIMES, historyTimes);
 
         // Save information about selected Bluetooth device
         // TODO: Move this to preferences?
@@ -543,34 +601,97 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
     }
 
     /**
-     * Creates a 128 bit UUID of a service or characteristic from a 128 base UUID and 16 bit
-     * service/characteristic id.
+     * Show a toast. This method ensures that the toast is displayed on the UI thread.
      *
-     * Example: Given
-     * - 128 bit base UUID 550eXXXX-e29b-11d4-a716-446655440000
-     * - 16 bit service ID: 0x1234
-     * The resulting UUID is generated by replacing XXXX by the 16 bit id of the service:
-     * - UUID: 550e1234-e29b-11d4-a716-446655440000
+     * @param stringResource id of the string resource defining the message.
+     */
+    public void toast(int stringResource) {
+        runOnUiThread(new ToastTask(stringResource));
+    }
+
+    /**
+     * Get the time the link to the device is kept open after the last task from the
+     * preferences.
      *
-     * @param baseMSB most significant bits of the base UUID
-     * @param baseLSB least significant bits of the base UUID
-     * @param id 16 bit id of the service or characteristic
-     * @return UUID of the service of characteristic
+     * @return idle timeout in milliseconds
      */
-    public static UUID getUUID(long baseMSB, long baseLSB, short id) {
-        long msb = baseMSB & 0xffff0000ffffffffL;
-        msb |= ((long) id)<<32;
+    private long getSessionIdleTimeout() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        float idleTimeout = prefs.getFloat("pref_session_idle_timeout",
+                DEFAULT_SESSION_IDLE_TIMEOUT);
+        return (long) (idleTimeout*1000.0f);
+    }
 
-        return new UUID(msb, baseLSB);
+    /**
+     * Load the newest stored values of the histories of a device into the data model.
+     * Only the values shown are read from the store, which is done on the store executor.
+     *
+     * @param deviceAddress address of the device
+     */
+    private void loadStoredHistories(final String deviceAddress) {
+        for (final HistoryType historyType : HistoryType.values()) {
+            storeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadStoredHistory(deviceAddress, historyType);
+                }
+            });
+        }
     }
 
     /**
-     * Show a toast. This method ensures that the toast is displayed on the UI thread.
+     * Load the newest stored values of a history into the data model. The hourly and daily
+     * histories are loaded from the hourly and daily rollups, which aggregate the minutely
+     * samples rather than showing the single reading of the device per hour and day (cf.
+     * HistoryRollups). Must be called on the store executor.
      *
-     * @param stringResource id of the string resource defining the message.
+     * @param deviceAddress address of the device
+     * @param historyType type of the history
      */
-    public void toast(int stringResource) {
-        runOnUiThread(new ToastTask(stringResource));
+    private void loadStoredHistory(String deviceAddress, HistoryType historyType) {
+        // Read the samples of the time span shown. The timestamps place the samples on the
+        // x axis of the chart, so samples missing from the store leave a gap.
+        SampleCollector collector = new SampleCollector(MAX_SHOWN_HISTORY_SIZE);
+        long newestSeqNo;
+        try {
+            newestSeqNo = historyStore.getNewestSeqNo(deviceAddress, historyType);
+            long newestTime = historyStore.getNewestTime(deviceAddress, historyType);
+            long span = (MAX_SHOWN_HISTORY_SIZE-1)*GattProfile.getSampleInterval(historyType);
+            if (historyType == HistoryType.minutely) {
+                if (newestTime >= 0) {
+                    historyStore.scanRange(deviceAddress, historyType, newestTime - span,
+                            newestTime + 1, collector);
+                }
+            } else {
+                newestTime = Math.max(newestTime,
+                        historyStore.getNewestTime(deviceAddress, HistoryType.minutely));
+                if (newestTime >= 0) {
+                    HistoryRollups.Resolution resolution = (historyType == HistoryType.hourly ?
+                            HistoryRollups.Resolution.hour : HistoryRollups.Resolution.day);
+                    List<HistoryRollups.Rollup> rollups = historyStore.getRollups().read(
+                            deviceAddress, resolution, newestTime - span, newestTime + 1);
+                    for (HistoryRollups.Rollup rollup : rollups) {
+                        collector.onSample(-1, rollup.startTime, (int) Math.round(
+                                rollup.getMean()));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read stored history: " + e.getMessage());
+            return;
+        }
+
+        BluetoothDevice device = bluetoothDevice;
+        if (device == null || !device.getAddress().equals(deviceAddress)) {
+            // Another device has been selected in the meantime.
+            return;
+        }
+        HistorySeries values = collector.getValues();
+        synchronized (downloadLock) {
+            archivedSeqNos[historyType.ordinal()] = newestSeqNo;
+            DataModel.theModel.setHistory(historyType, values.isEmpty() ? null : values,
+                    collector.getTimes());
+        }
     }
 
     /**
@@ -591,20 +712,28 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
                     BUNDLE_KEY_CURRENT_VOLTAGE));
         }
 
-        ArrayList<Integer> values =
-                savedInstanceState.getIntegerArrayList(BUNDLE_KEY_HISTORY_MINUTELY);
+        long[] historyTimes = savedInstanceState.getLongArray(BUNDLE_KEY_HISTORY_TIMES);
+        if (historyTimes == null || historyTimes.length != HistoryType.values().length) {
+            historyTimes = new long[] {-1, -1, -1};
+        }
+
+        HistorySeries values = HistorySeries.decode(
+                savedInstanceState.getByteArray(BUNDLE_KEY_HISTORY_MINUTELY));
         if (values != null) {
-            DataModel.theModel.setMinutelyHistory(values);
+            DataModel.theModel.setHistory(HistoryType.minutely, values,
+                    historyTimes[HistoryType.minutely.ordinal()]);
         }
 
-        values = savedInstanceState.getIntegerArrayList(BUNDLE_KEY_HISTORY_HOURLY);
+        values = HistorySeries.decode(savedInstanceState.getByteArray(BUNDLE_KEY_HISTORY_HOURLY));
         if (values != null) {
-            DataModel.theModel.setHourlyHistory(values);
+            DataModel.theModel.setHistory(HistoryType.hourly, values,
+                    historyTimes[HistoryType.hourly.ordinal()]);
         }
 
-        values = savedInstanceState.getIntegerArrayList(BUNDLE_KEY_HISTORY_DAILY);
+        values = HistorySeries.decode(savedInstanceState.getByteArray(BUNDLE_KEY_HISTORY_DAILY));
         if (values != null) {
-            DataModel.theModel.setDailyHistory(values);
+            DataModel.theModel.setHistory(HistoryType.daily, values,
+                    historyTimes[HistoryType.daily.ordinal()]);
         }
     }
 
@@ -634,6 +763,16 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
             return true;
         }
 
+        if (id == R.id.action_forget_device) {
+            forgetDevice();
+            return true;
+        }
+
+        if (id == R.id.action_sync_all) {
+            startSyncAll();
+            return true;
+        }
+
         if (id == R.id.action_about) {
             showAboutDialog();
             return true;
@@ -648,20 +787,7 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
             case REQUEST_ENABLE_BT:
                 if (resultCode == RESULT_OK) {
                     // Bluetooth has been enabled. Continue task.
-                    switch (activeBluetoothTask) {
-                        case getVoltage:
-                            bleRetrieveCurrentVoltage();
-                            break;
-                        case getMinutelyHistory:
-                            bleRetrieveHistory(HistoryTypes.historyMinutely);
-                            break;
-                        case getHourlyHistory:
-                            bleRetrieveHistory(HistoryTypes.historyHourly);
-                            break;
-                        case getDailyHistory:
-                            bleRetrieveHistory(HistoryTypes.historyDaily);
-                            break;
-                    }
+                    continueTask();
                 } else {
                     // No Bluetooth available. Cancel task.
                     finishTask();
@@ -670,22 +796,24 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
             case REQUEST_SELECT_DEVICE:
                 if (resultCode == RESULT_OK) {
                     // Bluetooth device has been selected. Continue task.
-                    bluetoothDevice = data.getParcelableExtra(
+                    BluetoothDevice selectedDevice = data.getParcelableExtra(
                             DeviceSelectionActivity.RESULT_BLUETOOTHDEVICE);
-                    switch (activeBluetoothTask) {
-                        case getVoltage:
-                            bleRetrieveCurrentVoltage();
-                            break;
-                        case getMinutelyHistory:
-                            bleRetrieveHistory(HistoryTypes.historyMinutely);
-                            break;
-                        case getHourlyHistory:
-                            bleRetrieveHistory(HistoryTypes.historyHourly);
-                            break;
-                        case getDailyHistory:
-                            bleRetrieveHistory(HistoryTypes.historyDaily);
-                            break;
+                    if (bluetoothDevice != null && !bluetoothDevice.equals(selectedDevice)) {
+                        // Link to the previous device must not be re-used.
+                        syncEngine.close();
+                    }
+                    boolean deviceChanged = !selectedDevice.equals(bluetoothDevice);
+                    bluetoothDevice = selectedDevice;
+                    if (deviceChanged) {
+                        loadStoredHistories(selectedDevice.getAddress());
                     }
+                    syncEngine.setDevice(bluetoothDevice.getAddress());
+                    PreferenceManager.getDefaultSharedPreferences(this).edit().putString(
+                            PREF_SELECTED_DEVICE, bluetoothDevice.getAddress()).apply();
+
+                    // Sync the histories of all selected devices in the background.
+                    SyncService.registerDevice(this, bluetoothDevice.getAddress());
+                    continueTask();
                 } else {
                     // No suitable Bluetooth device found. Cancel task.
                     finishTask();
@@ -703,178 +831,89 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
     }
 
     /**
-     * Query the GATT server for current voltage data.
+     * Forget the selected device. The device is no longer synced in the background, and the
+     * next task lets the user select a device again. Its stored histories are kept.
      */
-    synchronized private void bleRetrieveCurrentVoltage() {
-        if (activeBluetoothTask != BluetoothTasks.getVoltage) {
-            // Task cancelled
-            return;
-        }
-
-        // Check whether a BLE device has already been selected. If not, select it first.
+    synchronized private void forgetDevice() {
         if (bluetoothDevice == null) {
-            // No device selected so far -> let user select one now
-            selectDevice();
-            return; // Wait for activity result
-        }
-
-        // BLE device has been selected.
-
-        if (!bluetoothAdapter.isEnabled()) {
-            // First, turn on Bluetooth
-            Intent intent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
-            startActivityForResult(intent, REQUEST_ENABLE_BT);
-            return; // Wait for activity result
-        }
-
-        // BLE device has been selected. BLE is turned on.
-
-        if (gatt == null) {
-            bluetoothDevice.connectGatt(this, false, gattHandler);
-            return; // Wait for callback
+            return;
         }
 
-        // BLE device has been selected. BLE is turned on. We are connected to GATT server.
-
-        if (!gattServicesDiscovered) {
-            if (!gatt.discoverServices()) {
-                // Cannot start discovery
-                toast(R.string.err_bluetooth_discovery);
-                finishTask();
-                return;
+        finishTask();
+        syncEngine.close();
+        SyncService.unregisterDevice(this, bluetoothDevice.getAddress());
+        PreferenceManager.getDefaultSharedPreferences(this).edit().remove(
+                PREF_SELECTED_DEVICE).apply();
+        bluetoothDevice = null;
+
+        DataModel.theModel.setCurrentVoltage(DataModel.INVALID_VOLTAGE);
+        synchronized (downloadLock) {
+            for (HistoryType historyType : HistoryType.values()) {
+                archivedSeqNos[historyType.ordinal()] = -1;
+                DataModel.theModel.setHistory(historyType, null, -1);
             }
-            return; // Wait for GATT callback
         }
+    }
 
-        // BLE device has been selected. BLE is turned on. We are connected to GATT server.
-        // GATT services have been discovered.
+    /**
+     * Starts a task. If other tasks are still active, the task is queued and executed on the
+     * same connection afterwards. Requests for tasks already queued are ignored.
+     */
+    synchronized private void startTask(SyncEngine.Task task) {
+        Log.i(TAG, "Starting Bluetooth task" + task.toString());
 
-        gattService = gatt.getService(gattServiceUUID);
-        if (gattService == null) {
-            // Required service not offered by device
-            toast(R.string.err_bluetooth_service);
-            finishTask();
+        if (syncEngine.isBusy()) {
+            // Device is ready and the engine is working on other tasks. Just queue the task.
+            if (syncEngine.enqueueTask(task) && SyncEngine.getHistoryType(task) != null) {
+                showProgressBar();
+            }
             return;
         }
 
-        // BLE device has been selected. BLE is turned on. We are connected to GATT server.
-        // GATT services have been discovered. Service is ready.
-
-        characteristic = gattService.getCharacteristic(currentVoltageCharacteristicUUID);
-        if (characteristic == null) {
-            // Required characteristic is not available.
-            toast(R.string.err_bluetooth_characteristic);
-            finishTask();
+        if (requestedBluetoothTasks.contains(task)) {
+            // Task already requested
             return;
         }
 
-        // BLE device has been selected. BLE is turned on. We are connected to GATT server.
-        // GATT services have been discovered. Service is ready. Characteristic is available.
-
-        if (!gatt.readCharacteristic(characteristic)) {
-            // Cannot read characteristic value
-            toast(R.string.err_bluetooth_read);
-            finishTask();
-            return;
+        requestedBluetoothTasks.add(task);
+        if (requestedBluetoothTasks.size() == 1) {
+            continueTask();
         }
-
-        // Data is received and processed in GATT callback. Wait for GATT callback.
+        // Otherwise, wait for the device to become ready.
     }
 
     /**
-     * Starts a task.
+     * Stop live voltage updates. The link is handed back to the session after the engine
+     * has unsubscribed from voltage notifications.
      */
-    synchronized private void startTask(BluetoothTasks task) {
-        if (activeBluetoothTask != BluetoothTasks.none) {
-            // Only one task at a time
-            return;
-        }
-
-        Log.i(TAG, "Starting Bluetooth task" + task.toString());
-
-        switch (task) {
-            case getVoltage:
-                activeBluetoothTask = BluetoothTasks.getVoltage;
-                bleRetrieveCurrentVoltage();
-                break;
-            case getMinutelyHistory:
-                activeBluetoothTask = BluetoothTasks.getMinutelyHistory;
-                bleRetrieveHistory(HistoryTypes.historyMinutely);
-                tempHistoryValues = new LinkedList<>();
-                break;
-            case getHourlyHistory:
-                activeBluetoothTask = BluetoothTasks.getHourlyHistory;
-                bleRetrieveHistory(HistoryTypes.historyHourly);
-                tempHistoryValues = new LinkedList<>();
-                break;
-            case getDailyHistory:
-                activeBluetoothTask = BluetoothTasks.getDailyHistory;
-                bleRetrieveHistory(HistoryTypes.historyDaily);
-                tempHistoryValues = new LinkedList<>();
-                break;
-        }
+    synchronized private void stopLiveVoltage() {
+        requestedBluetoothTasks.remove(SyncEngine.Task.subscribeVoltage);
+        syncEngine.enqueueTask(SyncEngine.Task.unsubscribeVoltage);
     }
 
     /**
-     * Finish a running Bluetooth task and release GATT resources.
+     * Starts tasks retrieving the current voltage and all histories in one connection.
      */
-    synchronized private void finishTask() {
-        Log.i(TAG, "Finishing Bluetooth task");
-
-        // Cancel task
-        activeBluetoothTask = BluetoothTasks.none;
-
-        // Stop timeout timer
-        if (timeoutTask != null) {
-            taskTimoutHandler.removeCallbacks(timeoutTask);
-            timeoutTask = null;
-        }
-
-        // Release all GATT resources
-        gattService = null;
-        characteristic = null;
-        gattServicesDiscovered = false;
-        if (gatt != null) {
-            gatt.close();
-            gatt = null;
-            Log.i(TAG, "Bluetooth: diconnecting");
-        }
-
-        tempHistoryValues = null;
-
-        if (progressDialog != null) {
-            progressDialog.dismiss();
-            progressDialog = null;
-        }
+    synchronized private void startSyncAll() {
+        startTask(SyncEngine.Task.getVoltage);
+        startTask(SyncEngine.Task.getMinutelyHistory);
+        startTask(SyncEngine.Task.getHourlyHistory);
+        startTask(SyncEngine.Task.getDailyHistory);
     }
 
     /**
-     * Query the GATT server for a voltage history.
-     *
-     * @param historyType the history to be retrieved from the GATT server
+     * Continue the requested tasks. Makes sure that a device has been selected and Bluetooth
+     * is turned on before handing over the tasks to the sync engine.
      */
-    synchronized private void bleRetrieveHistory(HistoryTypes historyType) {
-        switch (historyType) {
-            case historyMinutely:
-                if (activeBluetoothTask != BluetoothTasks.getMinutelyHistory) {
-                    return;
-                }
-                break;
-            case historyHourly:
-                if (activeBluetoothTask != BluetoothTasks.getHourlyHistory) {
-                    return;
-                }
-                break;
-            case historyDaily:
-                if (activeBluetoothTask != BluetoothTasks.getDailyHistory) {
-                    return;
-                }
-                break;
+    synchronized private void continueTask() {
+        if (requestedBluetoothTasks.isEmpty()) {
+            // Tasks cancelled
+            return;
         }
 
-        // Check whether a BLE device has already been selected. If not, select device first.
+        // Check whether a BLE device has already been selected. If not, select it first.
         if (bluetoothDevice == null) {
-            // No device selected so far -> let user select device now
+            // No device selected so far -> let user select one now
             selectDevice();
             return; // Wait for activity result
         }
@@ -890,107 +929,106 @@ public class MainActivity extends android.support.v7.app.AppCompatActivity {
 
         // BLE device has been selected. BLE is turned on.
 
-        // From here on, we show a progress dialog ... retrieving hundreds of
-        // BLE indications (stop&wait protocol) can take longer.
-        if (progressDialog == null) {
-            String dialogTitle = getString(R.string.waiting);
-            String dialogMessage = getString(R.string.download_in_progress);
-            String cancel = getString(R.string.cancel);
-            progressDialog = new ProgressDialog(this);
-            progressDialog.setTitle(dialogTitle);
-            progressDialog.setMessage(dialogMessage);
-            progressDialog.setCancelable(true);
-            progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-            progressDialog.setMax(MAX_HISTORY_SIZE);
-            progressDialog.setProgress(0);
-            progressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, cancel,
-                    new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialog, int which) {
-                            finishTask();
-                        }
-                    });
-            progressDialog.show();
-        }
-
-        if (gatt == null) {
-            bluetoothDevice.connectGatt(this, false, gattHandler);
-            return; // Wait for callback
-        }
-
-        // BLE device has been selected. BLE is turned on. We are connected to GATT server.
-
-        if (!gattServicesDiscovered) {
-            if (!gatt.discoverServices()) {
-                // Cannot start discovery
-                toast(R.string.err_bluetooth_discovery);
-                finishTask();
-                return;
+        for (SyncEngine.Task task : requestedBluetoothTasks) {
+            if (SyncEngine.getHistoryType(task) != null) {
+                // From here on, we show a progress bar ... retrieving hundreds of
+                // BLE indications (stop&wait protocol) can take longer.
+                showProgressBar();
+                break;
             }
-            return; // Wait for GATT callback
         }
 
-        // BLE device has been selected. BLE is turned on. We are connected to GATT server.
-        // GATT services have been discovered.
-
-        gattService = gatt.getService(gattServiceUUID);
-        if (gattService == null) {
-            // Required service not offered by device
-            toast(R.string.err_bluetooth_service);
-            finishTask();
-            return;
+        // Data is received and processed in sync listener. Wait for callback.
+        for (SyncEngine.Task task : requestedBluetoothTasks) {
+            syncEngine.enqueueTask(task);
         }
+        requestedBluetoothTasks.clear();
+    }
+
+    /**
+     * Finish a running Bluetooth task. The GATT session keeps the link open until the
+     * idle timeout expires.
+     */
+    synchronized private void finishTask() {
+        Log.i(TAG, "Finishing Bluetooth task");
 
-        // BLE device has been selected. BLE is turned on. We are connected to GATT server.
-        // GATT services have been discovered. Service is ready.
+        // Cancel all tasks
+        requestedBluetoothTasks.clear();
+        syncEngine.cancelTasks();
 
-        switch (historyType) {
-            case historyMinutely:
-                characteristic = gattService.getCharacteristic(minutelyHistoryCharacteristicUUID);
-                break;
-            case historyHourly:
-                characteristic = gattService.getCharacteristic(hourlyHistoryCharacteristicUUID);
-                break;
-            case historyDaily:
-                characteristic = gattService.getCharacteristic(dailyHistoryCharacteristicUUID);
-                break;
+        if (progressBar != null) {
+            ModelChangeBus.theBus.unsubscribe(progressSubscriber);
+            progressBar.dismiss();
+            progressBar = null;
         }
-
-        if (characteristic == null) {
-            // Required characteristic is not available.
-            toast(R.string.err_bluetooth_characteristic);
-            finishTask();
-            return;
+        synchronized (downloadLock) {
+            if (downloadingHistory != null) {
+                // Download cancelled. The received samples are not archived.
+                DataModel.theModel.setReceivedHistory(downloadingHistory, null, -1);
+                downloadingHistory = null;
+            }
         }
+    }
 
-        // BLE device has been selected. BLE is turned on. We are connected to GATT server.
-        // GATT services have been discovered. Service is ready. Characteristic is available.
+    /**
+     * Show the progress bar for history downloads. Unlike a dialog, the progress bar lets
+     * the user watch the charts filling up while histories are downloaded.
+     */
+    private void showProgressBar() {
+        if (progressBar == null) {
+            DataModel.theModel.setHistoryProgress(0);
+            progressBar = Snackbar.make(findViewById(R.id.viewpager),
+                    getString(R.string.download_in_progress), Snackbar.LENGTH_INDEFINITE);
+            progressBar.setAction(R.string.cancel, new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    finishTask();
+                }
+            });
+            progressBar.show();
+            ModelChangeBus.theBus.subscribeHistoryProgress(progressSubscriber);
+        }
+    }
 
-        // History values are returned as indications. -> subscribe for notifications.
-        if (!gatt.setCharacteristicNotification(characteristic, true)) {
-            toast(R.string.err_bluetooth_notification);
-            finishTask();
-            return;
+    /**
+     * Show the samples of the history being downloaded received so far. Only the samples
+     * newer than the archived history shown are taken from the sync engine (at most one
+     * ring of the device), and the chart places them after the archived history without
+     * preparing the archived history again (cf. HistoryChartPayload). Received samples are
+     * shown even if older samples of the download are still missing.
+     */
+    private void showReceivedHistory() {
+        HistoryType historyType;
+        long archivedSeqNo;
+        synchronized (downloadLock) {
+            historyType = downloadingHistory;
+            if (historyType == null) {
+                return;
+            }
+            archivedSeqNo = archivedSeqNos[historyType.ordinal()];
         }
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                clientCharacteristicConfigurationUUID);
-        if (descriptor == null) {
-            toast(R.string.err_bluetooth_notification);
-            finishTask();
-            return;
+
+        if (syncEngine.getNewestSeqNo(historyType) < archivedSeqNo) {
+            // The device has been reset. All received samples are new.
+            archivedSeqNo = -1;
         }
-        if (!descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE)) {
-            toast(R.string.err_bluetooth_notification);
-            finishTask();
+        HistorySeries received = syncEngine.getReceivedHistory(historyType, archivedSeqNo);
+        if (received == null || received.isEmpty()) {
             return;
         }
-        if (!gatt.writeDescriptor(descriptor)) {
-            toast(R.string.err_bluetooth_notification);
-            finishTask();
-            return;
+        long newestTime = syncEngine.getNewestTime(historyType);
+        if (newestTime < 0) {
+            // Without phase counters, the newest received sample is placed at the current
+            // time, like it is archived.
+            newestTime = System.currentTimeMillis();
         }
 
-        // Data is received and processed in GATT callback. Wait for GATT callback.
+        synchronized (downloadLock) {
+            // The download might have finished in the meantime.
+            if (downloadingHistory == historyType) {
+                DataModel.theModel.setReceivedHistory(historyType, received, newestTime);
+            }
+        }
     }
 
     private void showAboutDialog() {
@@ -0,0 +1,191 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers changes of a data model to subscribers on the UI thread.
+ *
+ * Subscribers subscribe to a part of the data model (current voltage, a history, or the
+ * progress of a history download). Any number of changes published between two display
+ * frames results in at most one callback per subscriber with the next frame, and only if
+ * the subscribed part has changed. Writer threads post at most one message to the main
+ * looper until the next frame has been dispatched.
+ *
+ * Subscribing and unsubscribing must be done on the UI thread.
+ */
+public class ModelChangeBus implements DataModel.ChangeListener {
+
+    public static final ModelChangeBus theBus = new ModelChangeBus(DataModel.theModel);
+
+    /**
+     * Subscriber to changes of the data model.
+     */
+    public interface Subscriber {
+        /**
+         * Called on the UI thread if the subscribed part of the data model has changed.
+         *
+         * @param snapshot the current snapshot of the data model
+         */
+        void onModelChanged(DataModel.Snapshot snapshot);
+    }
+
+    private static abstract class Subscription {
+        final Subscriber subscriber;
+
+        // Version of the subscribed part that has been delivered last.
+        long deliveredVersion = -1;
+
+        Subscription(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        abstract long getVersion(DataModel.Snapshot snapshot);
+    }
+
+    private final DataModel model;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Subscriptions are only accessed on the UI thread.
+    private final ArrayList<Subscription> subscriptions = new ArrayList<>();
+
+    // Set from a change until the next frame is dispatched.
+    private final AtomicBoolean dispatchPending = new AtomicBoolean(false);
+
+    private final Runnable postFrameTask = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            dispatch();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param model the data model whose changes are delivered
+     */
+    public ModelChangeBus(DataModel model) {
+        this.model = model;
+        model.addChangeListener(this);
+    }
+
+    @Override
+    public void onModelChanged(DataModel.Snapshot snapshot) {
+        // Changes up to the next frame are coalesced into a single dispatch.
+        if (dispatchPending.compareAndSet(false, true)) {
+            handler.post(postFrameTask);
+        }
+    }
+
+    private void dispatch() {
+        // Changes from now on trigger another dispatch.
+        dispatchPending.set(false);
+
+        DataModel.Snapshot snapshot = model.getSnapshot();
+        // Subscribers might unsubscribe during the callback.
+        Subscription[] current = subscriptions.toArray(new Subscription[subscriptions.size()]);
+        for (Subscription subscription : current) {
+            long version = subscription.getVersion(snapshot);
+            if (version != subscription.deliveredVersion &&
+                    subscriptions.contains(subscription)) {
+                subscription.deliveredVersion = version;
+                subscription.subscriber.onModelChanged(snapshot);
+            }
+        }
+    }
+
+    private void subscribe(Subscription subscription) {
+        subscriptions.add(subscription);
+        // Deliver the current state with the next frame.
+        onModelChanged(model.getSnapshot());
+    }
+
+    /**
+     * Subscribe to changes of the current voltage. The subscriber receives the current state
+     * with the next frame.
+     *
+     * @param subscriber the subscriber
+     */
+    public void subscribeCurrentVoltage(Subscriber subscriber) {
+        subscribe(new Subscription(subscriber) {
+            @Override
+            long getVersion(DataModel.Snapshot snapshot) {
+                return snapshot.getCurrentVoltageVersion();
+            }
+        });
+    }
+
+    /**
+     * Subscribe to changes of a history. The subscriber receives the current state
+     * with the next frame.
+     *
+     * @param historyType the history
+     * @param subscriber the subscriber
+     */
+    public void subscribeHistory(final HistoryType historyType, Subscriber subscriber) {
+        subscribe(new Subscription(subscriber) {
+            @Override
+            long getVersion(DataModel.Snapshot snapshot) {
+                return snapshot.getHistoryVersion(historyType);
+            }
+        });
+    }
+
+    /**
+     * Subscribe to the progress of history downloads. The subscriber receives the current
+     * state with the next frame.
+     *
+     * @param subscriber the subscriber
+     */
+    public void subscribeHistoryProgress(Subscriber subscriber) {
+        subscribe(new Subscription(subscriber) {
+            @Override
+            long getVersion(DataModel.Snapshot snapshot) {
+                return snapshot.getHistoryProgressVersion();
+            }
+        });
+    }
+
+    /**
+     * Remove all subscriptions of a subscriber.
+     *
+     * @param subscriber the subscriber
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        for (int i = subscriptions.size()-1; i >= 0; i--) {
+            if (subscriptions.get(i).subscriber == subscriber) {
+                subscriptions.remove(i);
+            }
+        }
+    }
+}
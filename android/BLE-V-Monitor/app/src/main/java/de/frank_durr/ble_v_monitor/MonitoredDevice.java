@@ -0,0 +1,59 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+/**
+ * A BLE-V-Monitor device registered for syncing, together with its sync engine and the time
+ * of its last successful sync.
+ */
+public class MonitoredDevice {
+
+    private final String address;
+
+    // Engine syncing the device; created on the first sync, so transfers are resumed by
+    // subsequent syncs.
+    private SyncEngine syncEngine = null;
+
+    // Time of the last successful sync in milliseconds (-1 if never synced).
+    private long lastSyncTime = -1;
+
+    public MonitoredDevice(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    synchronized public SyncEngine getSyncEngine() {
+        return syncEngine;
+    }
+
+    synchronized public void setSyncEngine(SyncEngine syncEngine) {
+        this.syncEngine = syncEngine;
+    }
+
+    synchronized public long getLastSyncTime() {
+        return lastSyncTime;
+    }
+
+    synchronized public void setLastSyncTime(long lastSyncTime) {
+        this.lastSyncTime = lastSyncTime;
+    }
+}
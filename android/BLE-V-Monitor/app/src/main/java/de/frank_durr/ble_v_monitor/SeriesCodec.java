@@ -0,0 +1,305 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compressed encoding of voltage series.
+ *
+ * Consecutive samples differ by a few millivolts only, their sequence numbers are
+ * consecutive, and their timestamps are equidistant. Thus, a sample is encoded relative to
+ * its predecessor: the delta of the value, the delta of the sequence number, and the
+ * delta-of-delta of the timestamp (seconds), all as zigzag varints (small magnitudes, either
+ * sign, take few bytes). A regular sample (next sequence number, same time step) takes a
+ * single byte for a value delta within +/-31 mV:
+ * - varint: zigzag(value delta) << 1 | irregular flag
+ * - if the irregular flag is set: varint zigzag(seq. no. delta - 1),
+ *   varint zigzag(time delta-of-delta)
+ *
+ * Series are encoded in independent blocks of at most BLOCK_SIZE samples. The first sample
+ * of a block is encoded absolutely (varint seq. no., varint time, zigzag varint value), and
+ * its first time step as zigzag varint, so every block can be decoded on its own (random
+ * access per block).
+ */
+public class SeriesCodec {
+
+    public static final int BLOCK_SIZE = 256;
+
+    // Maximum size of an encoded sample: three varints of up to 5 bytes.
+    static private final int MAX_SAMPLE_SIZE = 15;
+
+    // Largest capacity of a decoded series (2 MB of samples). Bounds the memory allocated
+    // for malformed series.
+    public static final int MAX_CAPACITY = 1<<20;
+
+    private SeriesCodec() {
+    }
+
+    /**
+     * Streaming encoder of one block. Samples are added as they are ingested.
+     */
+    public static class BlockEncoder {
+        private byte[] buffer = new byte[64];
+        private int length = 0;
+        private int count = 0;
+
+        private long prevSeqNo;
+        private long prevTime;
+        private long prevStep;
+        private int prevValue;
+
+        /**
+         * Add a sample.
+         *
+         * @param seqNo sequence number (uint32)
+         * @param time timestamp in seconds (uint32)
+         * @param value value (sint16)
+         */
+        public void add(long seqNo, long time, int value) {
+            if (length + MAX_SAMPLE_SIZE > buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length*2);
+            }
+
+            if (count == 0) {
+                length = writeVarint(seqNo, buffer, length);
+                length = writeVarint(time, buffer, length);
+                length = writeVarint(zigzag(value), buffer, length);
+            } else {
+                long step = time - prevTime;
+                if (count == 1) {
+                    length = writeVarint(zigzag(step), buffer, length);
+                }
+                long seqDelta = seqNo - prevSeqNo;
+                long dod = (count == 1 ? 0 : step - prevStep);
+                boolean irregular = (seqDelta != 1 || dod != 0);
+                length = writeVarint(zigzag(value - prevValue)<<1 | (irregular ? 1 : 0),
+                        buffer, length);
+                if (irregular) {
+                    length = writeVarint(zigzag(seqDelta - 1), buffer, length);
+                    length = writeVarint(zigzag(dod), buffer, length);
+                }
+                prevStep = step;
+            }
+
+            prevSeqNo = seqNo;
+            prevTime = time;
+            prevValue = value;
+            count++;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public boolean isFull() {
+            return (count >= BLOCK_SIZE);
+        }
+
+        /**
+         * Get the encoded block.
+         *
+         * @return the encoded block
+         */
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        public void reset() {
+            length = 0;
+            count = 0;
+        }
+    }
+
+    /**
+     * Decoder of one block.
+     */
+    public static class BlockDecoder {
+        private final ByteBuffer buffer;
+        private final int count;
+        private int index = 0;
+
+        private long seqNo;
+        private long time;
+        private long step;
+        private int value;
+
+        /**
+         * Constructor.
+         *
+         * @param buffer buffer containing the block
+         * @param offset offset of the block
+         * @param count number of samples of the block
+         */
+        public BlockDecoder(ByteBuffer buffer, int offset, int count) {
+            this.buffer = buffer.duplicate();
+            this.buffer.position(offset);
+            this.count = count;
+        }
+
+        /**
+         * Decode the next sample.
+         *
+         * @return false, if all samples have been decoded
+         * @throws RuntimeException if the block is malformed
+         */
+        public boolean next() {
+            if (index == count) {
+                return false;
+            }
+
+            if (index == 0) {
+                seqNo = readVarint(buffer);
+                time = readVarint(buffer);
+                value = (int) unzigzag(readVarint(buffer));
+            } else {
+                if (index == 1) {
+                    step = unzigzag(readVarint(buffer));
+                }
+                long v = readVarint(buffer);
+                value += (int) unzigzag(v >>> 1);
+                long seqDelta = 1;
+                if ((v & 1) != 0) {
+                    seqDelta = unzigzag(readVarint(buffer)) + 1;
+                    step += unzigzag(readVarint(buffer));
+                }
+                seqNo += seqDelta;
+                time += step;
+            }
+
+            index++;
+            return true;
+        }
+
+        public long getSeqNo() {
+            return seqNo;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Encode the values of a series: varint capacity, varint size, followed by blocks of
+     * varint length and encoded samples (sequence numbers and timestamps are implicit).
+     * The capacity must not exceed MAX_CAPACITY.
+     *
+     * @param series the series
+     * @return the encoded series
+     */
+    public static byte[] encodeValues(HistorySeries series) {
+        byte[] encoded = new byte[10 + series.size()*MAX_SAMPLE_SIZE];
+        int length = writeVarint(series.getCapacity(), encoded, 0);
+        length = writeVarint(series.size(), encoded, length);
+
+        BlockEncoder encoder = new BlockEncoder();
+        for (int i = 0; i < series.size(); i++) {
+            encoder.add(i, 0, series.get(i));
+            if (encoder.isFull() || i == series.size()-1) {
+                byte[] block = encoder.toByteArray();
+                length = writeVarint(block.length, encoded, length);
+                System.arraycopy(block, 0, encoded, length, block.length);
+                length += block.length;
+                encoder.reset();
+            }
+        }
+
+        return Arrays.copyOf(encoded, length);
+    }
+
+    /**
+     * Decode a series encoded by encodeValues().
+     *
+     * @param encoded the encoded series
+     * @return the series, or null if the encoded series is malformed
+     */
+    public static HistorySeries decodeValues(byte[] encoded) {
+        if (encoded == null) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(encoded);
+            long capacity = readVarint(buffer);
+            long size = readVarint(buffer);
+            // Every sample takes at least one byte.
+            if (capacity > MAX_CAPACITY || size > capacity || size > encoded.length) {
+                return null;
+            }
+
+            HistorySeries series = new HistorySeries((int) capacity);
+            while (series.size() < size) {
+                int blockLength = (int) readVarint(buffer);
+                int blockCount = (int) Math.min(BLOCK_SIZE, size - series.size());
+                BlockDecoder decoder = new BlockDecoder(buffer, buffer.position(), blockCount);
+                while (decoder.next()) {
+                    int value = decoder.getValue();
+                    if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+                        return null;
+                    }
+                    series.addLast(value);
+                }
+                buffer.position(buffer.position() + blockLength);
+            }
+
+            return series;
+        } catch (RuntimeException e) {
+            // Malformed varint, or truncated data.
+            return null;
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int writeVarint(long value, byte[] buffer, int offset) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new IllegalArgumentException("Malformed varint");
+            }
+            b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
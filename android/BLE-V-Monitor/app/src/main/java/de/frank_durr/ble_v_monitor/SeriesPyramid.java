@@ -0,0 +1,222 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+/**
+ * Level-of-detail downsampling of long voltage series for charts.
+ *
+ * The pyramid keeps the minimum and maximum sample of buckets of 2^l samples for every
+ * level l (level 0 are the samples themselves), built in linear time. To select the points
+ * of a range to be drawn, the level is chosen such that the range covers between 2 and 4
+ * times as many buckets as points are to be drawn (constant time). The minimum and maximum
+ * samples of these buckets are the candidates of the Largest-Triangle-Three-Buckets (LTTB)
+ * algorithm, which selects the points keeping the visual shape of the series. Thus, the
+ * effort of a selection only depends on the number of points drawn (e.g., the width of the
+ * chart in pixels), not on the length of the range. Peaks are candidates of the selection,
+ * but LTTB keeps only one candidate per output bucket, so of a minimum and a maximum falling
+ * into the same output bucket only one is drawn.
+ */
+public class SeriesPyramid {
+
+    private final int[] values;
+
+    // Indices of the minimum and maximum sample of each bucket by level (from level 1).
+    private final int[][] minIndices;
+    private final int[][] maxIndices;
+
+    // Candidates of the last selection (reused).
+    private int[] candidates = new int[0];
+
+    /**
+     * Constructor.
+     *
+     * @param series the series
+     */
+    public SeriesPyramid(HistorySeries series) {
+        int size = series.size();
+        values = new int[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = series.get(i);
+        }
+
+        int levelCount = 1;
+        while ((size >> levelCount) > 0) {
+            levelCount++;
+        }
+        minIndices = new int[levelCount][];
+        maxIndices = new int[levelCount][];
+        for (int level = 1; level < levelCount; level++) {
+            int bucketCount = (size + (1 << level) - 1) >> level;
+            int[] mins = new int[bucketCount];
+            int[] maxs = new int[bucketCount];
+            for (int bucket = 0; bucket < bucketCount; bucket++) {
+                // Merge the two buckets of the level below.
+                int left = 2*bucket;
+                int right = Math.min(left+1, ((size + (1 << (level-1)) - 1) >> (level-1)) - 1);
+                int minLeft = (level == 1 ? left : minIndices[level-1][left]);
+                int minRight = (level == 1 ? right : minIndices[level-1][right]);
+                int maxLeft = (level == 1 ? left : maxIndices[level-1][left]);
+                int maxRight = (level == 1 ? right : maxIndices[level-1][right]);
+                mins[bucket] = (values[minRight] < values[minLeft] ? minRight : minLeft);
+                maxs[bucket] = (values[maxRight] > values[maxLeft] ? maxRight : maxLeft);
+            }
+            minIndices[level] = mins;
+            maxIndices[level] = maxs;
+        }
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public int getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * Select the points to be drawn for a range of the series. The first and the last
+     * sample of the range are always selected.
+     *
+     * @param from index of the first sample of the range
+     * @param to index of the last sample of the range
+     * @param maxPoints maximum number of selected points (at least 3)
+     * @param selected receives the indices of the selected samples in ascending order; must
+     * have room for maxPoints indices
+     * @return the number of selected points
+     */
+    public int select(int from, int to, int maxPoints, int[] selected) {
+        from = Math.max(0, from);
+        to = Math.min(values.length-1, to);
+        int length = to-from+1;
+        if (length <= 0) {
+            return 0;
+        }
+        if (length <= maxPoints) {
+            for (int i = 0; i < length; i++) {
+                selected[i] = from+i;
+            }
+            return length;
+        }
+
+        int level = 0;
+        while ((length >> (level+1)) >= 2*maxPoints && level+1 < minIndices.length) {
+            level++;
+        }
+        int candidateCount = collectCandidates(from, to, level);
+
+        return selectLargestTriangles(candidateCount, maxPoints, selected);
+    }
+
+    /**
+     * Collect the candidates of a range from a level of the pyramid in ascending order.
+     * The first and last sample of the range are always candidates.
+     *
+     * @return the number of candidates
+     */
+    private int collectCandidates(int from, int to, int level) {
+        int firstBucket = from >> level;
+        int lastBucket = to >> level;
+        int maxCount = (level == 0 ? to-from+1 : 2*(lastBucket-firstBucket+1)) + 2;
+        if (candidates.length < maxCount) {
+            candidates = new int[maxCount];
+        }
+
+        int count = 0;
+        candidates[count++] = from;
+        if (level == 0) {
+            for (int i = from+1; i < to; i++) {
+                candidates[count++] = i;
+            }
+        } else {
+            for (int bucket = firstBucket; bucket <= lastBucket; bucket++) {
+                int min = minIndices[level][bucket];
+                int max = maxIndices[level][bucket];
+                int first = Math.min(min, max);
+                int second = Math.max(min, max);
+                // Buckets at the ends of the range might extend beyond the range.
+                if (first > from && first < to) {
+                    candidates[count++] = first;
+                }
+                if (second != first && second > from && second < to) {
+                    candidates[count++] = second;
+                }
+            }
+        }
+        candidates[count++] = to;
+
+        return count;
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets: the candidates between the first and the last one are
+     * split into maxPoints-2 buckets. From every bucket, the candidate forming the largest
+     * triangle with the point selected from the previous bucket and the average of the next
+     * bucket is selected.
+     */
+    private int selectLargestTriangles(int candidateCount, int maxPoints, int[] selected) {
+        if (candidateCount <= maxPoints) {
+            System.arraycopy(candidates, 0, selected, 0, candidateCount);
+            return candidateCount;
+        }
+
+        int count = 0;
+        selected[count++] = candidates[0];
+        int a = candidates[0];
+        int bucketCount = maxPoints-2;
+        double bucketSize = (double) (candidateCount-2)/bucketCount;
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            int start = 1 + (int) (bucket*bucketSize);
+            int end = 1 + (int) ((bucket+1)*bucketSize);
+
+            // Average of the next bucket (the last candidate for the last bucket).
+            int nextStart = end;
+            int nextEnd = Math.min(candidateCount-1, 1 + (int) ((bucket+2)*bucketSize));
+            if (bucket == bucketCount-1) {
+                end = candidateCount-1;
+                nextStart = candidateCount-1;
+                nextEnd = candidateCount;
+            }
+            double avgX = 0.0;
+            double avgY = 0.0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                avgX += candidates[i];
+                avgY += values[candidates[i]];
+            }
+            avgX /= (nextEnd-nextStart);
+            avgY /= (nextEnd-nextStart);
+
+            double maxArea = -1.0;
+            int maxCandidate = candidates[start];
+            for (int i = start; i < end; i++) {
+                int b = candidates[i];
+                double area = Math.abs((a - avgX)*(values[b] - values[a]) -
+                        (a - b)*(avgY - values[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxCandidate = b;
+                }
+            }
+            selected[count++] = maxCandidate;
+            a = maxCandidate;
+        }
+        selected[count++] = candidates[candidateCount-1];
+
+        return count;
+    }
+}
@@ -0,0 +1,511 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GATT transport connected to a simulated peripheral.
+ *
+ * Every GATT operation is answered by the radio thread of the peripheral after a delay
+ * modeling the link timing of the peripheral.
+ */
+class SimulatedGattTransport implements GattTransport {
+
+    private final SimulatedPeripheral peripheral;
+
+    private Callback callback = null;
+    private boolean connected = false;
+    private boolean servicesDiscovered = false;
+
+    // Connection interval of the link in milliseconds (depends on the requested connection
+    // priority).
+    private long connectionInterval;
+
+    // Like the pipes of the nRF8001, a history replay is started once when the client
+    // subscribes to the history for the first time on a link.
+    private final boolean[] isPipeOpen = new boolean[HistoryType.values().length];
+
+    // Pipe of the history data characteristic used for framed history transfers. Frames are
+    // sent as notifications if the client subscribed to notifications.
+    private boolean isDataPipeOpen = false;
+    private boolean isDataPipeNotify = false;
+
+    // Pipe of the current voltage characteristic. The subscription id is incremented whenever
+    // the client subscribes to stop the notifications of the previous subscription.
+    private boolean isVoltagePipeOpen = false;
+    private int voltageSubscriptionId = 0;
+
+    // Incremented whenever a framed transfer is started to stop the previous transfer.
+    private int framedTransferId = 0;
+
+    // Incremented whenever the link is closed to drop all events scheduled before.
+    private int linkGeneration = 0;
+
+    /**
+     * A radio event delivered to the client. Events scheduled before the link has been
+     * closed and events on the link to a stalled peripheral are dropped.
+     */
+    private abstract class RadioEvent implements Runnable {
+        private final int generation;
+
+        RadioEvent() {
+            synchronized (SimulatedGattTransport.this) {
+                generation = linkGeneration;
+            }
+        }
+
+        @Override
+        public void run() {
+            Callback cb;
+            synchronized (SimulatedGattTransport.this) {
+                if (generation != linkGeneration || callback == null ||
+                        (connected && peripheral.isStalled())) {
+                    return;
+                }
+                cb = callback;
+            }
+            // Invoke callbacks without holding the lock like the Bluetooth stack.
+            fire(cb);
+        }
+
+        abstract void fire(Callback cb);
+    }
+
+    /**
+     * Notifies the current voltage once per sample interval while the client is subscribed.
+     */
+    private class VoltageNotification extends RadioEvent {
+        private final int subscriptionId;
+
+        VoltageNotification(int subscriptionId) {
+            this.subscriptionId = subscriptionId;
+        }
+
+        @Override
+        void fire(Callback cb) {
+            synchronized (SimulatedGattTransport.this) {
+                if (!isVoltagePipeOpen || subscriptionId != voltageSubscriptionId) {
+                    // Client unsubscribed.
+                    return;
+                }
+            }
+            cb.onCharacteristicChanged(GattProfile.CURRENT_VOLTAGE_UUID,
+                    GattProfile.encodeSint16(peripheral.getVoltage()));
+            schedule(new VoltageNotification(subscriptionId), peripheral.getSampleInterval());
+        }
+    }
+
+    /**
+     * Sends one history value per connection interval as indication. The next value is
+     * scheduled after the client callback has returned, i.e., after the indication has been
+     * acknowledged.
+     */
+    private class HistoryReplay extends RadioEvent {
+        private final HistoryType historyType;
+        private final long sendSeqNo;
+
+        HistoryReplay(HistoryType historyType, long sendSeqNo) {
+            this.historyType = historyType;
+            this.sendSeqNo = sendSeqNo;
+        }
+
+        @Override
+        void fire(Callback cb) {
+            synchronized (SimulatedGattTransport.this) {
+                if (!isPipeOpen[historyType.ordinal()]) {
+                    // Client unsubscribed. Stop sending the history.
+                    return;
+                }
+            }
+            int value = peripheral.getReplayValue(historyType, sendSeqNo);
+            cb.onCharacteristicChanged(GattProfile.getHistoryUUID(historyType),
+                    GattProfile.encodeSint16(value));
+            if (value != GattProfile.END_OF_HISTORY) {
+                // One step backwards in history.
+                schedule(new HistoryReplay(historyType, (sendSeqNo-1) &
+                        GattProfile.MAX_SEQ_NO), getConnectionInterval());
+            }
+        }
+    }
+
+    /**
+     * Sends history frames. Like the firmware, the transfer starts with a start frame, a frame
+     * carries up to HistoryFrame.MAX_SAMPLES samples, and the transfer is terminated by an
+     * end frame. Frames sent as indications are
+     * sent one per connection interval after the previous one has been acknowledged; frames
+     * sent as notifications are only limited by the data credits of the peripheral.
+     */
+    private class FramedReplay extends RadioEvent {
+        private final HistoryType historyType;
+        private final int transferId;
+        private final boolean notify;
+        private final long startSeqNo;
+        private final long fromSeqNo;
+        private long sendSeqNo;
+        private int frameNo = 0;
+        private boolean started = false;
+        private int sampleCount = 0;
+
+        FramedReplay(HistoryType historyType, int transferId, boolean notify, long fromSeqNo,
+                     long toSeqNo) {
+            this.historyType = historyType;
+            this.transferId = transferId;
+            this.notify = notify;
+            this.fromSeqNo = fromSeqNo;
+            this.startSeqNo = toSeqNo;
+            this.sendSeqNo = toSeqNo;
+        }
+
+        @Override
+        void fire(Callback cb) {
+            int frames = (notify ? peripheral.getDataCredits() : 1);
+            for (int i = 0; i < frames; i++) {
+                synchronized (SimulatedGattTransport.this) {
+                    if (!isDataPipeOpen || transferId != framedTransferId) {
+                        // Client unsubscribed or restarted the transfer.
+                        return;
+                    }
+                }
+                if (!sendFrame(cb)) {
+                    // Sent end frame.
+                    return;
+                }
+            }
+            schedule(this, getConnectionInterval());
+        }
+
+        /**
+         * Send the next frame.
+         *
+         * @param cb the client callback
+         * @return false, if the end frame has been sent
+         */
+        private boolean sendFrame(Callback cb) {
+            byte[] frame;
+            boolean isEnd = false;
+            if (!started) {
+                frame = HistoryFrame.encodeStart(historyType, frameNo, startSeqNo,
+                        peripheral.getHistoryAge(historyType, startSeqNo));
+                started = true;
+            } else {
+                int[] samples = new int[HistoryFrame.MAX_SAMPLES];
+                int count = 0;
+                while (count < HistoryFrame.MAX_SAMPLES &&
+                        ((sendSeqNo - fromSeqNo) & GattProfile.MAX_SEQ_NO) <=
+                                startSeqNo-fromSeqNo &&
+                        !peripheral.isReplayFinished(historyType, sendSeqNo)) {
+                    samples[count++] = peripheral.getHistoryValue(historyType, sendSeqNo);
+                    // One step backwards in history.
+                    sendSeqNo = (sendSeqNo-1) & GattProfile.MAX_SEQ_NO;
+                }
+
+                if (count > 0) {
+                    frame = HistoryFrame.encodeData(historyType, frameNo, samples, count);
+                    sampleCount += count;
+                } else {
+                    frame = HistoryFrame.encodeEnd(historyType, frameNo, startSeqNo,
+                            sampleCount);
+                    isEnd = true;
+                }
+            }
+            frameNo = (frameNo+1) & 0xff;
+
+            if (isEnd || !notify || !peripheral.isNotificationLost()) {
+                cb.onCharacteristicChanged(GattProfile.HISTORY_DATA_UUID, frame);
+            }
+
+            return !isEnd;
+        }
+    }
+
+    SimulatedGattTransport(SimulatedPeripheral peripheral) {
+        this.peripheral = peripheral;
+        this.connectionInterval = peripheral.getConnectionInterval();
+    }
+
+    synchronized private long getConnectionInterval() {
+        return connectionInterval;
+    }
+
+    @Override
+    synchronized public boolean connect(Callback callback) {
+        this.callback = callback;
+        return schedule(new RadioEvent() {
+            @Override
+            void fire(Callback cb) {
+                synchronized (SimulatedGattTransport.this) {
+                    connected = true;
+                }
+                cb.onConnectionStateChange(true);
+            }
+        }, peripheral.getConnectDelay());
+    }
+
+    @Override
+    synchronized public boolean discoverServices() {
+        if (!connected) {
+            return false;
+        }
+
+        return schedule(new RadioEvent() {
+            @Override
+            void fire(Callback cb) {
+                synchronized (SimulatedGattTransport.this) {
+                    servicesDiscovered = true;
+                }
+                cb.onServicesDiscovered(true);
+            }
+        }, peripheral.getDiscoveryDelay());
+    }
+
+    @Override
+    synchronized public boolean hasService() {
+        return servicesDiscovered;
+    }
+
+    @Override
+    synchronized public boolean hasCharacteristic(UUID characteristicUUID) {
+        return (servicesDiscovered && peripheral.hasCharacteristic(characteristicUUID));
+    }
+
+    @Override
+    synchronized public boolean canNotify(UUID characteristicUUID) {
+        // Like the firmware, the current voltage and the history data characteristic
+        // support notifications.
+        return ((characteristicUUID.equals(GattProfile.CURRENT_VOLTAGE_UUID) ||
+                characteristicUUID.equals(GattProfile.HISTORY_DATA_UUID)) &&
+                hasCharacteristic(characteristicUUID));
+    }
+
+    @Override
+    synchronized public boolean readCharacteristic(final UUID characteristicUUID) {
+        if (!hasCharacteristic(characteristicUUID)) {
+            return false;
+        }
+
+        return schedule(new RadioEvent() {
+            @Override
+            void fire(Callback cb) {
+                if (characteristicUUID.equals(GattProfile.CURRENT_VOLTAGE_UUID)) {
+                    cb.onCharacteristicRead(characteristicUUID,
+                            GattProfile.encodeSint16(peripheral.getVoltage()), true);
+                } else {
+                    // Histories are only available through indications.
+                    cb.onCharacteristicRead(characteristicUUID, null, false);
+                }
+            }
+        }, getConnectionInterval());
+    }
+
+    @Override
+    synchronized public boolean writeCharacteristic(final UUID characteristicUUID,
+                                                    final byte[] value) {
+        if (!characteristicUUID.equals(GattProfile.HISTORY_CONTROL_POINT_UUID) ||
+                !hasCharacteristic(characteristicUUID)) {
+            return false;
+        }
+
+        return schedule(new RadioEvent() {
+            @Override
+            void fire(Callback cb) {
+                cb.onCharacteristicWrite(characteristicUUID, true);
+                handleControlPoint(value);
+            }
+        }, getConnectionInterval());
+    }
+
+    /**
+     * Handle a write to the history control point like the firmware.
+     *
+     * @param value the value written by the client
+     */
+    private void handleControlPoint(byte[] value) {
+        if (value == null || value.length < 2) {
+            return;
+        }
+        HistoryType historyType = GattProfile.getHistoryType(value[1]);
+        if (historyType == null) {
+            return;
+        }
+
+        long fromSeqNo;
+        long toSeqNo;
+        long lastSeqNo = peripheral.getReplayStart(historyType);
+        if (value[0] == GattProfile.HISTORY_CP_OPCODE_START) {
+            fromSeqNo = 0;
+            toSeqNo = lastSeqNo;
+        } else if (value[0] == GattProfile.HISTORY_CP_OPCODE_RANGE && value.length >= 10) {
+            fromSeqNo = GattProfile.decodeUint32(value, 2);
+            toSeqNo = GattProfile.decodeUint32(value, 6);
+            if (toSeqNo > lastSeqNo) {
+                // Cannot send samples that have not been taken yet.
+                toSeqNo = lastSeqNo;
+            }
+        } else {
+            return;
+        }
+
+        int transferId;
+        boolean notify;
+        synchronized (this) {
+            if (!isDataPipeOpen) {
+                // Frames can only be sent to a subscribed client.
+                return;
+            }
+            // A transfer in progress is restarted.
+            transferId = ++framedTransferId;
+            notify = isDataPipeNotify;
+        }
+        schedule(new FramedReplay(historyType, transferId, notify, fromSeqNo, toSeqNo),
+                getConnectionInterval());
+    }
+
+    @Override
+    synchronized public boolean subscribe(final UUID characteristicUUID,
+                                          final boolean indications) {
+        if (!hasCharacteristic(characteristicUUID)) {
+            return false;
+        }
+
+        if (characteristicUUID.equals(GattProfile.HISTORY_DATA_UUID)) {
+            isDataPipeOpen = true;
+            isDataPipeNotify = !indications;
+        }
+
+        final boolean isVoltage = characteristicUUID.equals(GattProfile.CURRENT_VOLTAGE_UUID);
+        final int subscriptionId;
+        if (isVoltage) {
+            isVoltagePipeOpen = true;
+            subscriptionId = ++voltageSubscriptionId;
+        } else {
+            subscriptionId = 0;
+        }
+
+        return schedule(new RadioEvent() {
+            @Override
+            void fire(Callback cb) {
+                cb.onDescriptorWrite(characteristicUUID, true);
+
+                if (isVoltage) {
+                    schedule(new VoltageNotification(subscriptionId),
+                            peripheral.getSampleInterval());
+                    return;
+                }
+
+                HistoryType historyType = SimulatedPeripheral.getHistoryType(characteristicUUID);
+                if (historyType == null || !indications) {
+                    return;
+                }
+                synchronized (SimulatedGattTransport.this) {
+                    if (isPipeOpen[historyType.ordinal()]) {
+                        return;
+                    }
+                    // Pipe just became available. Start sending indications for each item
+                    // in the history buffer.
+                    isPipeOpen[historyType.ordinal()] = true;
+                }
+                schedule(new HistoryReplay(historyType, peripheral.getReplayStart(historyType)),
+                        getConnectionInterval());
+            }
+        }, getConnectionInterval());
+    }
+
+    @Override
+    synchronized public boolean unsubscribe(final UUID characteristicUUID) {
+        if (!hasCharacteristic(characteristicUUID)) {
+            return false;
+        }
+
+        HistoryType historyType = SimulatedPeripheral.getHistoryType(characteristicUUID);
+        if (historyType != null) {
+            // Pipe becomes unavailable.
+            isPipeOpen[historyType.ordinal()] = false;
+        } else if (characteristicUUID.equals(GattProfile.CURRENT_VOLTAGE_UUID)) {
+            isVoltagePipeOpen = false;
+        } else if (characteristicUUID.equals(GattProfile.HISTORY_DATA_UUID)) {
+            isDataPipeOpen = false;
+        }
+
+        return schedule(new RadioEvent() {
+            @Override
+            void fire(Callback cb) {
+                cb.onDescriptorWrite(characteristicUUID, true);
+            }
+        }, getConnectionInterval());
+    }
+
+    @Override
+    synchronized public boolean requestConnectionPriority(ConnectionPriority priority) {
+        if (!connected) {
+            return false;
+        }
+
+        // Simplification: the new connection interval is used right away.
+        connectionInterval = peripheral.getConnectionInterval(priority);
+        return true;
+    }
+
+    @Override
+    synchronized public boolean requestMtu(final int mtu) {
+        if (!connected) {
+            return false;
+        }
+
+        return schedule(new RadioEvent() {
+            @Override
+            void fire(Callback cb) {
+                cb.onMtuChanged(Math.min(mtu, peripheral.getMaxMtu()), true);
+            }
+        }, getConnectionInterval());
+    }
+
+    @Override
+    synchronized public void close() {
+        linkGeneration++;
+        callback = null;
+        connected = false;
+        servicesDiscovered = false;
+        for (int i = 0; i < isPipeOpen.length; i++) {
+            isPipeOpen[i] = false;
+        }
+        isDataPipeOpen = false;
+        isVoltagePipeOpen = false;
+    }
+
+    /**
+     * Schedule a radio event.
+     *
+     * @param event the event
+     * @param delay delay in milliseconds
+     * @return true, if the event has been scheduled
+     */
+    private boolean schedule(RadioEvent event, long delay) {
+        try {
+            peripheral.getRadio().schedule(event, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Peripheral has been shut down.
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,440 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A simulated BLE-V-Monitor device running in the same JVM.
+ *
+ * The simulation mirrors the state and behavior of the device firmware: three ring buffers
+ * of HISTORY_RING_SIZE signed 16 bit values, uint32 head counters, backwards replay of a
+ * history starting at head-1 when a client subscribes to a history characteristic, and
+ * the value -1 signaling the end of a history. Optionally, the peripheral also offers framed
+ * history transfers through the history data characteristic and the history control point
+ * (firmware built from the extended service definition). Like the firmware, at most one
+ * indication is in flight at a time; the next one is sent one connection interval after the
+ * previous one has been acknowledged (i.e., after the client callback has returned).
+ *
+ * All radio events of a peripheral are executed by a single thread, which plays the role of
+ * the Android binder thread delivering GATT callbacks.
+ */
+public class SimulatedPeripheral implements GattTransport.Factory {
+
+    // Number of samples taken per minute (cf. SAMPLE_TIMEOUT_THRESHOLD of the firmware).
+    static final int SAMPLES_PER_MINUTE = 6;
+
+    // This number indicates an invalid voltage
+    static final short INVALID_VOLTAGE = -1;
+
+    // Default link timing in milliseconds.
+    public static final long DEFAULT_CONNECTION_INTERVAL = 30;
+    public static final long DEFAULT_CONNECT_DELAY = 300;
+    public static final long DEFAULT_DISCOVERY_DELAY = 600;
+
+    // Default time in milliseconds between two voltage samples (cf. SAMPLE_TIMEOUT_THRESHOLD
+    // of the firmware). Subscribers of the current voltage are notified of every sample.
+    public static final long DEFAULT_SAMPLE_INTERVAL = 10000;
+
+    // Connection intervals in milliseconds used for high and low power connection
+    // priority. Balanced priority uses the connection interval of the peripheral.
+    public static final long HIGH_PRIORITY_CONNECTION_INTERVAL = 15;
+    public static final long LOW_POWER_CONNECTION_INTERVAL = 100;
+
+    // The nRF8001 only supports the default ATT MTU.
+    public static final int DEFAULT_MAX_MTU = GattProfile.DEFAULT_MTU;
+
+    public static final String DEFAULT_ADDRESS = "00:00:00:00:00:01";
+
+    // Default number of data credits of the nRF8001, i.e., the number of notifications that
+    // can be sent per connection interval.
+    public static final int DEFAULT_DATA_CREDITS = 2;
+
+    private final ScheduledExecutorService radio = Executors.newSingleThreadScheduledExecutor();
+
+    private short voltage = INVALID_VOLTAGE;
+
+    private final short[][] historyRings =
+            new short[HistoryType.values().length][GattProfile.HISTORY_RING_SIZE];
+    private final long[] historyHeads = new long[HistoryType.values().length];
+
+    private int minuteTimeout = 0;
+    private int hourTimeout = 0;
+    private int dayTimeout = 0;
+
+    private long connectionInterval = DEFAULT_CONNECTION_INTERVAL;
+    private long connectDelay = DEFAULT_CONNECT_DELAY;
+    private long discoveryDelay = DEFAULT_DISCOVERY_DELAY;
+    private long sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+
+    private int maxMtu = DEFAULT_MAX_MTU;
+
+    private String address = DEFAULT_ADDRESS;
+    private boolean framedHistorySupported = true;
+    private int dataCredits = DEFAULT_DATA_CREDITS;
+
+    // Probability that a history data frame sent as notification gets lost.
+    private double notificationLossRate = 0.0;
+    private final Random random = new Random(0);
+
+    // Set while the peripheral does not answer on established links.
+    private boolean stalled = false;
+
+    /**
+     * Create a new transport connecting to this peripheral.
+     *
+     * @return a new transport
+     */
+    @Override
+    public GattTransport createTransport() {
+        return new SimulatedGattTransport(this);
+    }
+
+    /**
+     * Stop the radio thread of this peripheral.
+     */
+    public void shutdown() {
+        radio.shutdownNow();
+    }
+
+    /**
+     * Take a voltage sample. Like the firmware, every SAMPLES_PER_MINUTE samples, the sample
+     * is recorded in the minutely history; every 60 minutes in the hourly history; every 24
+     * hours in the daily history.
+     *
+     * @param millivolts voltage sample in millivolts
+     */
+    synchronized public void takeSample(int millivolts) {
+        voltage = (short) millivolts;
+
+        minuteTimeout++;
+        if (minuteTimeout >= SAMPLES_PER_MINUTE) {
+            // Completed another minute
+            appendHistory(HistoryType.minutely, voltage);
+            minuteTimeout = 0;
+
+            hourTimeout++;
+            if (hourTimeout >= 60) {
+                // Completed another hour
+                appendHistory(HistoryType.hourly, voltage);
+                hourTimeout = 0;
+
+                dayTimeout++;
+                if (dayTimeout >= 24) {
+                    // Completed another day
+                    appendHistory(HistoryType.daily, voltage);
+                    dayTimeout = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert a value into a history ring buffer directly, e.g., to pre-populate a history.
+     *
+     * @param historyType the history
+     * @param millivolts the voltage value in millivolts
+     */
+    synchronized public void appendHistory(HistoryType historyType, int millivolts) {
+        int i = historyType.ordinal();
+        historyRings[i][(int) (historyHeads[i] % GattProfile.HISTORY_RING_SIZE)] =
+                (short) millivolts;
+        historyHeads[i] = (historyHeads[i]+1) & GattProfile.MAX_SEQ_NO;
+    }
+
+    synchronized public void setVoltage(int millivolts) {
+        voltage = (short) millivolts;
+    }
+
+    synchronized public int getVoltage() {
+        return voltage;
+    }
+
+    /**
+     * Set the time between two voltage notifications sent to subscribers of the current
+     * voltage.
+     *
+     * @param sampleInterval sample interval in milliseconds
+     */
+    synchronized public void setSampleInterval(long sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
+    synchronized public long getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Set the connection interval, i.e., the time between two consecutive indications.
+     *
+     * @param connectionInterval connection interval in milliseconds
+     */
+    synchronized public void setConnectionInterval(long connectionInterval) {
+        this.connectionInterval = connectionInterval;
+    }
+
+    synchronized public long getConnectionInterval() {
+        return connectionInterval;
+    }
+
+    /**
+     * Get the connection interval used for a connection priority. The interval is never
+     * longer than the connection interval of the peripheral for high priority, and never
+     * shorter for low power.
+     *
+     * @param priority the connection priority
+     * @return the connection interval in milliseconds
+     */
+    synchronized public long getConnectionInterval(GattTransport.ConnectionPriority priority) {
+        switch (priority) {
+            case high:
+                return Math.min(connectionInterval, HIGH_PRIORITY_CONNECTION_INTERVAL);
+            case lowPower:
+                return Math.max(connectionInterval, LOW_POWER_CONNECTION_INTERVAL);
+            default:
+                return connectionInterval;
+        }
+    }
+
+    /**
+     * Set the largest ATT MTU supported by the peripheral.
+     *
+     * @param maxMtu the MTU in bytes
+     */
+    synchronized public void setMaxMtu(int maxMtu) {
+        this.maxMtu = maxMtu;
+    }
+
+    synchronized public int getMaxMtu() {
+        return maxMtu;
+    }
+
+    /**
+     * Set the time required to establish a connection.
+     *
+     * @param connectDelay connection establishment time in milliseconds
+     */
+    synchronized public void setConnectDelay(long connectDelay) {
+        this.connectDelay = connectDelay;
+    }
+
+    synchronized public long getConnectDelay() {
+        return connectDelay;
+    }
+
+    /**
+     * Set the time required for service discovery.
+     *
+     * @param discoveryDelay service discovery time in milliseconds
+     */
+    synchronized public void setDiscoveryDelay(long discoveryDelay) {
+        this.discoveryDelay = discoveryDelay;
+    }
+
+    synchronized public long getDiscoveryDelay() {
+        return discoveryDelay;
+    }
+
+    synchronized public void setAddress(String address) {
+        this.address = address;
+    }
+
+    synchronized public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Enable or disable framed history transfers to simulate firmware with or without the
+     * history data characteristic and history control point.
+     *
+     * @param framedHistorySupported true, if framed history transfers are supported
+     */
+    synchronized public void setFramedHistorySupported(boolean framedHistorySupported) {
+        this.framedHistorySupported = framedHistorySupported;
+    }
+
+    synchronized public boolean isFramedHistorySupported() {
+        return framedHistorySupported;
+    }
+
+    /**
+     * Set the number of data credits, i.e., the number of notifications sent per connection
+     * interval.
+     *
+     * @param dataCredits number of data credits
+     */
+    synchronized public void setDataCredits(int dataCredits) {
+        this.dataCredits = dataCredits;
+    }
+
+    synchronized public int getDataCredits() {
+        return dataCredits;
+    }
+
+    /**
+     * Set the probability that a history data frame sent as notification gets lost, e.g.,
+     * because the receive buffer of the client overflows. End frames are never lost.
+     *
+     * @param notificationLossRate loss probability between 0 and 1
+     */
+    synchronized public void setNotificationLossRate(double notificationLossRate) {
+        this.notificationLossRate = notificationLossRate;
+    }
+
+    /**
+     * Stop or resume answering on established links. A stalled peripheral still accepts
+     * connections, but does not answer any request or send any notification, e.g., like
+     * firmware that hangs until the link supervision timeout would close the link.
+     *
+     * @param stalled true to stop answering, false to resume
+     */
+    synchronized public void setStalled(boolean stalled) {
+        this.stalled = stalled;
+    }
+
+    synchronized public boolean isStalled() {
+        return stalled;
+    }
+
+    /**
+     * Decide whether a notification gets lost.
+     *
+     * @return true, if the notification should be dropped
+     */
+    synchronized boolean isNotificationLost() {
+        return (notificationLossRate > 0.0 && random.nextDouble() < notificationLossRate);
+    }
+
+    ScheduledExecutorService getRadio() {
+        return radio;
+    }
+
+    /**
+     * Check whether the peripheral offers a characteristic.
+     *
+     * @param characteristicUUID UUID of the characteristic
+     * @return true, if the characteristic is offered by the peripheral
+     */
+    synchronized boolean hasCharacteristic(UUID characteristicUUID) {
+        if (characteristicUUID.equals(GattProfile.HISTORY_DATA_UUID) ||
+                characteristicUUID.equals(GattProfile.HISTORY_CONTROL_POINT_UUID)) {
+            return framedHistorySupported;
+        }
+
+        return (characteristicUUID.equals(GattProfile.CURRENT_VOLTAGE_UUID) ||
+                getHistoryType(characteristicUUID) != null);
+    }
+
+    /**
+     * Get the history provided by a characteristic.
+     *
+     * @param characteristicUUID UUID of the characteristic
+     * @return the history type, or null if the characteristic does not provide a history
+     */
+    static HistoryType getHistoryType(UUID characteristicUUID) {
+        for (HistoryType historyType : HistoryType.values()) {
+            if (GattProfile.getHistoryUUID(historyType).equals(characteristicUUID)) {
+                return historyType;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the sequence number at which a backwards replay of a history starts.
+     * The head is the next place to insert a new element. Thus, we need to start sending
+     * history values at position head-1, which is the last position written.
+     *
+     * @param historyType the history
+     * @return the first sequence number to be sent
+     */
+    synchronized long getReplayStart(HistoryType historyType) {
+        return (historyHeads[historyType.ordinal()]-1) & GattProfile.MAX_SEQ_NO;
+    }
+
+    /**
+     * Get the age of a sample of a history. Like the firmware, the age of the newest sample
+     * is derived from the phase counters of the minute, hour, and day.
+     *
+     * @param historyType the history
+     * @param seqNo sequence number of the sample
+     * @return the age in seconds
+     */
+    synchronized long getHistoryAge(HistoryType historyType, long seqNo) {
+        long age = minuteTimeout*(60/SAMPLES_PER_MINUTE);
+        if (historyType != HistoryType.minutely) {
+            age += hourTimeout*60;
+        }
+        if (historyType == HistoryType.daily) {
+            age += dayTimeout*60*60;
+        }
+        long newestSeqNo = getReplayStart(historyType);
+        return age + ((newestSeqNo - seqNo) & GattProfile.MAX_SEQ_NO)*
+                GattProfile.getSampleInterval(historyType)/1000;
+    }
+
+    /**
+     * Check whether a replay has reached the end of the history. This is the stopping
+     * condition of the firmware:
+     * - Previously sent seq. no. 0 (cannot go before seq. no. 0):
+     *   sendSeqNo == MAX_SEQ_NO
+     * - head ran into history tail while sending history:
+     *   head >= sendSeqNo+HISTORY_RING_SIZE
+     *
+     * @param historyType the history
+     * @param sendSeqNo sequence number of the value to be sent
+     * @return true, if all values have been sent
+     */
+    synchronized boolean isReplayFinished(HistoryType historyType, long sendSeqNo) {
+        long limit = (sendSeqNo+GattProfile.HISTORY_RING_SIZE) & GattProfile.MAX_SEQ_NO;
+        return (historyHeads[historyType.ordinal()] >= limit ||
+                sendSeqNo == GattProfile.MAX_SEQ_NO);
+    }
+
+    /**
+     * Get the value of the history with the given sequence number.
+     *
+     * @param historyType the history
+     * @param seqNo sequence number of the value
+     * @return the history value
+     */
+    synchronized int getHistoryValue(HistoryType historyType, long seqNo) {
+        return historyRings[historyType.ordinal()][(int) (seqNo % GattProfile.HISTORY_RING_SIZE)];
+    }
+
+    /**
+     * Get the value of the history with the given sequence number, or END_OF_HISTORY if the
+     * replay has reached the end of the history.
+     *
+     * @param historyType the history
+     * @param sendSeqNo sequence number of the value to be sent
+     * @return the history value or END_OF_HISTORY
+     */
+    synchronized int getReplayValue(HistoryType historyType, long sendSeqNo) {
+        if (isReplayFinished(historyType, sendSeqNo)) {
+            return GattProfile.END_OF_HISTORY;
+        }
+
+        return getHistoryValue(historyType, sendSeqNo);
+    }
+}
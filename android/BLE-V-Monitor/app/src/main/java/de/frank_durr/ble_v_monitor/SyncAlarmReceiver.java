@@ -0,0 +1,43 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.WakefulBroadcastReceiver;
+
+/**
+ * Receiver starting the background sync service when the sync alarm goes off. The wake lock
+ * is held until the service has finished the sync. The alarm of the next sync is armed
+ * before the service is started (cf. SyncService.scheduleNext()). After a reboot, the alarm
+ * is scheduled again.
+ */
+public class SyncAlarmReceiver extends WakefulBroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            SyncService.schedule(context);
+            return;
+        }
+
+        SyncService.scheduleNext(context);
+        startWakefulService(context, new Intent(context, SyncService.class));
+    }
+}
@@ -0,0 +1,1029 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Engine performing Bluetooth tasks for retrieving data from the GATT server of a
+ * BLE-V-Monitor device.
+ *
+ * The engine only talks to the device through a GATT session and does not depend on the
+ * Android framework. Thus, it can be run against a simulated peripheral on a plain JVM.
+ * The session keeps the link open after a task has finished, so subsequent tasks do not
+ * need to re-connect and re-discover the services of the device.
+ *
+ * Tasks are queued and executed one after the other on the same link. Thus, fetching the
+ * current voltage and all histories only requires a single connection setup.
+ *
+ * Histories are retrieved as framed transfers (up to HistoryFrame.MAX_SAMPLES samples per
+ * frame) if the device offers the history data characteristic and the history control
+ * point. Otherwise, the engine falls back to the per-sample history characteristics.
+ * If the device supports it, frames are sent as notifications (bulk mode), which are only
+ * limited by the data credits of the device instead of one acknowledged indication per
+ * connection interval. Frames lost in bulk mode are re-requested as ranges.
+ *
+ * The engine keeps the framed transfer of each history per device, whether it has been
+ * completed or interrupted (link lost, task cancelled). The next task retrieving the same
+ * history resumes the transfer: it only requests the samples taken since the last sync, and
+ * the samples that have not been received before. The device sends the sequence number of
+ * its newest sample (head-1) at the start of every transfer, so an up-to-date history only
+ * costs a control point write, a start frame, and an end frame.
+ *
+ * While retrieving histories, the engine requests a high connection priority and a larger
+ * MTU; other tasks and the idle link use low power. The link parameters and the achieved
+ * throughput of every history transfer are recorded in the sync metrics.
+ *
+ * Live voltage updates are received as notifications of the current voltage
+ * characteristic. After the subscribeVoltage task has subscribed to these notifications, the
+ * engine holds the link until the unsubscribeVoltage task or close() is called. Other tasks
+ * are executed on the held link in the meantime. If the held link is lost, the engine
+ * subscribes again on a new link.
+ *
+ * Every GATT operation and the gap between two frames or samples of a history are
+ * supervised by the deadlines of the adaptive timeouts of the session. If a deadline expires
+ * or the link cannot be set up, the link is closed and the active task is retried on a new
+ * link after a backoff delay, which is doubled for every retry. Interrupted transfers are
+ * resumed by the retry. The task fails after MAX_RETRIES retries.
+ */
+public class SyncEngine implements GattSession.Client {
+
+    public enum Task {
+        none, getVoltage, getMinutelyHistory, getHourlyHistory, getDailyHistory,
+        subscribeVoltage, unsubscribeVoltage
+    }
+
+    public enum Failure {
+        connection, discovery, service, characteristic, read, write, notification, timeout
+    }
+
+    /**
+     * Listener receiving the results of Bluetooth tasks. Methods may be called on an
+     * arbitrary thread.
+     */
+    public interface Listener {
+        void onCurrentVoltage(int voltage);
+
+        void onHistory(HistoryType historyType, HistorySeries history);
+
+        void onHistoryProgress(HistoryType historyType, int valueCount);
+
+        void onTaskFailed(Failure failure);
+
+        /**
+         * All queued tasks have been finished or cancelled.
+         */
+        void onTaskFinished();
+    }
+
+    // Maximum number of range requests to recover lost frames of a history.
+    static private final int MAX_RANGE_REQUESTS = 8;
+
+    // Maximum number of retries of a task after timeouts or link failures, and the delay
+    // in milliseconds before the first retry.
+    static final int MAX_RETRIES = 3;
+    static final long RETRY_BACKOFF = 500;
+
+    private final GattSession session;
+    private final Listener listener;
+
+    // The currently active Bluetooth task for retrieving data from the GATT server.
+    // Only one task can be active at a time.
+    private Task activeTask = Task.none;
+
+    // Tasks waiting for the active task to finish.
+    private final LinkedList<Task> pendingTasks = new LinkedList<>();
+
+    private GattTransport transport = null;
+
+    // Set after the complete history has been received while waiting for the device
+    // to confirm that indications have been turned off again.
+    private boolean unsubscribing = false;
+
+    // Framed transfer of the active task (null if the history is retrieved through the
+    // per-sample history characteristics).
+    private HistoryTransfer historyTransfer = null;
+    private int rangeRequests = 0;
+
+    // Framed transfers of each device (by device address) to be resumed by the next task
+    // retrieving the same history, and the transfers of the current device.
+    private final Map<String, Map<HistoryType, HistoryTransfer>> deviceTransfers =
+            new HashMap<>();
+    private Map<HistoryType, HistoryTransfer> historyTransfers =
+            new EnumMap<>(HistoryType.class);
+
+    // Link parameters requested for the current link.
+    private GattTransport linkTransport = null;
+    private GattTransport.ConnectionPriority connectionPriority = null;
+    private boolean mtuRequested = false;
+    private boolean mtuPending = false;
+    private int mtu = GattProfile.DEFAULT_MTU;
+
+    // Metrics of the active history task.
+    private final SyncMetrics metrics = new SyncMetrics();
+    private long transferStartTime = 0;
+    private int transferSampleCount = 0;
+    private int transferPacketCount = 0;
+    private int transferByteCount = 0;
+
+    // Transport on which the engine has subscribed to history frames. Subscriptions
+    // stay active for all framed transfers on the same link.
+    private GattTransport subscribedTransport = null;
+
+    // History received through the per-sample history characteristics.
+    private HistorySeries tempHistoryValues = null;
+
+    // Set while live voltage updates are requested, and after the engine has subscribed to
+    // voltage notifications on the current link.
+    private boolean liveVoltage = false;
+    private boolean voltageSubscribed = false;
+
+    // Timer supervising the pending GATT operation of the active task, or delaying the
+    // retry of the active task. Timers of an earlier generation are ignored.
+    private ScheduledFuture<?> timer = null;
+    private int timerGeneration = 0;
+    private AdaptiveTimeouts.Phase timerPhase = null;
+    private long timerStartTime = 0;
+    private int retries = 0;
+
+    /**
+     * Task signaling the expiry of the operation timer.
+     */
+    private class OperationTimeoutTask implements Runnable {
+        private final int generation;
+
+        OperationTimeoutTask(int generation) {
+            this.generation = generation;
+        }
+
+        @Override
+        public void run() {
+            onOperationTimeout(generation);
+        }
+    }
+
+    /**
+     * Task retrying the active task after the backoff delay.
+     */
+    private class RetryTask implements Runnable {
+        private final int generation;
+
+        RetryTask(int generation) {
+            this.generation = generation;
+        }
+
+        @Override
+        public void run() {
+            restartTask(generation);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param session GATT session to the device
+     * @param listener listener receiving the results of Bluetooth tasks
+     */
+    public SyncEngine(GattSession session, Listener listener) {
+        this.session = session;
+        this.listener = listener;
+    }
+
+    /**
+     * Get the history retrieved by a task.
+     *
+     * @param task the task
+     * @return the history type or null, if the task does not retrieve a history
+     */
+    public static HistoryType getHistoryType(Task task) {
+        switch (task) {
+            case getMinutelyHistory:
+                return HistoryType.minutely;
+            case getHourlyHistory:
+                return HistoryType.hourly;
+            case getDailyHistory:
+                return HistoryType.daily;
+            default:
+                return null;
+        }
+    }
+
+    public GattSession getSession() {
+        return session;
+    }
+
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    synchronized public Task getActiveTask() {
+        return activeTask;
+    }
+
+    /**
+     * Check whether tasks are active or pending.
+     *
+     * @return true, if the engine is working on a task
+     */
+    synchronized public boolean isBusy() {
+        return (activeTask != Task.none);
+    }
+
+    /**
+     * Queue a task. The task is started immediately if no other task is active; otherwise, it
+     * is executed on the same link after the queued tasks have finished. Requests for a task
+     * that is already active or queued are ignored.
+     *
+     * @param task the task to be queued
+     * @return true, if the task has been queued; false, if it is already active or queued
+     */
+    synchronized public boolean enqueueTask(Task task) {
+        if (task == Task.subscribeVoltage) {
+            liveVoltage = true;
+            if (voltageSubscribed) {
+                return false;
+            }
+        } else if (task == Task.unsubscribeVoltage) {
+            liveVoltage = false;
+            pendingTasks.remove(Task.subscribeVoltage);
+            if (!voltageSubscribed && activeTask != Task.subscribeVoltage) {
+                return false;
+            }
+        }
+
+        if (task == Task.none || task == activeTask || pendingTasks.contains(task)) {
+            return false;
+        }
+
+        pendingTasks.add(task);
+        if (activeTask == Task.none) {
+            startNextTask();
+        }
+
+        return true;
+    }
+
+    /**
+     * Cancel the active task and all queued tasks. The link is closed since the device
+     * might still be sending data for the cancelled task. Requested live voltage updates are
+     * continued on a new link.
+     */
+    synchronized public void cancelTasks() {
+        pendingTasks.clear();
+        if (activeTask != Task.none) {
+            finishTask(false);
+            if (liveVoltage) {
+                // Keep receiving live voltage updates on a new link.
+                enqueueTask(Task.subscribeVoltage);
+            }
+        }
+    }
+
+    /**
+     * Check whether live voltage updates have been requested.
+     *
+     * @return true, if live voltage updates are requested
+     */
+    synchronized public boolean isLiveVoltage() {
+        return liveVoltage;
+    }
+
+    /**
+     * Cancel all tasks and live voltage updates, and close the link.
+     */
+    synchronized public void close() {
+        liveVoltage = false;
+        pendingTasks.clear();
+        if (activeTask != Task.none) {
+            finishTask(false);
+        } else if (voltageSubscribed) {
+            voltageSubscribed = false;
+            transport = null;
+            subscribedTransport = null;
+        }
+        session.close();
+    }
+
+    /**
+     * Set the device the session connects to. Subsequent tasks resume the transfers of this
+     * device.
+     *
+     * @param deviceAddress address of the device
+     */
+    synchronized public void setDevice(String deviceAddress) {
+        historyTransfers = deviceTransfers.get(deviceAddress);
+        if (historyTransfers == null) {
+            historyTransfers = new EnumMap<>(HistoryType.class);
+            deviceTransfers.put(deviceAddress, historyTransfers);
+        }
+    }
+
+    /**
+     * Restore the transfer of a history from the current device, e.g., from the samples
+     * stored by a previous run of the app. The next task retrieving this history resumes
+     * the transfer, so only the samples taken since then are retrieved.
+     *
+     * @param historyTransfer the restored transfer (cf. HistoryTransfer.restoreWindow())
+     */
+    synchronized public void restoreTransfer(HistoryTransfer historyTransfer) {
+        historyTransfers.put(historyTransfer.getHistoryType(), historyTransfer);
+    }
+
+    /**
+     * Get the sequence number of the newest sample of the last framed transfer of a history
+     * from the current device. Listeners can call this method from onHistory() to identify
+     * the samples of the history, e.g., to store only samples not stored before.
+     *
+     * @param historyType the history
+     * @return the sequence number, or -1 if not known (e.g., per-sample transfer)
+     */
+    synchronized public long getNewestSeqNo(HistoryType historyType) {
+        HistoryTransfer transfer = historyTransfer;
+        if (transfer == null || transfer.getHistoryType() != historyType) {
+            transfer = historyTransfers.get(historyType);
+        }
+
+        return (transfer == null ? -1 : transfer.getNewestSeqNo());
+    }
+
+    /**
+     * Get the newest samples of a history received so far by the active task, so a history
+     * can be shown while it is being downloaded.
+     *
+     * @param historyType the history
+     * @param afterSeqNo only samples with larger sequence numbers are returned (-1 for all)
+     * @return the samples in chronological order, or null if the history is not being
+     * downloaded (or, for per-sample transfers, if afterSeqNo is not -1)
+     */
+    synchronized public HistorySeries getReceivedHistory(HistoryType historyType,
+                                                         long afterSeqNo) {
+        if (getHistoryType(activeTask) != historyType) {
+            return null;
+        }
+
+        if (historyTransfer != null) {
+            return historyTransfer.getReceivedHistory(afterSeqNo);
+        } else if (tempHistoryValues != null && afterSeqNo < 0) {
+            // Per-sample transfers carry no sequence numbers.
+            HistorySeries history = new HistorySeries(tempHistoryValues.size());
+            for (int i = 0; i < tempHistoryValues.size(); i++) {
+                history.addLast(tempHistoryValues.get(i));
+            }
+            return history;
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the timestamp of the newest sample of the last framed transfer of a history
+     * from the current device. Like getNewestSeqNo(), listeners can call this method from
+     * onHistory().
+     *
+     * @param historyType the history
+     * @return the timestamp in milliseconds since the epoch, or -1 if not known (e.g.,
+     * per-sample transfer or firmware without phase counters)
+     */
+    synchronized public long getNewestTime(HistoryType historyType) {
+        HistoryTransfer transfer = historyTransfer;
+        if (transfer == null || transfer.getHistoryType() != historyType) {
+            transfer = historyTransfers.get(historyType);
+        }
+
+        return (transfer == null ? -1 : transfer.getNewestTime());
+    }
+
+    /**
+     * Start the next queued task. If the link of the previous task is still held, the task
+     * continues on this link right away; otherwise, the engine acquires the GATT session,
+     * which connects to the device unless the link is still open from a previous task.
+     */
+    synchronized private void startNextTask() {
+        activeTask = pendingTasks.removeFirst();
+        unsubscribing = false;
+        historyTransfer = null;
+        rangeRequests = 0;
+        if (getHistoryType(activeTask) != null) {
+            tempHistoryValues = new HistorySeries(GattProfile.HISTORY_RING_SIZE);
+        }
+
+        if (transport != null) {
+            continueTask();
+        } else if (!session.acquire(this)) {
+            // Session is used by somebody else.
+            fail(Failure.connection);
+        }
+    }
+
+    /**
+     * The active task has been completed successfully. Continue with the next queued task on
+     * the same link, or hand back the link to the session if no more tasks are queued.
+     */
+    synchronized private void completeTask() {
+        retries = 0;
+        tempHistoryValues = null;
+        suspendHistoryTransfer();
+
+        if (pendingTasks.isEmpty() && liveVoltage && !voltageSubscribed) {
+            // Subscription to live voltage updates has been lost by a retry of the task.
+            pendingTasks.add(Task.subscribeVoltage);
+        }
+
+        if (!pendingTasks.isEmpty()) {
+            startNextTask();
+        } else {
+            finishTask(true);
+        }
+    }
+
+    /**
+     * Finish Bluetooth tasks.
+     *
+     * @param keepLink true to keep the link open for subsequent tasks; false to close it.
+     */
+    synchronized private void finishTask(boolean keepLink) {
+        // Cancel task
+        activeTask = Task.none;
+        pendingTasks.clear();
+        cancelTimer();
+        retries = 0;
+
+        suspendHistoryTransfer();
+
+        mtuPending = false;
+
+        // Hand back the link to the session, unless the link is held for live voltage
+        // updates. The idle link uses low power.
+        if (keepLink && transport != null) {
+            setConnectionPriority(GattTransport.ConnectionPriority.lowPower);
+        }
+        unsubscribing = false;
+        if (!keepLink) {
+            transport = null;
+            voltageSubscribed = false;
+            session.close();
+            subscribedTransport = null;
+        } else if (!voltageSubscribed) {
+            transport = null;
+            session.release();
+        }
+
+        tempHistoryValues = null;
+
+        listener.onTaskFinished();
+    }
+
+    /**
+     * Keep the framed transfer of the active task, so the next task retrieving the same
+     * history can resume it.
+     */
+    synchronized private void suspendHistoryTransfer() {
+        if (historyTransfer == null) {
+            return;
+        }
+
+        if (historyTransfer.suspend()) {
+            historyTransfers.put(historyTransfer.getHistoryType(), historyTransfer);
+        } else {
+            historyTransfers.remove(historyTransfer.getHistoryType());
+        }
+        historyTransfer = null;
+    }
+
+    /**
+     * Request a connection priority unless it has already been requested for the link.
+     *
+     * @param priority the connection priority
+     */
+    synchronized private void setConnectionPriority(GattTransport.ConnectionPriority priority) {
+        if (priority != connectionPriority) {
+            connectionPriority = priority;
+            transport.requestConnectionPriority(priority);
+        }
+    }
+
+    /**
+     * Record the metrics of the history transfer of the active task.
+     *
+     * @param historyType the history
+     * @param framed true for framed transfers
+     */
+    synchronized private void recordTransfer(HistoryType historyType, boolean framed) {
+        long duration = (System.nanoTime() - transferStartTime)/1000000;
+        metrics.addTransfer(new SyncMetrics.Transfer(historyType, connectionPriority, mtu,
+                framed, transferSampleCount, transferPacketCount, transferByteCount,
+                duration));
+    }
+
+    /**
+     * Drop the framed transfer of the active task, e.g., after a protocol error.
+     */
+    synchronized private void discardHistoryTransfer() {
+        if (historyTransfer != null) {
+            historyTransfers.remove(historyTransfer.getHistoryType());
+            historyTransfer = null;
+        }
+    }
+
+    /**
+     * Start supervising a GATT operation of the active task, or the gap until the next frame
+     * or sample of a history. The previous operation is completed.
+     *
+     * @param phase the phase
+     */
+    synchronized private void startTimer(AdaptiveTimeouts.Phase phase) {
+        stopTimer();
+
+        timerPhase = phase;
+        timerStartTime = System.nanoTime();
+        long deadline = session.getTimeouts().getDeadline(phase);
+        try {
+            timer = session.getScheduler().schedule(new OperationTimeoutTask(timerGeneration),
+                    deadline, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Scheduler has been shut down. Operation is not supervised.
+            timer = null;
+        }
+    }
+
+    /**
+     * The supervised operation has been completed. Record its latency.
+     */
+    synchronized private void stopTimer() {
+        if (timerPhase != null) {
+            long latency = (System.nanoTime() - timerStartTime)/1000000;
+            session.getTimeouts().recordLatency(timerPhase, latency);
+        }
+        cancelTimer();
+    }
+
+    synchronized private void cancelTimer() {
+        timerGeneration++;
+        timerPhase = null;
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    synchronized private void onOperationTimeout(int generation) {
+        if (generation != timerGeneration || activeTask == Task.none) {
+            // Operation has been completed in the meantime.
+            return;
+        }
+
+        timer = null;
+        timerPhase = null;
+        retryTask(Failure.timeout);
+    }
+
+    /**
+     * Close the link and retry the active task on a new link after the backoff delay.
+     * Queued tasks stay queued. If the task has already been retried MAX_RETRIES times, the
+     * task fails.
+     *
+     * @param failure reason for retrying the task
+     */
+    synchronized private void retryTask(Failure failure) {
+        if (retries >= MAX_RETRIES) {
+            fail(failure);
+            return;
+        }
+
+        // The retry resumes the framed transfer.
+        suspendHistoryTransfer();
+        cancelTimer();
+        mtuPending = false;
+        transport = null;
+        unsubscribing = false;
+        session.close();
+        subscribedTransport = null;
+        voltageSubscribed = false;
+
+        long delay = RETRY_BACKOFF << retries;
+        retries++;
+        try {
+            timer = session.getScheduler().schedule(new RetryTask(timerGeneration), delay,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            fail(failure);
+        }
+    }
+
+    synchronized private void restartTask(int generation) {
+        if (generation != timerGeneration || activeTask == Task.none) {
+            // Task has been cancelled in the meantime.
+            return;
+        }
+
+        timer = null;
+        pendingTasks.addFirst(activeTask);
+        startNextTask();
+    }
+
+    /**
+     * Cancel the active task and all queued tasks because of a failure.
+     *
+     * @param failure reason of the failure
+     */
+    synchronized private void fail(Failure failure) {
+        listener.onTaskFailed(failure);
+        finishTask(false);
+    }
+
+    /**
+     * Continue the active task with the next step. Called when the session is ready.
+     */
+    synchronized private void continueTask() {
+        if (activeTask == Task.none) {
+            // Task cancelled
+            return;
+        }
+
+        // We are connected to GATT server. GATT services have been discovered.
+
+        if (!transport.hasService()) {
+            // Required service not offered by device
+            fail(Failure.service);
+            return;
+        }
+
+        // We are connected to GATT server. GATT services have been discovered.
+        // Service is ready.
+
+        // Bulk transfers of histories use a high connection priority and a larger MTU;
+        // reading the current voltage uses low power.
+        HistoryType historyType = getHistoryType(activeTask);
+        if (historyType == null) {
+            setConnectionPriority(GattTransport.ConnectionPriority.lowPower);
+        } else {
+            setConnectionPriority(GattTransport.ConnectionPriority.high);
+            if (!mtuRequested) {
+                mtuRequested = true;
+                if (transport.requestMtu(GattProfile.PREFERRED_MTU)) {
+                    // Wait for GATT callback.
+                    mtuPending = true;
+                    startTimer(AdaptiveTimeouts.Phase.operation);
+                    return;
+                }
+            }
+            transferStartTime = System.nanoTime();
+            transferSampleCount = 0;
+            transferPacketCount = 0;
+            transferByteCount = 0;
+        }
+
+        if (activeTask == Task.subscribeVoltage || activeTask == Task.unsubscribeVoltage) {
+            changeVoltageSubscription();
+            return;
+        }
+
+        UUID characteristicUUID;
+        if (historyType == null) {
+            characteristicUUID = GattProfile.CURRENT_VOLTAGE_UUID;
+        } else if (transport.hasCharacteristic(GattProfile.HISTORY_DATA_UUID) &&
+                transport.hasCharacteristic(GattProfile.HISTORY_CONTROL_POINT_UUID)) {
+            // Device supports framed history transfers. Resume the transfer of the last task
+            // retrieving this history, if any.
+            historyTransfer = historyTransfers.remove(historyType);
+            if (historyTransfer == null) {
+                historyTransfer = new HistoryTransfer(historyType);
+            }
+            characteristicUUID = GattProfile.HISTORY_DATA_UUID;
+        } else {
+            characteristicUUID = GattProfile.getHistoryUUID(historyType);
+        }
+        if (!transport.hasCharacteristic(characteristicUUID)) {
+            // Required characteristic is not available.
+            fail(Failure.characteristic);
+            return;
+        }
+
+        // We are connected to GATT server. GATT services have been discovered.
+        // Service is ready. Characteristic is available.
+
+        if (historyType == null) {
+            if (!transport.readCharacteristic(characteristicUUID)) {
+                // Cannot read characteristic value
+                fail(Failure.read);
+            } else {
+                startTimer(AdaptiveTimeouts.Phase.operation);
+            }
+        } else if (historyTransfer != null && subscribedTransport == transport) {
+            // Already subscribed to history frames on this link. Request the history.
+            requestHistory();
+        } else {
+            // History values are returned as indications or notifications. -> subscribe.
+            // For framed transfers, the transfer is started through the control point after
+            // the subscription has been confirmed. Bulk mode uses notifications.
+            boolean indications = (historyTransfer == null ||
+                    !transport.canNotify(characteristicUUID));
+            if (!transport.subscribe(characteristicUUID, indications)) {
+                fail(Failure.notification);
+            } else {
+                startTimer(AdaptiveTimeouts.Phase.descriptorWrite);
+            }
+        }
+
+        // Data is received and processed in GATT callback. Wait for GATT callback.
+    }
+
+    /**
+     * Subscribe to or unsubscribe from notifications of the current voltage.
+     */
+    synchronized private void changeVoltageSubscription() {
+        UUID characteristicUUID = GattProfile.CURRENT_VOLTAGE_UUID;
+        boolean started;
+        if (activeTask == Task.subscribeVoltage) {
+            if (voltageSubscribed) {
+                completeTask();
+                return;
+            }
+            if (!transport.canNotify(characteristicUUID)) {
+                // Device does not notify the current voltage.
+                fail(Failure.characteristic);
+                return;
+            }
+            started = transport.subscribe(characteristicUUID, false);
+        } else {
+            if (!voltageSubscribed) {
+                completeTask();
+                return;
+            }
+            started = transport.unsubscribe(characteristicUUID);
+        }
+
+        if (!started) {
+            fail(Failure.notification);
+        } else {
+            startTimer(AdaptiveTimeouts.Phase.descriptorWrite);
+        }
+    }
+
+    /**
+     * Request the history of the active task through the history control point, either
+     * completely or the next range of missing samples.
+     */
+    synchronized private void requestHistory() {
+        HistoryType historyType = historyTransfer.getHistoryType();
+        long[] range = historyTransfer.startPass();
+        byte[] command;
+        if (range == null) {
+            command = GattProfile.encodeStartHistoryCommand(historyType);
+        } else {
+            command = GattProfile.encodeRangeHistoryCommand(historyType, range[0], range[1]);
+        }
+
+        if (!transport.writeCharacteristic(GattProfile.HISTORY_CONTROL_POINT_UUID, command)) {
+            fail(Failure.write);
+        } else {
+            startTimer(AdaptiveTimeouts.Phase.operation);
+        }
+    }
+
+    @Override
+    synchronized public void onSessionReady(GattTransport transport) {
+        if (activeTask == Task.none) {
+            return;
+        }
+
+        this.transport = transport;
+        if (transport != linkTransport) {
+            // New link. Link parameters have not been requested yet.
+            linkTransport = transport;
+            connectionPriority = null;
+            mtuRequested = false;
+            mtuPending = false;
+            mtu = GattProfile.DEFAULT_MTU;
+        }
+        continueTask();
+    }
+
+    @Override
+    synchronized public void onSessionFailed(Failure failure) {
+        if (activeTask == Task.none) {
+            if (voltageSubscribed) {
+                // Lost the link held for live voltage updates. Subscribe again on a new link.
+                voltageSubscribed = false;
+                transport = null;
+                subscribedTransport = null;
+                pendingTasks.add(Task.subscribeVoltage);
+                startNextTask();
+            }
+            return;
+        }
+
+        if (failure == Failure.connection || failure == Failure.discovery ||
+                failure == Failure.timeout) {
+            // Link lost or not established while performing task. Retry task on a new link.
+            retryTask(failure);
+        } else {
+            fail(failure);
+        }
+    }
+
+    @Override
+    synchronized public void onCharacteristicRead(UUID characteristicUUID, byte[] value,
+                                                  boolean success) {
+        if (activeTask != Task.getVoltage) {
+            return;
+        }
+
+        stopTimer();
+
+        if (!success || value == null || value.length < 2) {
+            // Read operation failed. Cancel task.
+            fail(Failure.read);
+        } else {
+            // Successfully retrieved data.
+            listener.onCurrentVoltage(GattProfile.decodeSint16(value, 0));
+
+            // Task done, keep link open for the next task.
+            completeTask();
+        }
+    }
+
+    @Override
+    synchronized public void onCharacteristicWrite(UUID characteristicUUID, boolean success) {
+        if (historyTransfer == null) {
+            return;
+        }
+
+        stopTimer();
+        if (!success) {
+            // Control point write failed. Cancel task.
+            fail(Failure.write);
+            return;
+        }
+
+        // Frames are received in GATT callback. Wait for GATT callback.
+        startTimer(AdaptiveTimeouts.Phase.gap);
+    }
+
+    @Override
+    synchronized public void onDescriptorWrite(UUID characteristicUUID, boolean success) {
+        if (activeTask == Task.none) {
+            return;
+        }
+
+        stopTimer();
+        if (!success) {
+            fail(Failure.notification);
+        } else if (activeTask == Task.subscribeVoltage ||
+                activeTask == Task.unsubscribeVoltage) {
+            voltageSubscribed = (activeTask == Task.subscribeVoltage);
+            completeTask();
+        } else if (unsubscribing) {
+            // Indications turned off. The next subscription will start a new transfer
+            // of the history on the same link.
+            completeTask();
+        } else if (historyTransfer != null) {
+            // Subscribed to history frames. Request the history.
+            subscribedTransport = transport;
+            requestHistory();
+        } else {
+            // Subscribed to the per-sample history. Wait for the first sample.
+            startTimer(AdaptiveTimeouts.Phase.gap);
+        }
+    }
+
+    @Override
+    synchronized public void onCharacteristicChanged(UUID characteristicUUID, byte[] value) {
+        if (characteristicUUID.equals(GattProfile.CURRENT_VOLTAGE_UUID)) {
+            // Live voltage update.
+            if (voltageSubscribed && value != null && value.length >= 2) {
+                listener.onCurrentVoltage(GattProfile.decodeSint16(value, 0));
+            }
+            return;
+        }
+
+        HistoryType historyType = getHistoryType(activeTask);
+        if (historyType == null || unsubscribing || value == null || value.length < 2) {
+            // Should never happen since indications are only sent for histories.
+            return;
+        }
+
+        transferPacketCount++;
+        transferByteCount += value.length;
+
+        if (historyTransfer != null) {
+            if (characteristicUUID.equals(GattProfile.HISTORY_DATA_UUID)) {
+                onHistoryFrame(value);
+            }
+            return;
+        }
+
+        stopTimer();
+        int v = GattProfile.decodeSint16(value, 0);
+        if (v == GattProfile.END_OF_HISTORY) {
+            // -1 indicates the end of the history
+            recordTransfer(historyType, false);
+            listener.onHistory(historyType, tempHistoryValues);
+
+            // Turn off indications before handing back the link to the session. The device
+            // only starts a new transfer when the client subscribes again.
+            unsubscribing = true;
+            if (!transport.unsubscribe(characteristicUUID)) {
+                // Finish task and close the link; a new link will start a new transfer.
+                finishTask(false);
+            } else {
+                startTimer(AdaptiveTimeouts.Phase.descriptorWrite);
+            }
+        } else {
+            // The history is transmitted in reverse chronological order (newest first).
+            // Thus, we need to add values at the list head to achieve chronological
+            // order in the end.
+            tempHistoryValues.addFirst(v);
+            transferSampleCount++;
+            listener.onHistoryProgress(historyType, tempHistoryValues.size());
+            startTimer(AdaptiveTimeouts.Phase.gap);
+        }
+    }
+
+    @Override
+    synchronized public void onMtuChanged(int mtu, boolean success) {
+        if (activeTask == Task.none || !mtuPending) {
+            return;
+        }
+
+        mtuPending = false;
+        stopTimer();
+        if (success) {
+            this.mtu = mtu;
+        }
+
+        // Continue with the bulk transfer, whatever MTU has been negotiated.
+        continueTask();
+    }
+
+    /**
+     * Process a frame of a framed history transfer.
+     *
+     * @param value value of the history data characteristic
+     */
+    synchronized private void onHistoryFrame(byte[] value) {
+        stopTimer();
+        HistoryFrame frame = HistoryFrame.decode(value);
+        if (frame == null) {
+            // Malformed frame. Cancel task. Received samples are not trusted anymore.
+            discardHistoryTransfer();
+            fail(Failure.read);
+            return;
+        }
+
+        if (frame.type == HistoryFrame.Type.data) {
+            transferSampleCount += frame.samples.length;
+        }
+
+        HistoryType historyType = historyTransfer.getHistoryType();
+        switch (historyTransfer.onFrame(frame, System.currentTimeMillis())) {
+            case progress:
+                listener.onHistoryProgress(historyType, historyTransfer.getReceivedCount());
+                startTimer(AdaptiveTimeouts.Phase.gap);
+                break;
+            case incomplete:
+                // Frames got lost. Re-request the missing samples.
+                rangeRequests++;
+                if (rangeRequests > MAX_RANGE_REQUESTS) {
+                    fail(Failure.read);
+                } else {
+                    requestHistory();
+                }
+                break;
+            case complete:
+                // Complete history received. Subscription stays active since the next
+                // transfer is started through the control point.
+                recordTransfer(historyType, true);
+                listener.onHistory(historyType, historyTransfer.getHistory());
+                completeTask();
+                break;
+            default:
+                // Protocol error. Cancel task. Received samples are not trusted anymore.
+                discardHistoryTransfer();
+                fail(Failure.read);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Metrics of the most recent history transfers, e.g., to tune the tradeoff between the
+ * throughput of bulk transfers and the energy spent on the link.
+ */
+public class SyncMetrics {
+
+    /**
+     * Metrics of a single history transfer.
+     */
+    public static class Transfer {
+        public final HistoryType historyType;
+        // Link parameters requested for the transfer.
+        public final GattTransport.ConnectionPriority connectionPriority;
+        public final int mtu;
+        // True for framed transfers, false for per-sample history characteristics.
+        public final boolean framed;
+        // Samples, indications/notifications, and payload bytes received.
+        public final int sampleCount;
+        public final int packetCount;
+        public final int byteCount;
+        // Duration of the transfer in milliseconds.
+        public final long duration;
+
+        public Transfer(HistoryType historyType,
+                        GattTransport.ConnectionPriority connectionPriority, int mtu,
+                        boolean framed, int sampleCount, int packetCount, int byteCount,
+                        long duration) {
+            this.historyType = historyType;
+            this.connectionPriority = connectionPriority;
+            this.mtu = mtu;
+            this.framed = framed;
+            this.sampleCount = sampleCount;
+            this.packetCount = packetCount;
+            this.byteCount = byteCount;
+            this.duration = duration;
+        }
+
+        /**
+         * Get the achieved throughput.
+         *
+         * @return payload bytes per second
+         */
+        public double getThroughput() {
+            return (duration > 0 ? byteCount*1000.0/duration : 0.0);
+        }
+
+        @Override
+        public String toString() {
+            return historyType + ": " + sampleCount + " samples, " + packetCount +
+                    " packets, " + byteCount + " bytes in " + duration + " ms (" +
+                    Math.round(getThroughput()) + " B/s, priority " + connectionPriority +
+                    ", MTU " + mtu + (framed ? ", framed)" : ", per sample)");
+        }
+    }
+
+    // Number of transfers kept.
+    static private final int MAX_TRANSFERS = 32;
+
+    private final LinkedList<Transfer> transfers = new LinkedList<>();
+
+    synchronized public void addTransfer(Transfer transfer) {
+        transfers.addLast(transfer);
+        if (transfers.size() > MAX_TRANSFERS) {
+            transfers.removeFirst();
+        }
+    }
+
+    /**
+     * Get the most recent transfers.
+     *
+     * @return the transfers, oldest first
+     */
+    synchronized public List<Transfer> getTransfers() {
+        return new ArrayList<>(transfers);
+    }
+
+    /**
+     * Get the most recent transfer.
+     *
+     * @return the transfer, or null if no transfer has been recorded
+     */
+    synchronized public Transfer getLastTransfer() {
+        return (transfers.isEmpty() ? null : transfers.getLast());
+    }
+}
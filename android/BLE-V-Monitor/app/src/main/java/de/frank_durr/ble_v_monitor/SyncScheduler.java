@@ -0,0 +1,308 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Scheduler syncing the registered devices over concurrent GATT sessions.
+ *
+ * The Bluetooth controller can only handle a limited number of connections at the same
+ * time. Thus, at most maxSessions devices are synced concurrently; as soon as the sync of a
+ * device has finished, the next device is synced. Devices are synced in the order of their
+ * staleness (devices never synced first, then the device with the oldest last sync). The
+ * time to refresh all devices is therefore about the number of devices divided by
+ * maxSessions times the time to sync one device.
+ *
+ * Each device has its own GATT session and sync engine, which are kept between syncs of
+ * the same scheduler. A new engine restores the transfers of the device from the history
+ * store, so also the first sync of a scheduler (e.g., of a background sync started by an
+ * alarm) only retrieves the samples taken since the samples stored last. For the same
+ * reason, devices not synced by this scheduler so far are as stale as their newest stored
+ * sample.
+ */
+public class SyncScheduler {
+
+    // Default number of concurrent GATT sessions.
+    public static final int DEFAULT_MAX_SESSIONS = 4;
+
+    /**
+     * Provider of the transports to a device.
+     */
+    public interface TransportProvider {
+        GattTransport.Factory getTransportFactory(String deviceAddress);
+    }
+
+    /**
+     * Listener receiving the results of syncs. Methods may be called on an arbitrary thread.
+     */
+    public interface Listener {
+        /**
+         * A history has been retrieved.
+         *
+         * @param device the device
+         * @param historyType the history
+         * @param history the history in chronological order
+         * @param newestSeqNo sequence number of the newest sample, or -1 if not known
+         * @param newestTime timestamp of the newest sample, or -1 if not known
+         */
+        void onHistory(MonitoredDevice device, HistoryType historyType,
+                       HistorySeries history, long newestSeqNo, long newestTime);
+
+        void onDeviceSynced(MonitoredDevice device, boolean success);
+
+        /**
+         * All devices queued by syncAll() have been synced.
+         */
+        void onSyncFinished();
+    }
+
+    private final DeviceRegistry registry;
+    private final HistoryStore store;
+    private final TransportProvider transportProvider;
+    private final ScheduledExecutorService scheduler;
+    private final int maxSessions;
+    private final Listener listener;
+
+    // Devices waiting for a free session, stalest first, and devices being synced.
+    private final LinkedList<MonitoredDevice> pendingDevices = new LinkedList<>();
+    private final List<MonitoredDevice> activeDevices = new LinkedList<>();
+
+    /**
+     * Listener of the sync engine of a device.
+     */
+    private class DeviceSyncListener implements SyncEngine.Listener {
+        private final MonitoredDevice device;
+        private boolean failed = false;
+
+        public DeviceSyncListener(MonitoredDevice device) {
+            this.device = device;
+        }
+
+        @Override
+        public void onCurrentVoltage(int voltage) {
+        }
+
+        @Override
+        public void onHistory(HistoryType historyType, HistorySeries history) {
+            long newestSeqNo = device.getSyncEngine().getNewestSeqNo(historyType);
+            long newestTime = device.getSyncEngine().getNewestTime(historyType);
+            listener.onHistory(device, historyType, history, newestSeqNo, newestTime);
+        }
+
+        @Override
+        public void onHistoryProgress(HistoryType historyType, int valueCount) {
+        }
+
+        @Override
+        public void onTaskFailed(SyncEngine.Failure failure) {
+            failed = true;
+        }
+
+        @Override
+        public void onTaskFinished() {
+            final boolean success = !failed;
+            failed = false;
+
+            // The sync engine calls this method while holding its lock. Start the next sync
+            // outside of this lock.
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onDeviceFinished(device, success);
+                }
+            });
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param registry registry of the devices to be synced
+     * @param store store of the histories synced before
+     * @param transportProvider provider of the transports to the devices
+     * @param scheduler scheduler used by the GATT sessions
+     * @param maxSessions maximum number of concurrent GATT sessions
+     * @param listener listener receiving the results of syncs
+     */
+    public SyncScheduler(DeviceRegistry registry, HistoryStore store,
+                         TransportProvider transportProvider,
+                         ScheduledExecutorService scheduler, int maxSessions,
+                         Listener listener) {
+        this.registry = registry;
+        this.store = store;
+        this.transportProvider = transportProvider;
+        this.scheduler = scheduler;
+        this.maxSessions = maxSessions;
+        this.listener = listener;
+    }
+
+    /**
+     * Check whether devices are being synced or waiting to be synced.
+     *
+     * @return true, if the scheduler is working
+     */
+    synchronized public boolean isBusy() {
+        return (!activeDevices.isEmpty() || !pendingDevices.isEmpty());
+    }
+
+    /**
+     * Sync all registered devices, stalest first. Devices already being synced or waiting to
+     * be synced are not queued again.
+     */
+    synchronized public void syncAll() {
+        for (MonitoredDevice device : registry.getDevices()) {
+            if (!activeDevices.contains(device) && !pendingDevices.contains(device)) {
+                if (device.getLastSyncTime() < 0) {
+                    device.setLastSyncTime(getNewestStoredTime(device.getAddress()));
+                }
+                pendingDevices.add(device);
+            }
+        }
+
+        Collections.sort(pendingDevices, new Comparator<MonitoredDevice>() {
+            @Override
+            public int compare(MonitoredDevice d1, MonitoredDevice d2) {
+                long t1 = d1.getLastSyncTime();
+                long t2 = d2.getLastSyncTime();
+                return (t1 < t2 ? -1 : (t1 == t2 ? 0 : 1));
+            }
+        });
+
+        startNextSyncs();
+    }
+
+    /**
+     * Cancel all syncs. The links to the devices are closed.
+     */
+    synchronized public void cancel() {
+        pendingDevices.clear();
+        List<MonitoredDevice> devices = new LinkedList<>(activeDevices);
+        activeDevices.clear();
+        for (MonitoredDevice device : devices) {
+            device.getSyncEngine().cancelTasks();
+        }
+    }
+
+    /**
+     * Start syncing pending devices as long as sessions are available.
+     */
+    synchronized private void startNextSyncs() {
+        while (activeDevices.size() < maxSessions && !pendingDevices.isEmpty()) {
+            MonitoredDevice device = pendingDevices.removeFirst();
+            activeDevices.add(device);
+
+            SyncEngine syncEngine = device.getSyncEngine();
+            if (syncEngine == null) {
+                // Close the link right after the sync to free the connection slot.
+                String address = device.getAddress();
+                GattSession session = new GattSession(
+                        transportProvider.getTransportFactory(address), scheduler, 0);
+                syncEngine = new SyncEngine(session, new DeviceSyncListener(device));
+                syncEngine.setDevice(address);
+                restoreTransfers(syncEngine, address);
+                device.setSyncEngine(syncEngine);
+            }
+
+            syncEngine.enqueueTask(SyncEngine.Task.getVoltage);
+            syncEngine.enqueueTask(SyncEngine.Task.getMinutelyHistory);
+            syncEngine.enqueueTask(SyncEngine.Task.getHourlyHistory);
+            syncEngine.enqueueTask(SyncEngine.Task.getDailyHistory);
+        }
+    }
+
+    /**
+     * Get the time of the newest stored sample of a device, which has been retrieved by the
+     * last successful sync.
+     *
+     * @param deviceAddress address of the device
+     * @return the time in milliseconds since the epoch, or -1 if not known
+     */
+    private long getNewestStoredTime(String deviceAddress) {
+        long newestTime = -1;
+        for (HistoryType historyType : HistoryType.values()) {
+            try {
+                newestTime = Math.max(newestTime,
+                        store.getNewestTime(deviceAddress, historyType));
+            } catch (IOException e) {
+                // Not known.
+            }
+        }
+
+        return newestTime;
+    }
+
+    /**
+     * Restore the transfers of a new sync engine from the newest stored samples of the
+     * device. Histories that cannot be read are retrieved completely.
+     *
+     * @param syncEngine the sync engine
+     * @param deviceAddress address of the device
+     */
+    private void restoreTransfers(SyncEngine syncEngine, String deviceAddress) {
+        for (HistoryType historyType : HistoryType.values()) {
+            try {
+                long newestSeqNo = store.getNewestSeqNo(deviceAddress, historyType);
+                if (newestSeqNo < 0) {
+                    continue;
+                }
+                final HistoryTransfer transfer = new HistoryTransfer(historyType);
+                transfer.restoreWindow(newestSeqNo,
+                        store.getNewestTime(deviceAddress, historyType));
+                // The device keeps at most HISTORY_RING_SIZE-1 samples.
+                long count = GattProfile.HISTORY_RING_SIZE-1;
+                long first = store.getCount(deviceAddress, historyType) - count;
+                store.scan(deviceAddress, historyType, first, count,
+                        new HistoryStore.Visitor() {
+                            @Override
+                            public void onSample(long seqNo, long time, int value) {
+                                transfer.restoreSample(seqNo, value);
+                            }
+                        });
+                syncEngine.restoreTransfer(transfer);
+            } catch (IOException e) {
+                // Retrieve the complete history.
+            }
+        }
+    }
+
+    private void onDeviceFinished(MonitoredDevice device, boolean success) {
+        boolean finished;
+        synchronized (this) {
+            if (!activeDevices.remove(device)) {
+                return;
+            }
+            if (success) {
+                device.setLastSyncTime(System.currentTimeMillis());
+            }
+            startNextSyncs();
+            finished = !isBusy();
+        }
+
+        listener.onDeviceSynced(device, success);
+        if (finished) {
+            listener.onSyncFinished();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.content.WakefulBroadcastReceiver;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Service retrieving the histories of all registered devices in the background and
+ * appending new samples to the local history store.
+ *
+ * The service is started periodically by SyncAlarmReceiver, independent of whether the app
+ * is in the foreground. The minutely history of a device wraps after 127 minutes, so
+ * samples are lost if the device is not synced within this time. The sync interval is
+ * shorter than the wrap time, also if the alarm is deferred by the system (cf.
+ * SYNC_INTERVAL).
+ *
+ * Devices are synced by a sync scheduler, which limits the number of concurrent GATT
+ * sessions and syncs the stalest devices first.
+ */
+public class SyncService extends Service {
+
+    public static final String TAG = SyncService.class.getName();
+
+    // Preference storing the addresses of the devices registered for background syncs.
+    static private final String PREF_DEVICE_ADDRESSES = "pref_device_addresses";
+
+    // Before Android 6.0, the sync alarm is an inexact repeating alarm, which the system
+    // can batch with the alarms of other apps and defer by up to 75% of the interval. Thus,
+    // the histories are synced at least every 105 minutes. From Android 6.0 on, repeating
+    // alarms are deferred arbitrarily long while the device is idle (Doze). There, every
+    // alarm is a one-shot alarm allowed while idle, which is armed again whenever it goes
+    // off (cf. scheduleNext()).
+    static private final long SYNC_INTERVAL = AlarmManager.INTERVAL_HOUR;
+
+    private final Handler handler = new Handler();
+
+    // Intent of the running sync holding a wake lock; null if no sync is running.
+    private Intent wakefulIntent = null;
+    private ScheduledExecutorService scheduler = null;
+    private SyncScheduler syncScheduler = null;
+    private HistoryStore store = null;
+
+    /**
+     * Listener storing the retrieved histories.
+     */
+    private class SyncListener implements SyncScheduler.Listener {
+        @Override
+        public void onHistory(MonitoredDevice device, HistoryType historyType,
+                              HistorySeries history, long newestSeqNo, long newestTime) {
+            if (newestSeqNo < 0) {
+                // Samples cannot be identified without sequence numbers.
+                Log.w(TAG, "Device does not support framed transfers");
+                return;
+            }
+
+            if (newestTime < 0) {
+                // Firmware without phase counters. The newest sample is recent at least.
+                newestTime = System.currentTimeMillis();
+            }
+
+            try {
+                int count = store.append(device.getAddress(), historyType, newestSeqNo,
+                        newestTime, history);
+                Log.i(TAG, "Stored " + count + " new samples of " + historyType.toString() +
+                        " history of " + device.getAddress());
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot store history: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onDeviceSynced(MonitoredDevice device, boolean success) {
+            if (!success) {
+                Log.w(TAG, "Background sync of " + device.getAddress() + " failed");
+            }
+        }
+
+        @Override
+        public void onSyncFinished() {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    finishSync();
+                }
+            });
+        }
+    }
+
+    /**
+     * Provider of transports to the registered devices.
+     */
+    private class DeviceTransportProvider implements SyncScheduler.TransportProvider {
+        private final BluetoothAdapter bluetoothAdapter;
+
+        public DeviceTransportProvider(BluetoothAdapter bluetoothAdapter) {
+            this.bluetoothAdapter = bluetoothAdapter;
+        }
+
+        @Override
+        public GattTransport.Factory getTransportFactory(final String deviceAddress) {
+            return new GattTransport.Factory() {
+                @Override
+                public GattTransport createTransport() {
+                    return new AndroidGattTransport(SyncService.this,
+                            bluetoothAdapter.getRemoteDevice(deviceAddress));
+                }
+            };
+        }
+    }
+
+    /**
+     * Register a device for background syncs and schedule the periodic background sync.
+     *
+     * @param context the context
+     * @param deviceAddress address of the device
+     */
+    public static void registerDevice(Context context, String deviceAddress) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Set<String> addresses = new HashSet<>(prefs.getStringSet(PREF_DEVICE_ADDRESSES,
+                new HashSet<String>()));
+        if (addresses.add(deviceAddress)) {
+            prefs.edit().putStringSet(PREF_DEVICE_ADDRESSES, addresses).apply();
+        }
+
+        schedule(context);
+    }
+
+    /**
+     * Unregister a device from background syncs. The periodic background sync is cancelled
+     * if no device is left.
+     *
+     * @param context the context
+     * @param deviceAddress address of the device
+     */
+    public static void unregisterDevice(Context context, String deviceAddress) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Set<String> addresses = new HashSet<>(prefs.getStringSet(PREF_DEVICE_ADDRESSES,
+                new HashSet<String>()));
+        if (addresses.remove(deviceAddress)) {
+            prefs.edit().putStringSet(PREF_DEVICE_ADDRESSES, addresses).apply();
+        }
+
+        if (addresses.isEmpty()) {
+            cancel(context);
+        }
+    }
+
+    /**
+     * Schedule the periodic background sync unless it has already been scheduled or no
+     * device has been registered.
+     *
+     * @param context the context
+     */
+    public static void schedule(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (prefs.getStringSet(PREF_DEVICE_ADDRESSES, new HashSet<String>()).isEmpty()) {
+            return;
+        }
+
+        Intent intent = new Intent(context, SyncAlarmReceiver.class);
+        if (PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE) !=
+                null) {
+            // Already scheduled.
+            return;
+        }
+
+        setAlarm(context);
+    }
+
+    /**
+     * Schedule the next background sync after the sync alarm has gone off. Only needed from
+     * Android 6.0 on, where the alarm does not repeat.
+     *
+     * @param context the context
+     */
+    public static void scheduleNext(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            setAlarm(context);
+        }
+    }
+
+    /**
+     * Cancel the periodic background sync. A running sync is not interrupted.
+     *
+     * @param context the context
+     */
+    static private void cancel(Context context) {
+        Intent intent = new Intent(context, SyncAlarmReceiver.class);
+        PendingIntent alarmIntent = PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_NO_CREATE);
+        if (alarmIntent != null) {
+            AlarmManager alarmManager = (AlarmManager) context.getSystemService(
+                    Context.ALARM_SERVICE);
+            alarmManager.cancel(alarmIntent);
+            // Cancel the pending intent as well, so schedule() arms the alarm again.
+            alarmIntent.cancel();
+        }
+    }
+
+    static private void setAlarm(Context context) {
+        Intent intent = new Intent(context, SyncAlarmReceiver.class);
+        PendingIntent alarmIntent = PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(
+                Context.ALARM_SERVICE);
+        long triggerTime = SystemClock.elapsedRealtime() + SYNC_INTERVAL;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // Exact, so the minutely history cannot wrap if the device stays idle.
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    triggerTime, alarmIntent);
+        } else {
+            alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    triggerTime, SYNC_INTERVAL, alarmIntent);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (wakefulIntent != null) {
+            // Sync already running.
+            WakefulBroadcastReceiver.completeWakefulIntent(intent);
+            return START_NOT_STICKY;
+        }
+        wakefulIntent = intent;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        Set<String> addresses = prefs.getStringSet(PREF_DEVICE_ADDRESSES,
+                new HashSet<String>());
+        BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(
+                Context.BLUETOOTH_SERVICE);
+        BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
+        if (addresses.isEmpty()) {
+            // All devices have been unregistered since the alarm has been armed.
+            cancel(this);
+        }
+        if (addresses.isEmpty() || bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
+            // Nothing to sync.
+            finishSync();
+            return START_NOT_STICKY;
+        }
+
+        Log.i(TAG, "Starting background sync of " + addresses.size() + " devices");
+
+        DeviceRegistry registry = new DeviceRegistry();
+        for (String address : addresses) {
+            registry.add(address);
+        }
+        store = HistoryStore.getInstance(getFilesDir());
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        syncScheduler = new SyncScheduler(registry, store,
+                new DeviceTransportProvider(bluetoothAdapter), scheduler,
+                SyncScheduler.DEFAULT_MAX_SESSIONS, new SyncListener());
+        syncScheduler.syncAll();
+
+        // Histories are received and stored in sync listener. Wait for callback.
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Release the resources of the sync and the wake lock, and stop the service.
+     */
+    private void finishSync() {
+        Log.i(TAG, "Finishing background sync");
+
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        syncScheduler = null;
+
+        WakefulBroadcastReceiver.completeWakefulIntent(wakefulIntent);
+        wakefulIntent = null;
+        stopSelf();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Adaptation of the deadlines of the adaptive timeouts to observed latencies.
+ */
+public class AdaptiveTimeoutsTest {
+
+    static private void recordLatencies(AdaptiveTimeouts timeouts, AdaptiveTimeouts.Phase phase,
+                                        long latency, int count) {
+        for (int i = 0; i < count; i++) {
+            timeouts.recordLatency(phase, latency);
+        }
+    }
+
+    static private long getMinDeadline(AdaptiveTimeouts.Phase phase) {
+        return AdaptiveTimeouts.MIN_DEADLINES[phase.ordinal()];
+    }
+
+    static private long getMaxDeadline(AdaptiveTimeouts.Phase phase) {
+        return AdaptiveTimeouts.MAX_DEADLINES[phase.ordinal()];
+    }
+
+    @Test
+    public void usesDefaultDeadlinesUntilEnoughLatencies() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts();
+        AdaptiveTimeouts.Phase phase = AdaptiveTimeouts.Phase.connect;
+        long defaultDeadline = AdaptiveTimeouts.DEFAULT_DEADLINES[phase.ordinal()];
+        assertEquals(defaultDeadline, timeouts.getDeadline(phase));
+
+        recordLatencies(timeouts, phase, 1000, AdaptiveTimeouts.MIN_SAMPLES-1);
+        assertEquals(-1, timeouts.getP95(phase));
+        assertEquals(defaultDeadline, timeouts.getDeadline(phase));
+
+        timeouts.recordLatency(phase, 1000);
+        assertEquals(1000, timeouts.getP95(phase));
+        assertEquals(AdaptiveTimeouts.P95_FACTOR*1000, timeouts.getDeadline(phase));
+    }
+
+    @Test
+    public void adaptsToNinetyFifthPercentile() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts();
+        AdaptiveTimeouts.Phase phase = AdaptiveTimeouts.Phase.operation;
+
+        // Latencies of 100, 200, ..., 2000 ms. The 95th percentile of 20 latencies is the
+        // 19th smallest one.
+        for (int i = 1; i <= 20; i++) {
+            timeouts.recordLatency(phase, 100*i);
+        }
+        assertEquals(1900, timeouts.getP95(phase));
+        assertEquals(AdaptiveTimeouts.P95_FACTOR*1900, timeouts.getDeadline(phase));
+    }
+
+    @Test
+    public void ignoresRareOutliers() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts();
+        AdaptiveTimeouts.Phase phase = AdaptiveTimeouts.Phase.operation;
+
+        recordLatencies(timeouts, phase, 500, AdaptiveTimeouts.HISTORY_SIZE-1);
+        timeouts.recordLatency(phase, 9000);
+        assertEquals(AdaptiveTimeouts.P95_FACTOR*500, timeouts.getDeadline(phase));
+    }
+
+    @Test
+    public void boundsDeadlines() {
+        for (AdaptiveTimeouts.Phase phase : AdaptiveTimeouts.Phase.values()) {
+            AdaptiveTimeouts fast = new AdaptiveTimeouts();
+            recordLatencies(fast, phase, 1, AdaptiveTimeouts.MIN_SAMPLES);
+            assertEquals(getMinDeadline(phase), fast.getDeadline(phase));
+
+            AdaptiveTimeouts slow = new AdaptiveTimeouts();
+            recordLatencies(slow, phase, 60000, AdaptiveTimeouts.MIN_SAMPLES);
+            assertEquals(getMaxDeadline(phase), slow.getDeadline(phase));
+        }
+    }
+
+    @Test
+    public void forgetsOldLatencies() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts();
+        AdaptiveTimeouts.Phase phase = AdaptiveTimeouts.Phase.gap;
+
+        recordLatencies(timeouts, phase, 60000, AdaptiveTimeouts.HISTORY_SIZE);
+        assertEquals(getMaxDeadline(phase), timeouts.getDeadline(phase));
+
+        recordLatencies(timeouts, phase, 1, AdaptiveTimeouts.HISTORY_SIZE);
+        assertEquals(getMinDeadline(phase), timeouts.getDeadline(phase));
+    }
+
+    @Test
+    public void adaptsPhasesIndependently() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts();
+        recordLatencies(timeouts, AdaptiveTimeouts.Phase.discovery, 1,
+                AdaptiveTimeouts.MIN_SAMPLES);
+
+        assertEquals(getMinDeadline(AdaptiveTimeouts.Phase.discovery),
+                timeouts.getDeadline(AdaptiveTimeouts.Phase.discovery));
+        assertEquals(AdaptiveTimeouts.DEFAULT_DEADLINES[AdaptiveTimeouts.Phase.connect.ordinal()],
+                timeouts.getDeadline(AdaptiveTimeouts.Phase.connect));
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Framed history transfers in bulk mode, i.e., frames sent as notifications limited by
+ * the data credits of the peripheral.
+ */
+public class BulkTransferTest {
+
+    // Samples of a full ring: a start frame, 15 data frames, and an end frame.
+    static private final int SAMPLE_COUNT = GattProfile.HISTORY_RING_SIZE-1;
+    static private final int FRAME_COUNT = 2 + (SAMPLE_COUNT + HistoryFrame.MAX_SAMPLES - 1)/
+            HistoryFrame.MAX_SAMPLES;
+
+    private SyncFixture fixture;
+    private SimulatedPeripheral peripheral;
+    private TransportRecorder transportRecorder;
+
+    @Before
+    public void setUp() {
+        fixture = new SyncFixture();
+        peripheral = fixture.peripheral;
+        transportRecorder = fixture.transportRecorder;
+        fixture.appendHistory(HistoryType.minutely, 0, 200);
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+    }
+
+    /**
+     * Download the minutely history with the given number of data credits.
+     *
+     * @return the time between the first and the last frame in milliseconds
+     */
+    private long download(int dataCredits) throws InterruptedException {
+        peripheral.setDataCredits(dataCredits);
+        transportRecorder.clear();
+        // Start from scratch.
+        fixture.syncEngine.setDevice("download-" + dataCredits);
+
+        fixture.run(SyncEngine.Task.getMinutelyHistory);
+        SyncFixture.assertHistory(200 - SAMPLE_COUNT, SAMPLE_COUNT,
+                fixture.recorder.getHistory(HistoryType.minutely));
+
+        // Bulk mode subscribes to notifications, and receives every frame exactly once.
+        assertEquals(1, transportRecorder.getFrameSubscriptions().size());
+        assertFalse(transportRecorder.getFrameSubscriptions().get(0));
+        assertEquals(FRAME_COUNT, transportRecorder.getFrames().size());
+
+        return transportRecorder.getFrameSpan();
+    }
+
+    @Test
+    public void honoursDataCredits() throws InterruptedException {
+        long connectionInterval = peripheral.getConnectionInterval(
+                GattTransport.ConnectionPriority.high);
+        for (int dataCredits = 1; dataCredits <= 4; dataCredits++) {
+            // The peripheral sends at most dataCredits frames per connection interval.
+            int connectionEvents = (FRAME_COUNT + dataCredits - 1)/dataCredits;
+            long span = download(dataCredits);
+            assertTrue("Credits " + dataCredits + ": " + span + " ms",
+                    span >= (connectionEvents-1)*connectionInterval);
+        }
+    }
+
+    @Test
+    public void moreCreditsAreFaster() throws InterruptedException {
+        long slow = download(1);
+        long fast = download(6);
+        assertTrue("1 credit: " + slow + " ms, 6 credits: " + fast + " ms", fast < slow);
+    }
+}
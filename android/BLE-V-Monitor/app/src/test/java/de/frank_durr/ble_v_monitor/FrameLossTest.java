@@ -0,0 +1,119 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recovery of history frames lost in bulk mode by range requests.
+ */
+public class FrameLossTest {
+
+    static private final int SAMPLE_COUNT = GattProfile.HISTORY_RING_SIZE-1;
+    static private final long NEWEST_SEQ_NO = 199;
+
+    private SyncFixture fixture;
+    private SimulatedPeripheral peripheral;
+    private TransportRecorder transportRecorder;
+
+    @Before
+    public void setUp() {
+        fixture = new SyncFixture();
+        peripheral = fixture.peripheral;
+        transportRecorder = fixture.transportRecorder;
+        fixture.appendHistory(HistoryType.minutely, 0, (int) NEWEST_SEQ_NO + 1);
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+    }
+
+    private void download() throws InterruptedException {
+        fixture.run(SyncEngine.Task.getMinutelyHistory);
+        SyncFixture.assertHistory((int) NEWEST_SEQ_NO + 1 - SAMPLE_COUNT, SAMPLE_COUNT,
+                fixture.recorder.getHistory(HistoryType.minutely));
+    }
+
+    @Test
+    public void noRangeRequestsWithoutLoss() throws InterruptedException {
+        download();
+
+        List<byte[]> commands = transportRecorder.getControlPointCommands();
+        assertEquals(1, commands.size());
+        assertEquals(GattProfile.HISTORY_CP_OPCODE_START, commands.get(0)[0]);
+    }
+
+    @Test
+    public void reRequestsMissingRanges() throws InterruptedException {
+        peripheral.setNotificationLossRate(0.2);
+        download();
+
+        List<byte[]> commands = transportRecorder.getControlPointCommands();
+        assertTrue(commands.size() > 1);
+        assertEquals(GattProfile.HISTORY_CP_OPCODE_START, commands.get(0)[0]);
+
+        // Find the newest run of samples lost by the first pass.
+        boolean[] received = new boolean[SAMPLE_COUNT];
+        for (HistoryFrame frame : transportRecorder.getFrames()) {
+            if (frame.type == HistoryFrame.Type.end) {
+                break;
+            }
+            if (frame.type == HistoryFrame.Type.data) {
+                for (int i = 0; i < frame.samples.length; i++) {
+                    received[(frame.frameNo-1)*HistoryFrame.MAX_SAMPLES + i] = true;
+                }
+            }
+        }
+        int first = 0;
+        while (received[first]) {
+            first++;
+        }
+        int last = first;
+        while (last+1 < SAMPLE_COUNT && !received[last+1]) {
+            last++;
+        }
+
+        // The second pass requests exactly this run.
+        byte[] range = commands.get(1);
+        assertEquals(GattProfile.HISTORY_CP_OPCODE_RANGE, range[0]);
+        assertEquals(NEWEST_SEQ_NO - last, GattProfile.decodeUint32(range, 2));
+        assertEquals(NEWEST_SEQ_NO - first, GattProfile.decodeUint32(range, 6));
+
+        // Only missing samples are requested again.
+        long requested = 0;
+        for (byte[] command : commands.subList(1, commands.size())) {
+            assertEquals(GattProfile.HISTORY_CP_OPCODE_RANGE, command[0]);
+            long fromSeqNo = GattProfile.decodeUint32(command, 2);
+            long toSeqNo = GattProfile.decodeUint32(command, 6);
+            assertTrue(fromSeqNo <= toSeqNo);
+            assertTrue(fromSeqNo > NEWEST_SEQ_NO - SAMPLE_COUNT);
+            assertTrue(toSeqNo <= NEWEST_SEQ_NO);
+            requested += toSeqNo - fromSeqNo + 1;
+        }
+        assertTrue(requested < SAMPLE_COUNT);
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Matching of the BLE-V-Monitor service in advertising data.
+ */
+public class GattProfileTest {
+
+    /**
+     * Create a scan record with the flags and a list of 128 bit service UUIDs.
+     */
+    static private byte[] createScanRecord(int type, UUID... uuids) {
+        byte[] record = new byte[62];
+        int i = 0;
+        record[i++] = 2;
+        record[i++] = 0x01;
+        record[i++] = 0x06;
+        record[i++] = (byte) (1 + 16*uuids.length);
+        record[i++] = (byte) type;
+        for (UUID uuid : uuids) {
+            for (int k = 0; k < 8; k++) {
+                record[i++] = (byte) (uuid.getLeastSignificantBits() >>> (8*k));
+            }
+            for (int k = 0; k < 8; k++) {
+                record[i++] = (byte) (uuid.getMostSignificantBits() >>> (8*k));
+            }
+        }
+        // The rest of the record is zero-padded.
+        return record;
+    }
+
+    @Test
+    public void matchesServiceUuid() {
+        UUID other = GattProfile.getUUID(GattProfile.BASE_UUID_MSB, GattProfile.BASE_UUID_LSB,
+                (short) 0x0002);
+        assertTrue(GattProfile.advertisesService(createScanRecord(0x07,
+                GattProfile.SERVICE_UUID)));
+        assertTrue(GattProfile.advertisesService(createScanRecord(0x06, other,
+                GattProfile.SERVICE_UUID)));
+        assertFalse(GattProfile.advertisesService(createScanRecord(0x07, other)));
+        assertFalse(GattProfile.advertisesService(createScanRecord(0x03,
+                GattProfile.SERVICE_UUID)));
+    }
+
+    @Test
+    public void ignoresMalformedData() {
+        byte[] record = createScanRecord(0x07, GattProfile.SERVICE_UUID);
+        byte[] truncated = new byte[3 + 2 + 15];
+        System.arraycopy(record, 0, truncated, 0, truncated.length);
+        assertFalse(GattProfile.advertisesService(truncated));
+        assertFalse(GattProfile.advertisesService(new byte[0]));
+        assertFalse(GattProfile.advertisesService(null));
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Re-using the link and the discovered services of a GATT session across tasks.
+ */
+public class GattSessionTest {
+
+    private SyncFixture fixture;
+    private GattSession session;
+
+    @Before
+    public void setUp() {
+        fixture = new SyncFixture();
+        session = fixture.session;
+        fixture.appendHistory(HistoryType.hourly, 0, 20);
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+    }
+
+    private void sync() throws InterruptedException {
+        fixture.run(SyncEngine.Task.getHourlyHistory);
+        SyncFixture.assertHistory(0, 20, fixture.recorder.getHistory(HistoryType.hourly));
+    }
+
+    @Test
+    public void discoversServicesForEveryLink() throws InterruptedException {
+        sync();
+        sync();
+        assertEquals(2, session.getDiscoveryCount());
+        assertFalse(session.isConnected());
+    }
+
+    @Test
+    public void reusesServicesOfIdleLink() throws InterruptedException {
+        session.setIdleTimeout(SyncFixture.TIMEOUT);
+
+        sync();
+        sync();
+        sync();
+        assertEquals(1, session.getDiscoveryCount());
+        assertTrue(session.isConnected());
+    }
+
+    @Test
+    public void discoversServicesAfterIdleTimeout() throws InterruptedException {
+        session.setIdleTimeout(20);
+
+        sync();
+        Thread.sleep(200);
+        assertFalse(session.isConnected());
+
+        sync();
+        assertEquals(2, session.getDiscoveryCount());
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Placement of the samples of a history on the x axis of its chart.
+ */
+public class HistoryChartPayloadTest {
+
+    static private final long MINUTE = GattProfile.getSampleInterval(HistoryType.minutely);
+
+    static private HistoryChartPayload prepare(DataModel model, int pointBudget) {
+        HistoryChartPayload payload = HistoryChartPayload.prepare(model.getSnapshot(),
+                HistoryType.minutely, pointBudget, null);
+        assertNotNull(payload);
+        return payload;
+    }
+
+    /**
+     * Samples missing from a history leave a gap on the x axis.
+     */
+    @Test
+    public void placesSamplesByTime() {
+        long start = 1000*MINUTE;
+        long[] times = {start, start + MINUTE, start + 5*MINUTE, start + 6*MINUTE + 1000};
+        HistorySeries history = new HistorySeries(times.length);
+        for (int i = 0; i < times.length; i++) {
+            history.addLast(12000 + i);
+        }
+        DataModel model = new DataModel();
+        model.setHistory(HistoryType.minutely, history, times);
+
+        HistoryChartPayload payload = prepare(model, 128);
+        assertEquals(4, payload.size);
+        assertEquals(7, payload.labels.size());
+        int[] expected = {0, 1, 5, 6};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], payload.getPosition(i));
+        }
+        assertEquals(0, payload.findSample(0));
+        assertEquals(2, payload.findSample(2));
+        assertEquals(2, payload.findSample(5));
+        assertEquals(3, payload.findSample(6));
+        assertEquals(4, payload.findSample(7));
+    }
+
+    /**
+     * Samples without timestamps are placed one after the other.
+     */
+    @Test
+    public void placesSamplesWithoutTimes() {
+        int size = 1000;
+        HistorySeries history = new HistorySeries(size);
+        for (int i = 0; i < size; i++) {
+            history.addLast(12000 + i%7);
+        }
+        DataModel model = new DataModel();
+        model.setHistory(HistoryType.minutely, history, 1000*MINUTE);
+
+        HistoryChartPayload payload = prepare(model, 128);
+        assertNotNull(payload.pyramid);
+        assertEquals(size, payload.labels.size());
+        assertEquals(size-1, payload.getPosition(size-1));
+        assertEquals(size, payload.findSample(size+10));
+    }
+
+    /**
+     * Received samples are placed after the history by time, also if older samples of the
+     * download are still missing, and the history part of the previous payload is re-used.
+     */
+    @Test
+    public void appendsReceivedSamples() {
+        int size = 4096;
+        long newestTime = 100000*MINUTE;
+        HistorySeries history = new HistorySeries(size);
+        long[] times = new long[size];
+        for (int i = 0; i < size; i++) {
+            history.addLast(12000 + i%11);
+            times[i] = newestTime - (size-1-i)*MINUTE;
+        }
+        DataModel model = new DataModel();
+        model.setHistory(HistoryType.minutely, history, times);
+        HistoryChartPayload payload = prepare(model, 128);
+        assertNotNull(payload.pyramid);
+        assertEquals(0, payload.receivedCount);
+
+        // The newest 3 of 10 new samples have been received.
+        HistorySeries received = new HistorySeries(3);
+        for (int i = 0; i < 3; i++) {
+            received.addLast(13000 + i);
+        }
+        model.setReceivedHistory(HistoryType.minutely, received, newestTime + 10*MINUTE);
+        HistoryChartPayload next = HistoryChartPayload.prepare(model.getSnapshot(),
+                HistoryType.minutely, 128, payload);
+        assertNotNull(next);
+        assertTrue(next.hasSameHistory(payload));
+        assertSame(payload.pyramid, next.pyramid);
+        assertEquals(3, next.receivedCount);
+        assertEquals(size-1 + 8, next.receivedPositions[0]);
+        assertEquals(size-1 + 10, next.receivedPositions[2]);
+        assertEquals(size + 10, next.labels.size());
+        for (int i = 0; i < size; i++) {
+            assertSame(payload.labels.get(i), next.labels.get(i));
+        }
+
+        // Setting the new history discards the received samples.
+        model.setHistory(HistoryType.minutely, history, times.clone());
+        HistoryChartPayload last = HistoryChartPayload.prepare(model.getSnapshot(),
+                HistoryType.minutely, 128, next);
+        assertNotNull(last);
+        assertTrue(!last.hasSameHistory(next));
+        assertEquals(0, last.receivedCount);
+        assertEquals(size, last.labels.size());
+    }
+
+    /**
+     * A long gap between the history and the received samples does not stretch the x axis.
+     */
+    @Test
+    public void shortensLongGaps() {
+        long newestTime = 100000*MINUTE;
+        HistorySeries history = new HistorySeries(2);
+        history.addLast(12000);
+        history.addLast(12001);
+        DataModel model = new DataModel();
+        model.setHistory(HistoryType.minutely, history,
+                new long[] {newestTime - MINUTE, newestTime});
+
+        HistorySeries received = new HistorySeries(GattProfile.HISTORY_RING_SIZE-1);
+        for (int i = 0; i < received.getCapacity(); i++) {
+            received.addLast(13000 + i);
+        }
+        model.setReceivedHistory(HistoryType.minutely, received,
+                newestTime + 365*24*60*MINUTE);
+        HistoryChartPayload payload = prepare(model, 128);
+        assertEquals(received.size(), payload.receivedCount);
+        assertTrue(payload.receivedPositions[0] > 1);
+        for (int i = 1; i < payload.receivedCount; i++) {
+            assertEquals(payload.receivedPositions[i-1]+1, payload.receivedPositions[i]);
+        }
+        int count = payload.receivedPositions[payload.receivedCount-1]+1;
+        assertEquals(count, payload.labels.size());
+        assertTrue(count < 2*24*60);
+    }
+}
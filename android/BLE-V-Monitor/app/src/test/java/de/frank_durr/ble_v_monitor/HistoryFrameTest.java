@@ -0,0 +1,134 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Round trips of history frames through encoding and decoding.
+ */
+public class HistoryFrameTest {
+
+    @Test
+    public void startFrame() {
+        for (HistoryType historyType : HistoryType.values()) {
+            HistoryFrame frame = HistoryFrame.decode(HistoryFrame.encodeStart(historyType, 0,
+                    GattProfile.MAX_SEQ_NO, HistoryFrame.UNKNOWN_AGE));
+            assertEquals(HistoryFrame.Type.start, frame.type);
+            assertEquals(historyType, frame.historyType);
+            assertEquals(0, frame.frameNo);
+            assertEquals(GattProfile.MAX_SEQ_NO, frame.startSeqNo);
+            assertEquals(HistoryFrame.UNKNOWN_AGE, frame.startAge);
+        }
+    }
+
+    @Test
+    public void startFrameWithAge() {
+        byte[] value = HistoryFrame.encodeStart(HistoryType.daily, 0, 123456789L, 86399);
+        assertEquals(HistoryFrame.START_FRAME_WITH_AGE_SIZE, value.length);
+
+        HistoryFrame frame = HistoryFrame.decode(value);
+        assertEquals(HistoryFrame.Type.start, frame.type);
+        assertEquals(HistoryType.daily, frame.historyType);
+        assertEquals(123456789L, frame.startSeqNo);
+        assertEquals(86399, frame.startAge);
+    }
+
+    @Test
+    public void dataFrames() {
+        int[] samples = {0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE, 12345, -12345, 256, -256};
+        for (HistoryType historyType : HistoryType.values()) {
+            for (int count = 0; count <= HistoryFrame.MAX_SAMPLES; count++) {
+                // Frame numbers wrap around after 255.
+                int frameNo = 250 + count;
+                byte[] value = HistoryFrame.encodeData(historyType, frameNo, samples, count);
+                assertEquals(HistoryFrame.HEADER_SIZE + 2*count, value.length);
+
+                HistoryFrame frame = HistoryFrame.decode(value);
+                assertEquals(HistoryFrame.Type.data, frame.type);
+                assertEquals(historyType, frame.historyType);
+                assertEquals(frameNo & 0xff, frame.frameNo);
+                assertEquals(count, frame.sampleCount);
+                int[] expected = new int[count];
+                System.arraycopy(samples, 0, expected, 0, count);
+                assertArrayEquals(expected, frame.samples);
+            }
+        }
+    }
+
+    @Test
+    public void endFrame() {
+        for (HistoryType historyType : HistoryType.values()) {
+            HistoryFrame frame = HistoryFrame.decode(HistoryFrame.encodeEnd(historyType, 15,
+                    0xfffffffeL, GattProfile.HISTORY_RING_SIZE-1));
+            assertEquals(HistoryFrame.Type.end, frame.type);
+            assertEquals(historyType, frame.historyType);
+            assertEquals(15, frame.frameNo);
+            assertEquals(0xfffffffeL, frame.startSeqNo);
+            assertEquals(GattProfile.HISTORY_RING_SIZE-1, frame.sampleCount);
+        }
+
+        // The sample count is a uint16.
+        HistoryFrame frame = HistoryFrame.decode(HistoryFrame.encodeEnd(HistoryType.minutely,
+                0, 0, 0xffff));
+        assertEquals(0xffff, frame.sampleCount);
+    }
+
+    @Test
+    public void malformedFrames() {
+        assertNull(HistoryFrame.decode(null));
+        assertNull(HistoryFrame.decode(new byte[1]));
+
+        // Truncated start and end frames.
+        byte[] start = HistoryFrame.encodeStart(HistoryType.minutely, 0, 1,
+                HistoryFrame.UNKNOWN_AGE);
+        assertNull(HistoryFrame.decode(truncate(start)));
+        byte[] end = HistoryFrame.encodeEnd(HistoryType.minutely, 2, 1, 2);
+        assertNull(HistoryFrame.decode(truncate(end)));
+
+        // Data frame announcing more samples than it carries.
+        byte[] data = HistoryFrame.encodeData(HistoryType.minutely, 1, new int[] {1, 2}, 2);
+        assertNull(HistoryFrame.decode(truncate(data)));
+
+        // Data frame announcing more samples than a frame can carry.
+        byte[] overfull = new byte[HistoryFrame.HEADER_SIZE + 2*15];
+        overfull[0] = 0x0f;
+        assertNull(HistoryFrame.decode(overfull));
+
+        // Unused frame type.
+        byte[] unknown = new byte[HistoryFrame.MAX_SIZE];
+        unknown[0] = (byte) 0xc0;
+        assertNull(HistoryFrame.decode(unknown));
+
+        // Unused history bits.
+        byte[] unknownHistory = HistoryFrame.encodeEnd(HistoryType.minutely, 2, 1, 2);
+        unknownHistory[0] |= 0x30;
+        assertNull(HistoryFrame.decode(unknownHistory));
+    }
+
+    static private byte[] truncate(byte[] value) {
+        byte[] truncated = new byte[value.length-1];
+        System.arraycopy(value, 0, truncated, 0, truncated.length);
+        return truncated;
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hourly, daily, and weekly rollups maintained from minutely samples and backfilled from
+ * the hourly and daily samples of the device.
+ */
+public class HistoryRollupsTest {
+
+    static private final String ADDRESS = "00:00:00:00:00:01";
+
+    static private final long MINUTE = 60*1000L;
+    static private final long HOUR = 60*MINUTE;
+    static private final long DAY = 24*HOUR;
+
+    // Monday, 2015-12-14, 00:00 UTC.
+    static private final long MONDAY = 1450051200000L;
+
+    static private final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    @Test
+    public void aggregatesMinutelySamples() throws IOException {
+        HistoryRollups rollups = new HistoryRollups(dir, UTC);
+        rollups.add(ADDRESS, MONDAY + 10*HOUR, 12000);
+        rollups.add(ADDRESS, MONDAY + 10*HOUR + MINUTE, 12600);
+        rollups.add(ADDRESS, MONDAY + 10*HOUR + 2*MINUTE, 12300);
+        // Invalid readings are ignored.
+        rollups.add(ADDRESS, MONDAY + 10*HOUR + 3*MINUTE, -1);
+
+        for (HistoryRollups.Resolution resolution : HistoryRollups.Resolution.values()) {
+            List<HistoryRollups.Rollup> read = rollups.read(ADDRESS, resolution,
+                    MONDAY, MONDAY + DAY);
+            assertEquals(1, read.size());
+            HistoryRollups.Rollup rollup = read.get(0);
+            assertEquals(12000, rollup.min);
+            assertEquals(12600, rollup.max);
+            assertEquals(12300, rollup.last);
+            assertEquals(3, rollup.count);
+            assertEquals(12300.0, rollup.getMean(), 0.0);
+            assertFalse(rollup.isBackfilled());
+        }
+        assertEquals(MONDAY + 10*HOUR, rollups.read(ADDRESS, HistoryRollups.Resolution.hour,
+                MONDAY, MONDAY + DAY).get(0).startTime);
+        assertEquals(MONDAY, rollups.read(ADDRESS, HistoryRollups.Resolution.day,
+                MONDAY, MONDAY + DAY).get(0).startTime);
+    }
+
+    @Test
+    public void weeksStartOnMonday() throws IOException {
+        HistoryRollups rollups = new HistoryRollups(dir, UTC);
+        rollups.add(ADDRESS, MONDAY - MINUTE, 11000);
+        rollups.add(ADDRESS, MONDAY, 12000);
+        rollups.add(ADDRESS, MONDAY + 7*DAY - MINUTE, 13000);
+
+        List<HistoryRollups.Rollup> weeks = rollups.read(ADDRESS,
+                HistoryRollups.Resolution.week, MONDAY - 7*DAY, MONDAY + 7*DAY);
+        assertEquals(2, weeks.size());
+        assertEquals(MONDAY - 7*DAY, weeks.get(0).startTime);
+        assertEquals(11000, weeks.get(0).last);
+        assertEquals(MONDAY, weeks.get(1).startTime);
+        assertEquals(2, weeks.get(1).count);
+        assertEquals(12000, weeks.get(1).min);
+        assertEquals(13000, weeks.get(1).max);
+    }
+
+    @Test
+    public void weeksStartOnLocalMonday() throws IOException {
+        // UTC+1 in December.
+        TimeZone timeZone = TimeZone.getTimeZone("Europe/Berlin");
+        long localMonday = MONDAY - HOUR;
+        HistoryRollups rollups = new HistoryRollups(dir, timeZone);
+        rollups.add(ADDRESS, localMonday - MINUTE, 11000);
+        rollups.add(ADDRESS, localMonday, 12000);
+
+        List<HistoryRollups.Rollup> weeks = rollups.read(ADDRESS,
+                HistoryRollups.Resolution.week, localMonday - 7*DAY, localMonday + 7*DAY);
+        assertEquals(2, weeks.size());
+        assertEquals(localMonday, weeks.get(1).startTime);
+        assertEquals(12000, weeks.get(1).last);
+
+        List<HistoryRollups.Rollup> days = rollups.read(ADDRESS,
+                HistoryRollups.Resolution.day, localMonday - DAY, localMonday + DAY);
+        assertEquals(2, days.size());
+        assertEquals(localMonday - DAY, days.get(0).startTime);
+        assertEquals(localMonday, days.get(1).startTime);
+    }
+
+    @Test
+    public void minutelySamplesReplaceBackfilledReadings() throws IOException {
+        HistoryRollups rollups = new HistoryRollups(dir, UTC);
+        long hour = MONDAY + 5*HOUR;
+        rollups.backfill(ADDRESS, HistoryType.hourly, hour, 10000);
+        // Minutely samples are never backfilled.
+        rollups.backfill(ADDRESS, HistoryType.minutely, hour + HOUR, 10000);
+
+        List<HistoryRollups.Rollup> read = rollups.read(ADDRESS,
+                HistoryRollups.Resolution.hour, MONDAY, MONDAY + DAY);
+        assertEquals(1, read.size());
+        assertTrue(read.get(0).isBackfilled());
+        assertEquals(10000.0, read.get(0).getMean(), 0.0);
+
+        // The first minutely sample of the hour replaces the device reading.
+        rollups.add(ADDRESS, hour + 30*MINUTE, 12000);
+        // Later device readings do not overwrite minutely samples.
+        rollups.backfill(ADDRESS, HistoryType.hourly, hour, 9000);
+
+        read = rollups.read(ADDRESS, HistoryRollups.Resolution.hour, MONDAY, MONDAY + DAY);
+        assertEquals(1, read.size());
+        HistoryRollups.Rollup rollup = read.get(0);
+        assertFalse(rollup.isBackfilled());
+        assertEquals(1, rollup.count);
+        assertEquals(12000, rollup.min);
+        assertEquals(12000, rollup.max);
+        assertEquals(12000.0, rollup.getMean(), 0.0);
+    }
+
+    @Test
+    public void skipsPeriodsWithoutSamples() throws IOException {
+        HistoryRollups rollups = new HistoryRollups(dir, UTC);
+        rollups.add(ADDRESS, MONDAY + HOUR, 11000);
+        rollups.add(ADDRESS, MONDAY + 4*HOUR, 12000);
+        rollups.backfill(ADDRESS, HistoryType.hourly, MONDAY + 6*HOUR, 13000);
+
+        List<HistoryRollups.Rollup> read = rollups.read(ADDRESS,
+                HistoryRollups.Resolution.hour, MONDAY, MONDAY + DAY);
+        assertEquals(3, read.size());
+        assertEquals(MONDAY + HOUR, read.get(0).startTime);
+        assertEquals(MONDAY + 4*HOUR, read.get(1).startTime);
+        assertEquals(MONDAY + 6*HOUR, read.get(2).startTime);
+
+        // Ranges are aligned to periods; the end of a range is exclusive.
+        read = rollups.read(ADDRESS, HistoryRollups.Resolution.hour, MONDAY + HOUR + MINUTE,
+                MONDAY + 4*HOUR);
+        assertEquals(1, read.size());
+        assertEquals(MONDAY + HOUR, read.get(0).startTime);
+
+        assertTrue(rollups.read(ADDRESS, HistoryRollups.Resolution.hour, MONDAY + 2*HOUR,
+                MONDAY + 4*HOUR).isEmpty());
+        assertTrue(rollups.read("00:00:00:00:00:02", HistoryRollups.Resolution.hour, MONDAY,
+                MONDAY + DAY).isEmpty());
+    }
+
+    @Test
+    public void flushWritesCachedPeriod() throws IOException {
+        HistoryRollups rollups = new HistoryRollups(dir, UTC);
+        rollups.add(ADDRESS, MONDAY, 11000);
+        rollups.add(ADDRESS, MONDAY + MINUTE, 12000);
+
+        // The period updated last is only kept in memory.
+        assertTrue(new HistoryRollups(dir, UTC).read(ADDRESS, HistoryRollups.Resolution.hour,
+                MONDAY, MONDAY + DAY).isEmpty());
+
+        rollups.flush();
+        List<HistoryRollups.Rollup> read = new HistoryRollups(dir, UTC).read(ADDRESS,
+                HistoryRollups.Resolution.hour, MONDAY, MONDAY + DAY);
+        assertEquals(1, read.size());
+        assertEquals(2, read.get(0).count);
+        assertEquals(11500.0, read.get(0).getMean(), 0.0);
+
+        // Moving on to the next period writes back the previous one.
+        rollups.add(ADDRESS, MONDAY + HOUR, 13000);
+        rollups.add(ADDRESS, MONDAY + 2*HOUR, 14000);
+        read = new HistoryRollups(dir, UTC).read(ADDRESS, HistoryRollups.Resolution.hour,
+                MONDAY, MONDAY + DAY);
+        assertEquals(2, read.size());
+        assertEquals(13000, read.get(1).last);
+    }
+
+    @Test
+    public void ignoresPeriodsOutOfRange() throws IOException {
+        HistoryRollups rollups = new HistoryRollups(dir, UTC);
+        rollups.add(ADDRESS, MONDAY, 11000);
+        File file = new File(dir, ADDRESS.replace(':', '_') + "_rollup_hour.dat");
+        rollups.flush();
+        long length = file.length();
+
+        // A clock set far into the future or past must not grow the file.
+        rollups.add(ADDRESS, MONDAY + HistoryRollups.MAX_PERIODS*HOUR, 12000);
+        rollups.add(ADDRESS, 0, 13000);
+        rollups.flush();
+        assertEquals(length, file.length());
+
+        List<HistoryRollups.Rollup> read = rollups.read(ADDRESS,
+                HistoryRollups.Resolution.hour, 0, MONDAY + 2*HistoryRollups.MAX_PERIODS*HOUR);
+        assertEquals(1, read.size());
+        assertEquals(11000, read.get(0).last);
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segment sealing, crash recovery, and time range queries of the history store.
+ */
+public class HistoryStoreTest {
+
+    static private final String ADDRESS = "00:00:00:00:00:01";
+    static private final HistoryType HISTORY_TYPE = HistoryType.minutely;
+    static private final long INTERVAL = GattProfile.getSampleInterval(HISTORY_TYPE);
+
+    // Keep in sync with HistoryStore.
+    static private final int SEGMENT_RECORDS = 4096;
+    static private final int RECORD_SIZE = 12;
+
+    // Timestamp of the sample with sequence number 0.
+    static private final long START_TIME = 1450000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    static private class Sample {
+        final long seqNo;
+        final long time;
+        final int value;
+
+        Sample(long seqNo, long time, int value) {
+            this.seqNo = seqNo;
+            this.time = time;
+            this.value = value;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    static private int valueOf(long seqNo) {
+        return (int) (seqNo % 1000) - 500;
+    }
+
+    /**
+     * Append the samples firstSeqNo to newestSeqNo, the newest one taken at newestTime.
+     */
+    static private void append(HistoryStore store, long firstSeqNo, long newestSeqNo,
+                               long newestTime) throws IOException {
+        HistorySeries history = new HistorySeries((int) (newestSeqNo - firstSeqNo + 1));
+        for (long seqNo = firstSeqNo; seqNo <= newestSeqNo; seqNo++) {
+            history.addLast(valueOf(seqNo));
+        }
+        store.append(ADDRESS, HISTORY_TYPE, newestSeqNo, newestTime, history);
+    }
+
+    /**
+     * Append the samples up to newestSeqNo without gaps in time, in chunks like syncs do.
+     */
+    static private void appendRegular(HistoryStore store, long newestSeqNo)
+            throws IOException {
+        for (long seqNo = store.getNewestSeqNo(ADDRESS, HISTORY_TYPE) + 1;
+             seqNo <= newestSeqNo; seqNo += 100) {
+            long last = Math.min(newestSeqNo, seqNo + 99);
+            append(store, seqNo, last, START_TIME + last*INTERVAL);
+        }
+    }
+
+    static private List<Sample> scanAll(HistoryStore store) throws IOException {
+        final List<Sample> samples = new ArrayList<>();
+        store.scan(ADDRESS, HISTORY_TYPE, 0, Long.MAX_VALUE, new HistoryStore.Visitor() {
+            @Override
+            public void onSample(long seqNo, long time, int value) {
+                samples.add(new Sample(seqNo, time, value));
+            }
+        });
+        return samples;
+    }
+
+    static private void assertRegular(HistoryStore store, long count) throws IOException {
+        assertEquals(count, store.getCount(ADDRESS, HISTORY_TYPE));
+        assertEquals(count-1, store.getNewestSeqNo(ADDRESS, HISTORY_TYPE));
+        assertEquals(START_TIME + (count-1)*INTERVAL,
+                store.getNewestTime(ADDRESS, HISTORY_TYPE));
+        List<Sample> samples = scanAll(store);
+        assertEquals(count, samples.size());
+        for (int i = 0; i < count; i++) {
+            Sample sample = samples.get(i);
+            assertEquals(i, sample.seqNo);
+            assertEquals(START_TIME + i*INTERVAL, sample.time);
+            assertEquals(valueOf(i), sample.value);
+        }
+    }
+
+    private File getHistoryDir() {
+        return new File(dir, ADDRESS.replace(':', '_') + "_" + HISTORY_TYPE.toString());
+    }
+
+    private File getSegmentFile(int segment, String suffix) {
+        return new File(getHistoryDir(), String.format("%08d", segment) + suffix);
+    }
+
+    @Test
+    public void emptyHistory() throws IOException {
+        HistoryStore store = new HistoryStore(dir);
+        assertEquals(0, store.getCount(ADDRESS, HISTORY_TYPE));
+        assertEquals(-1, store.getNewestSeqNo(ADDRESS, HISTORY_TYPE));
+        assertEquals(-1, store.getNewestTime(ADDRESS, HISTORY_TYPE));
+        assertEquals(0, store.read(ADDRESS, HISTORY_TYPE, 10).size());
+    }
+
+    @Test
+    public void appendsOnlyNewSamples() throws IOException {
+        HistoryStore store = new HistoryStore(dir);
+        append(store, 0, 99, START_TIME + 99*INTERVAL);
+        // The same history retrieved again with 10 new samples.
+        append(store, 10, 109, START_TIME + 109*INTERVAL);
+        assertRegular(store, 110);
+
+        HistorySeries newest = store.read(ADDRESS, HISTORY_TYPE, 5);
+        assertEquals(5, newest.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(valueOf(105 + i), newest.get(i));
+        }
+    }
+
+    @Test
+    public void sealsAndCompressesFullSegments() throws IOException {
+        HistoryStore store = new HistoryStore(dir);
+        appendRegular(store, 2*SEGMENT_RECORDS + 99);
+
+        assertTrue(getSegmentFile(0, ".cseg").exists());
+        assertTrue(getSegmentFile(1, ".cseg").exists());
+        assertFalse(getSegmentFile(0, ".seg").exists());
+        assertFalse(getSegmentFile(1, ".seg").exists());
+        assertTrue(getSegmentFile(2, ".seg").exists());
+        assertTrue(getSegmentFile(0, ".cseg").length() < SEGMENT_RECORDS*RECORD_SIZE/4);
+        assertRegular(store, 2*SEGMENT_RECORDS + 100);
+
+        // Reopen.
+        assertRegular(new HistoryStore(dir), 2*SEGMENT_RECORDS + 100);
+    }
+
+    @Test
+    public void reopensFullLastSegment() throws IOException {
+        HistoryStore store = new HistoryStore(dir);
+        appendRegular(store, SEGMENT_RECORDS-1);
+
+        store = new HistoryStore(dir);
+        assertRegular(store, SEGMENT_RECORDS);
+        appendRegular(store, SEGMENT_RECORDS + 9);
+        assertRegular(store, SEGMENT_RECORDS + 10);
+    }
+
+    @Test
+    public void discardsInterruptedCompression() throws IOException {
+        HistoryStore store = new HistoryStore(dir);
+        appendRegular(store, SEGMENT_RECORDS + 9);
+
+        // A crash while writing a compressed segment leaves a temporary file.
+        File tmp = getSegmentFile(1, ".cseg.tmp");
+        assertTrue(tmp.createNewFile());
+        store = new HistoryStore(dir);
+        assertRegular(store, SEGMENT_RECORDS + 10);
+        assertFalse(tmp.exists());
+    }
+
+    @Test
+    public void recoversTail() throws IOException {
+        HistoryStore store = new HistoryStore(dir);
+        appendRegular(store, SEGMENT_RECORDS + 99);
+
+        // A crash left the last record partially written.
+        RandomAccessFile segment = new RandomAccessFile(getSegmentFile(1, ".seg"), "rw");
+        try {
+            segment.seek(99*RECORD_SIZE + 8);
+            segment.writeShort(12345);
+        } finally {
+            segment.close();
+        }
+
+        store = new HistoryStore(dir);
+        assertRegular(store, SEGMENT_RECORDS + 99);
+
+        // The lost sample is stored again by the next sync.
+        append(store, SEGMENT_RECORDS, SEGMENT_RECORDS + 99,
+                START_TIME + (SEGMENT_RECORDS + 99)*INTERVAL);
+        assertRegular(store, SEGMENT_RECORDS + 100);
+        assertRegular(new HistoryStore(dir), SEGMENT_RECORDS + 100);
+    }
+
+    @Test
+    public void clearsRecordsBehindInvalidRecord() throws IOException {
+        HistoryStore store = new HistoryStore(dir);
+        appendRegular(store, 49);
+
+        // Invalidate a record in the middle. The records behind it are dropped, and new
+        // samples are appended in their place.
+        RandomAccessFile segment = new RandomAccessFile(getSegmentFile(0, ".seg"), "rw");
+        try {
+            segment.seek(40*RECORD_SIZE + 10);
+            segment.writeShort(0);
+        } finally {
+            segment.close();
+        }
+
+        store = new HistoryStore(dir);
+        assertRegular(store, 40);
+        appendRegular(store, 44);
+        assertRegular(new HistoryStore(dir), 45);
+    }
+
+    @Test
+    public void findsTimeRanges() throws IOException {
+        HistoryStore store = new HistoryStore(dir);
+        // Runs of samples separated by gaps (e.g., the phone was out of range), and samples
+        // taken while the clock of the phone was set back.
+        long seqNo = 0;
+        long time = START_TIME;
+        for (int run = 0; run < 60; run++) {
+            int length = 10 + (run*37)%150;
+            time += (run%3 == 0 ? -30*INTERVAL : (run%3)*60*INTERVAL) + length*INTERVAL;
+            append(store, seqNo, seqNo + length - 1, time);
+            seqNo += length;
+        }
+        List<Sample> samples = scanAll(store);
+        assertTrue(samples.size() > SEGMENT_RECORDS);
+        for (int i = 1; i < samples.size(); i++) {
+            assertTrue(samples.get(i).time >= samples.get(i-1).time);
+        }
+
+        long first = samples.get(0).time;
+        long last = samples.get(samples.size()-1).time;
+        for (long from = first - INTERVAL; from <= last + INTERVAL; from += 97*INTERVAL/7) {
+            for (long length : new long[] {0, INTERVAL/2, INTERVAL, 3*INTERVAL,
+                    100*INTERVAL, 24*60*INTERVAL}) {
+                assertRange(store, samples, from, from + length);
+            }
+        }
+        for (Sample sample : samples.subList(0, 200)) {
+            assertRange(store, samples, sample.time, sample.time + INTERVAL);
+        }
+    }
+
+    static private void assertRange(HistoryStore store, List<Sample> samples, long fromTime,
+                                    long toTime) throws IOException {
+        final List<Sample> expected = new ArrayList<>();
+        for (Sample sample : samples) {
+            if (sample.time >= fromTime && sample.time < toTime) {
+                expected.add(sample);
+            }
+        }
+
+        final List<Sample> found = new ArrayList<>();
+        long count = store.scanRange(ADDRESS, HISTORY_TYPE, fromTime, toTime,
+                new HistoryStore.Visitor() {
+                    @Override
+                    public void onSample(long seqNo, long time, int value) {
+                        found.add(new Sample(seqNo, time, value));
+                    }
+                });
+        assertEquals(expected.size(), count);
+        assertEquals(expected.size(), found.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).seqNo, found.get(i).seqNo);
+        }
+    }
+}
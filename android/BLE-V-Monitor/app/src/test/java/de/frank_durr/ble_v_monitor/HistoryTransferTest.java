@@ -0,0 +1,237 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reassembly of histories by history transfers: resuming interrupted transfers, device
+ * resets, and empty histories.
+ */
+public class HistoryTransferTest {
+
+    static private final HistoryType HISTORY_TYPE = HistoryType.minutely;
+
+    /**
+     * The history ring of a device sending frames like the firmware. The sample with
+     * sequence number n has the value base+n.
+     */
+    static private class Device {
+        // Number of samples taken (the next sequence number).
+        long head = 0;
+        int base = 0;
+
+        void takeSamples(int count) {
+            head += count;
+        }
+
+        /**
+         * Send the frames of a pass to a transfer.
+         *
+         * @param range range requested by the transfer, or null for the complete history
+         * @param maxDataFrames number of data frames sent before the link is lost, or -1 to
+         *                      send all frames
+         * @return the result of the last frame
+         */
+        HistoryTransfer.Result sendPass(HistoryTransfer transfer, long[] range,
+                                        int maxDataFrames) {
+            long newestSeqNo = (head-1) & GattProfile.MAX_SEQ_NO;
+            long fromSeqNo = (range == null ? 0 : range[0]);
+            long toSeqNo = (range == null ? newestSeqNo : Math.min(range[1], newestSeqNo));
+            long oldestSeqNo = Math.max(0, head - (GattProfile.HISTORY_RING_SIZE-1));
+
+            int frameNo = 0;
+            HistoryTransfer.Result result = transfer.onFrame(HistoryFrame.decode(
+                    HistoryFrame.encodeStart(HISTORY_TYPE, frameNo++, toSeqNo,
+                            HistoryFrame.UNKNOWN_AGE)), 0);
+
+            int sampleCount = 0;
+            int[] samples = new int[HistoryFrame.MAX_SAMPLES];
+            int count = 0;
+            for (long seqNo = toSeqNo; head > 0 && seqNo >= Math.max(fromSeqNo, oldestSeqNo);
+                 seqNo--) {
+                samples[count++] = base + (int) seqNo;
+                if (count == HistoryFrame.MAX_SAMPLES || seqNo == Math.max(fromSeqNo,
+                        oldestSeqNo)) {
+                    if (frameNo-1 == maxDataFrames) {
+                        return result;
+                    }
+                    result = transfer.onFrame(HistoryFrame.decode(HistoryFrame.encodeData(
+                            HISTORY_TYPE, frameNo++, samples, count)), 0);
+                    sampleCount += count;
+                    count = 0;
+                }
+            }
+            if (frameNo-1 == maxDataFrames) {
+                return result;
+            }
+
+            return transfer.onFrame(HistoryFrame.decode(HistoryFrame.encodeEnd(HISTORY_TYPE,
+                    frameNo, toSeqNo, sampleCount)), 0);
+        }
+
+        /**
+         * Run passes until the history is complete.
+         *
+         * @param receivedFrom sequence number of the oldest sample received before
+         * @param receivedTo sequence number of the newest sample received before
+         * @return number of passes
+         */
+        int complete(HistoryTransfer transfer, long receivedFrom, long receivedTo) {
+            HistoryTransfer.Result result;
+            int passes = 0;
+            do {
+                long[] range = transfer.startPass();
+                if (range != null) {
+                    // Samples received before are never requested again.
+                    assertTrue(range[1] < receivedFrom || range[0] > receivedTo);
+                }
+                result = sendPass(transfer, range, -1);
+                assertTrue(result != HistoryTransfer.Result.error);
+                passes++;
+            } while (result == HistoryTransfer.Result.incomplete && passes < 10);
+            assertEquals(HistoryTransfer.Result.complete, result);
+
+            return passes;
+        }
+
+        /**
+         * Check that a transfer holds the newest samples of the device.
+         */
+        void assertHistory(HistoryTransfer transfer) {
+            long count = Math.min(head, GattProfile.HISTORY_RING_SIZE-1);
+            HistorySeries history = transfer.getHistory();
+            assertEquals(count, history.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(base + head - count + i, history.get(i));
+            }
+            assertEquals((head-1) & GattProfile.MAX_SEQ_NO, transfer.getNewestSeqNo());
+        }
+    }
+
+    @Test
+    public void completeHistory() {
+        Device device = new Device();
+        device.takeSamples(300);
+        HistoryTransfer transfer = new HistoryTransfer(HISTORY_TYPE);
+
+        assertNull(transfer.startPass());
+        assertEquals(HistoryTransfer.Result.complete, device.sendPass(transfer, null, -1));
+        device.assertHistory(transfer);
+    }
+
+    @Test
+    public void resumesAfterDisconnect() {
+        Device device = new Device();
+        device.takeSamples(100);
+        HistoryTransfer transfer = new HistoryTransfer(HISTORY_TYPE);
+
+        // Link lost after five data frames (samples 99 down to 55).
+        assertNull(transfer.startPass());
+        device.sendPass(transfer, null, 5);
+        assertTrue(transfer.suspend());
+        assertEquals(5*HistoryFrame.MAX_SAMPLES, transfer.getReceivedCount());
+
+        // The resumed transfer first requests the samples taken in the meantime.
+        device.takeSamples(10);
+        assertArrayEquals(new long[] {100, GattProfile.MAX_SEQ_NO}, transfer.startPass());
+        device.sendPass(transfer, new long[] {100, GattProfile.MAX_SEQ_NO}, -1);
+        device.complete(transfer, 55, 109);
+        device.assertHistory(transfer);
+
+        // Nothing new: the next sync only requests newer samples, which the device does
+        // not have.
+        assertTrue(transfer.suspend());
+        assertEquals(1, device.complete(transfer, 0, 109));
+        device.assertHistory(transfer);
+    }
+
+    @Test
+    public void resumesRestoredTransfer() {
+        Device device = new Device();
+        device.takeSamples(200);
+
+        // Samples 100 to 179 have been stored by an earlier sync.
+        HistoryTransfer transfer = new HistoryTransfer(HISTORY_TYPE);
+        transfer.restoreWindow(179, -1);
+        for (long seqNo = 100; seqNo <= 179; seqNo++) {
+            transfer.restoreSample(seqNo, device.base + (int) seqNo);
+        }
+        assertEquals(80, transfer.getReceivedCount());
+
+        // The restored transfer first requests the samples taken since, then the older
+        // samples not stored.
+        assertArrayEquals(new long[] {180, GattProfile.MAX_SEQ_NO}, transfer.startPass());
+        device.sendPass(transfer, new long[] {180, GattProfile.MAX_SEQ_NO}, -1);
+        device.complete(transfer, 100, 179);
+        device.assertHistory(transfer);
+    }
+
+    @Test
+    public void restartsAfterDeviceReset() {
+        Device device = new Device();
+        device.takeSamples(100);
+        HistoryTransfer transfer = new HistoryTransfer(HISTORY_TYPE);
+        device.complete(transfer, -1, -1);
+        assertTrue(transfer.suspend());
+
+        // The device has been reset and has taken 20 samples since.
+        device.head = 0;
+        device.base = 1000;
+        device.takeSamples(20);
+
+        // The resumed pass finds that the newest sample of the device is older than the
+        // newest sample received before. The samples received before are dropped.
+        long[] range = transfer.startPass();
+        assertArrayEquals(new long[] {100, GattProfile.MAX_SEQ_NO}, range);
+        assertEquals(HistoryTransfer.Result.incomplete, device.sendPass(transfer, range, -1));
+        assertEquals(19, transfer.getNewestSeqNo());
+        assertEquals(-1, transfer.getNewestTime());
+        assertEquals(0, transfer.getReceivedCount());
+
+        device.complete(transfer, -1, -1);
+        device.assertHistory(transfer);
+    }
+
+    @Test
+    public void emptyHistory() {
+        Device device = new Device();
+        HistoryTransfer transfer = new HistoryTransfer(HISTORY_TYPE);
+
+        // The device sends the sequence number before 0 as newest sample.
+        assertNull(transfer.startPass());
+        assertEquals(HistoryTransfer.Result.complete, device.sendPass(transfer, null, -1));
+        assertEquals(GattProfile.MAX_SEQ_NO, transfer.getNewestSeqNo());
+        assertEquals(0, transfer.getHistory().size());
+        assertFalse(transfer.suspend());
+
+        // The sequence number of the first sample to be requested wraps around to 0.
+        device.takeSamples(5);
+        long[] range = transfer.startPass();
+        assertArrayEquals(new long[] {0, GattProfile.MAX_SEQ_NO}, range);
+        assertEquals(HistoryTransfer.Result.complete, device.sendPass(transfer, range, -1));
+        device.assertHistory(transfer);
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of blocks and series through SeriesCodec, and decoding of malformed series.
+ */
+public class SeriesCodecTest {
+
+    /**
+     * Encode samples as one block, and check that the decoded block returns them.
+     *
+     * @return the encoded block
+     */
+    static private byte[] assertBlockRoundTrip(long[] seqNos, long[] times, int[] values) {
+        SeriesCodec.BlockEncoder encoder = new SeriesCodec.BlockEncoder();
+        for (int i = 0; i < seqNos.length; i++) {
+            encoder.add(seqNos[i], times[i], values[i]);
+        }
+        assertEquals(seqNos.length, encoder.getCount());
+        byte[] block = encoder.toByteArray();
+
+        // Blocks are decoded in place from a larger buffer.
+        byte[] buffer = new byte[block.length + 10];
+        System.arraycopy(block, 0, buffer, 7, block.length);
+        SeriesCodec.BlockDecoder decoder = new SeriesCodec.BlockDecoder(
+                ByteBuffer.wrap(buffer), 7, seqNos.length);
+        for (int i = 0; i < seqNos.length; i++) {
+            assertTrue(decoder.next());
+            assertEquals(seqNos[i], decoder.getSeqNo());
+            assertEquals(times[i], decoder.getTime());
+            assertEquals(values[i], decoder.getValue());
+        }
+        assertFalse(decoder.next());
+
+        return block;
+    }
+
+    @Test
+    public void regularSamples() {
+        int count = SeriesCodec.BLOCK_SIZE;
+        long[] seqNos = new long[count];
+        long[] times = new long[count];
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            seqNos[i] = 1000 + i;
+            times[i] = 1450000000L + 60*i;
+            values[i] = 12000 + (i%61) - 30;
+        }
+
+        byte[] block = assertBlockRoundTrip(seqNos, times, values);
+        // One byte per regular sample with a small value delta, plus the first sample and
+        // the time step.
+        assertTrue(block.length <= count + 16);
+    }
+
+    @Test
+    public void irregularSamples() {
+        long[] seqNos = {0, 1, 2, 10, 11, 11, 12, GattProfile.MAX_SEQ_NO, 5, 6, 7, 8};
+        long[] times = {
+                0, 60, 120, 600, 601, 601, 700, 0xffffffffL, 0, 3600, 7200, 7199};
+        int[] values = {
+                0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE, 0, 31, -32, 32, -33, 12345, -1};
+
+        assertBlockRoundTrip(seqNos, times, values);
+    }
+
+    @Test
+    public void singleSample() {
+        assertBlockRoundTrip(new long[] {GattProfile.MAX_SEQ_NO}, new long[] {0xffffffffL},
+                new int[] {Short.MIN_VALUE});
+    }
+
+    @Test
+    public void randomSamples() {
+        Random random = new Random(1);
+        for (int run = 0; run < 100; run++) {
+            int count = 1 + random.nextInt(SeriesCodec.BLOCK_SIZE);
+            long[] seqNos = new long[count];
+            long[] times = new long[count];
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                seqNos[i] = random.nextLong() & GattProfile.MAX_SEQ_NO;
+                times[i] = random.nextLong() & 0xffffffffL;
+                values[i] = (short) random.nextInt();
+            }
+            assertBlockRoundTrip(seqNos, times, values);
+        }
+    }
+
+    static private HistorySeries createSeries(int capacity, int size) {
+        HistorySeries series = new HistorySeries(capacity);
+        for (int i = 0; i < size; i++) {
+            series.addLast(13000 + (i*7919)%2000 - 1000);
+        }
+        return series;
+    }
+
+    static private void assertSeriesRoundTrip(HistorySeries series) {
+        HistorySeries decoded = SeriesCodec.decodeValues(SeriesCodec.encodeValues(series));
+        assertNotNull(decoded);
+        assertEquals(series.getCapacity(), decoded.getCapacity());
+        assertEquals(series.size(), decoded.size());
+        for (int i = 0; i < series.size(); i++) {
+            assertEquals(series.get(i), decoded.get(i));
+        }
+    }
+
+    @Test
+    public void seriesRoundTrip() {
+        int[] sizes = {0, 1, 2, SeriesCodec.BLOCK_SIZE-1, SeriesCodec.BLOCK_SIZE,
+                SeriesCodec.BLOCK_SIZE+1, 5*SeriesCodec.BLOCK_SIZE+17};
+        for (int size : sizes) {
+            assertSeriesRoundTrip(createSeries(size, size));
+            assertSeriesRoundTrip(createSeries(size+100, size));
+        }
+        assertSeriesRoundTrip(new HistorySeries(0));
+
+        // Samples wrapped around the end of the ring.
+        HistorySeries wrapped = createSeries(300, 300);
+        for (int i = 0; i < 123; i++) {
+            wrapped.addLast(Short.MAX_VALUE - i);
+        }
+        assertSeriesRoundTrip(wrapped);
+
+        // Value deltas beyond 16 bit.
+        HistorySeries extremes = new HistorySeries(4);
+        extremes.addLast(Short.MIN_VALUE);
+        extremes.addLast(Short.MAX_VALUE);
+        extremes.addLast(Short.MIN_VALUE);
+        extremes.addLast(0);
+        assertSeriesRoundTrip(extremes);
+    }
+
+    @Test
+    public void malformedSeries() {
+        assertNull(SeriesCodec.decodeValues(null));
+        assertNull(SeriesCodec.decodeValues(new byte[0]));
+
+        // Size larger than capacity.
+        assertNull(SeriesCodec.decodeValues(new byte[] {1, 2}));
+
+        // Varint longer than 64 bits.
+        byte[] overlong = new byte[12];
+        Arrays.fill(overlong, (byte) 0xff);
+        assertNull(SeriesCodec.decodeValues(overlong));
+
+        // Huge capacity.
+        assertNull(SeriesCodec.decodeValues(new byte[] {
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 0}));
+
+        // Truncated series.
+        byte[] encoded = SeriesCodec.encodeValues(createSeries(1000, 600));
+        for (int length = 0; length < encoded.length; length++) {
+            assertNull(SeriesCodec.decodeValues(Arrays.copyOf(encoded, length)));
+        }
+
+        // Values out of the 16 bit range.
+        SeriesCodec.BlockEncoder encoder = new SeriesCodec.BlockEncoder();
+        encoder.add(0, 0, Short.MAX_VALUE);
+        encoder.add(1, 0, Short.MAX_VALUE + 1);
+        byte[] block = encoder.toByteArray();
+        byte[] outOfRange = new byte[3 + block.length];
+        outOfRange[0] = 2;
+        outOfRange[1] = 2;
+        outOfRange[2] = (byte) block.length;
+        System.arraycopy(block, 0, outOfRange, 3, block.length);
+        assertNull(SeriesCodec.decodeValues(outOfRange));
+    }
+
+    @Test
+    public void randomBytes() {
+        // Garbage never throws.
+        Random random = new Random(2);
+        for (int run = 0; run < 10000; run++) {
+            byte[] garbage = new byte[random.nextInt(64)];
+            random.nextBytes(garbage);
+            HistorySeries series = SeriesCodec.decodeValues(garbage);
+            if (series != null) {
+                assertTrue(series.size() <= series.getCapacity());
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Invariants of the points selected by SeriesPyramid.
+ */
+public class SeriesPyramidTest {
+
+    static private SeriesPyramid createPyramid(int size, Random random) {
+        HistorySeries series = new HistorySeries(size);
+        int value = 12000;
+        for (int i = 0; i < size; i++) {
+            value += random.nextInt(21) - 10;
+            series.addLast(value);
+        }
+        return new SeriesPyramid(series);
+    }
+
+    /**
+     * Select the points of a range, and check that the first and last sample of the range
+     * are selected, that at most maxPoints points are selected, and that the points are in
+     * ascending order.
+     *
+     * @return the number of selected points
+     */
+    static private int assertSelection(SeriesPyramid pyramid, int from, int to, int maxPoints,
+                                       int[] selected) {
+        int count = pyramid.select(from, to, maxPoints, selected);
+        int first = Math.max(0, from);
+        int last = Math.min(pyramid.size()-1, to);
+        if (first > last) {
+            assertEquals(0, count);
+            return count;
+        }
+
+        assertTrue(count >= Math.min(2, last-first+1));
+        assertTrue(count <= maxPoints);
+        assertTrue(count <= last-first+1);
+        assertEquals(first, selected[0]);
+        assertEquals(last, selected[count-1]);
+        for (int i = 1; i < count; i++) {
+            assertTrue(selected[i] > selected[i-1]);
+        }
+
+        return count;
+    }
+
+    @Test
+    public void randomRanges() {
+        Random random = new Random(3);
+        int[] sizes = {1, 2, 3, 4, 5, 127, 128, 129, 1000, 4096, 40320};
+        for (int size : sizes) {
+            SeriesPyramid pyramid = createPyramid(size, random);
+            assertEquals(size, pyramid.size());
+            for (int run = 0; run < 200; run++) {
+                int maxPoints = 3 + random.nextInt(500);
+                int[] selected = new int[maxPoints];
+                int from = random.nextInt(size+2) - 1;
+                int to = from + random.nextInt(size+1);
+                assertSelection(pyramid, from, to, maxPoints, selected);
+            }
+        }
+    }
+
+    @Test
+    public void wholeSeries() {
+        Random random = new Random(4);
+        SeriesPyramid pyramid = createPyramid(4*7*24*60, random);
+        for (int maxPoints = 3; maxPoints < 2000; maxPoints = maxPoints*3/2) {
+            int[] selected = new int[maxPoints];
+            int count = assertSelection(pyramid, 0, pyramid.size()-1, maxPoints, selected);
+            // Long ranges use the whole point budget.
+            assertTrue(count >= maxPoints/2);
+        }
+    }
+
+    @Test
+    public void shortRangesSelectAllSamples() {
+        SeriesPyramid pyramid = createPyramid(1000, new Random(5));
+        int[] selected = new int[100];
+        assertEquals(100, assertSelection(pyramid, 400, 499, 100, selected));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(400 + i, selected[i]);
+        }
+    }
+
+    @Test
+    public void emptyRanges() {
+        SeriesPyramid pyramid = createPyramid(100, new Random(6));
+        int[] selected = new int[10];
+        assertEquals(0, pyramid.select(50, 49, 10, selected));
+        assertEquals(0, pyramid.select(100, 200, 10, selected));
+        assertEquals(0, new SeriesPyramid(new HistorySeries(0)).select(0, 10, 10, selected));
+    }
+
+    @Test
+    public void keepsPeaks() {
+        int size = 40000;
+        HistorySeries series = new HistorySeries(size);
+        for (int i = 0; i < size; i++) {
+            series.addLast(i == 12345 ? 15000 : (i == 30001 ? 9000 : 12000));
+        }
+        SeriesPyramid pyramid = new SeriesPyramid(series);
+
+        int[] selected = new int[200];
+        int count = assertSelection(pyramid, 0, size-1, 200, selected);
+        boolean max = false;
+        boolean min = false;
+        for (int i = 0; i < count; i++) {
+            max |= (selected[i] == 12345);
+            min |= (selected[i] == 30001);
+        }
+        assertTrue(max);
+        assertTrue(min);
+    }
+}
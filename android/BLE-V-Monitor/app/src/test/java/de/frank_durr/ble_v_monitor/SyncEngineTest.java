@@ -0,0 +1,96 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the sync engine against the simulated peripheral.
+ */
+public class SyncEngineTest {
+
+    private SyncFixture fixture;
+    private SimulatedPeripheral peripheral;
+
+    @Before
+    public void setUp() {
+        fixture = new SyncFixture();
+        peripheral = fixture.peripheral;
+        peripheral.setConnectionInterval(5);
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Test
+    public void readsCurrentVoltage() throws InterruptedException {
+        peripheral.setVoltage(12345);
+
+        fixture.run(SyncEngine.Task.getVoltage);
+        assertEquals(12345, fixture.recorder.getVoltage());
+    }
+
+    @Test
+    public void downloadsFramedHistory() throws InterruptedException {
+        fixture.appendHistory(HistoryType.minutely, 12000, 300);
+
+        fixture.run(SyncEngine.Task.getMinutelyHistory);
+
+        // The device sends all samples of its ring except for the oldest place.
+        int count = GattProfile.HISTORY_RING_SIZE-1;
+        SyncFixture.assertHistory(12000 + 300 - count, count,
+                fixture.recorder.getHistory(HistoryType.minutely));
+        assertEquals(299, fixture.syncEngine.getNewestSeqNo(HistoryType.minutely));
+        assertTrue(fixture.syncEngine.getMetrics().getLastTransfer().framed);
+    }
+
+    @Test
+    public void downloadsPerSampleHistory() throws InterruptedException {
+        peripheral.setFramedHistorySupported(false);
+        fixture.appendHistory(HistoryType.hourly, 11000, 50);
+
+        fixture.run(SyncEngine.Task.getHourlyHistory);
+
+        SyncFixture.assertHistory(11000, 50, fixture.recorder.getHistory(HistoryType.hourly));
+        assertFalse(fixture.syncEngine.getMetrics().getLastTransfer().framed);
+    }
+
+    @Test
+    public void downloadsSampledHistories() throws InterruptedException {
+        // Two hours of voltage samples.
+        for (int i = 0; i < 2*60*SimulatedPeripheral.SAMPLES_PER_MINUTE; i++) {
+            peripheral.takeSample(13000);
+        }
+
+        fixture.run(SyncEngine.Task.getHourlyHistory, SyncEngine.Task.getDailyHistory);
+
+        HistorySeries hourly = fixture.recorder.getHistory(HistoryType.hourly);
+        assertEquals(2, hourly.size());
+        assertEquals(13000, hourly.get(1));
+        assertTrue(fixture.recorder.getHistory(HistoryType.daily).isEmpty());
+    }
+}
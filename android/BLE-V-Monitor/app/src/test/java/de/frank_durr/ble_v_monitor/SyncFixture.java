@@ -0,0 +1,102 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A sync engine connected to a simulated peripheral through a recording transport, shared by
+ * the tests running the sync engine. Tests change the parameters of the peripheral and the
+ * session as required; the link is closed after every task by default.
+ */
+class SyncFixture {
+
+    // Maximum time in milliseconds to wait for queued tasks.
+    static final long TIMEOUT = 10000;
+
+    final SimulatedPeripheral peripheral;
+    final TransportRecorder transportRecorder;
+    final ScheduledExecutorService scheduler;
+    final SyncRecorder recorder;
+    final GattSession session;
+    final SyncEngine syncEngine;
+
+    SyncFixture() {
+        peripheral = new SimulatedPeripheral();
+        peripheral.setConnectDelay(10);
+        peripheral.setDiscoveryDelay(10);
+        transportRecorder = new TransportRecorder(peripheral);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        recorder = new SyncRecorder();
+        session = new GattSession(transportRecorder, scheduler, 0);
+        syncEngine = new SyncEngine(session, recorder);
+        syncEngine.setDevice(peripheral.getAddress());
+    }
+
+    /**
+     * Close the link and stop the threads of the fixture.
+     */
+    void close() {
+        syncEngine.close();
+        scheduler.shutdownNow();
+        peripheral.shutdown();
+    }
+
+    /**
+     * Run tasks and wait until they have been finished without failures.
+     *
+     * @param tasks the tasks to be queued
+     */
+    void run(SyncEngine.Task... tasks) throws InterruptedException {
+        for (SyncEngine.Task task : tasks) {
+            assertTrue(syncEngine.enqueueTask(task));
+        }
+        assertTrue(recorder.awaitFinished(TIMEOUT));
+        assertTrue(recorder.getFailures().isEmpty());
+    }
+
+    /**
+     * Add samples to a history of the peripheral.
+     *
+     * @param historyType the history
+     * @param first value of the first sample; subsequent samples are incremented by one
+     * @param count number of samples
+     */
+    void appendHistory(HistoryType historyType, int first, int count) {
+        for (int i = 0; i < count; i++) {
+            peripheral.appendHistory(historyType, first + i);
+        }
+    }
+
+    /**
+     * Check that a history holds the samples first, first+1, ... (oldest first).
+     */
+    static void assertHistory(int first, int count, HistorySeries history) {
+        assertNotNull(history);
+        assertEquals(count, history.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(first + i, history.get(i));
+        }
+    }
+}
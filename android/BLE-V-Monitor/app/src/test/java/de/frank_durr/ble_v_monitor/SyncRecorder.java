@@ -0,0 +1,95 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sync engine listener recording the results of tasks, so tests can wait for the tasks to
+ * finish and check the results afterwards.
+ */
+class SyncRecorder implements SyncEngine.Listener {
+
+    private final Map<HistoryType, HistorySeries> histories = new EnumMap<>(HistoryType.class);
+    private final List<SyncEngine.Failure> failures = new ArrayList<>();
+    private int voltage = SimulatedPeripheral.INVALID_VOLTAGE;
+    private boolean finished = false;
+
+    @Override
+    synchronized public void onCurrentVoltage(int voltage) {
+        this.voltage = voltage;
+    }
+
+    @Override
+    synchronized public void onHistory(HistoryType historyType, HistorySeries history) {
+        histories.put(historyType, history);
+    }
+
+    @Override
+    public void onHistoryProgress(HistoryType historyType, int valueCount) {
+    }
+
+    @Override
+    synchronized public void onTaskFailed(SyncEngine.Failure failure) {
+        failures.add(failure);
+    }
+
+    @Override
+    synchronized public void onTaskFinished() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait until all queued tasks have been finished, and reset the finished flag for the
+     * next tasks.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @return true, if the tasks have been finished in time
+     */
+    synchronized public boolean awaitFinished(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (!finished) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        finished = false;
+
+        return true;
+    }
+
+    synchronized public HistorySeries getHistory(HistoryType historyType) {
+        return histories.get(historyType);
+    }
+
+    synchronized public List<SyncEngine.Failure> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    synchronized public int getVoltage() {
+        return voltage;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Retrying tasks on a new link after a timeout, with backoff, until the task fails.
+ */
+public class SyncRetryTest {
+
+    // Tolerated scheduling delays in milliseconds.
+    static private final long SLACK = 2000;
+
+    private SyncFixture fixture;
+    private SimulatedPeripheral peripheral;
+
+    // Deadline of service discovery, the first operation on a new link.
+    private long discoveryDeadline;
+
+    @Before
+    public void setUp() {
+        fixture = new SyncFixture();
+        peripheral = fixture.peripheral;
+        fixture.appendHistory(HistoryType.minutely, 0, 20);
+
+        // Fast links have been observed before, so all deadlines are at their minimum.
+        AdaptiveTimeouts timeouts = fixture.session.getTimeouts();
+        for (AdaptiveTimeouts.Phase phase : AdaptiveTimeouts.Phase.values()) {
+            for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) {
+                timeouts.recordLatency(phase, 1);
+            }
+        }
+        discoveryDeadline = timeouts.getDeadline(AdaptiveTimeouts.Phase.discovery);
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+    }
+
+    /**
+     * Get the sum of the backoff delays of the given number of retries.
+     */
+    static private long getBackoff(int retries) {
+        long backoff = 0;
+        for (int i = 0; i < retries; i++) {
+            backoff += SyncEngine.RETRY_BACKOFF << i;
+        }
+        return backoff;
+    }
+
+    @Test
+    public void failsStalledTaskAfterMaxRetries() throws InterruptedException {
+        peripheral.setStalled(true);
+
+        long start = System.nanoTime();
+        assertTrue(fixture.syncEngine.enqueueTask(SyncEngine.Task.getMinutelyHistory));
+        assertTrue(fixture.syncEngine.enqueueTask(SyncEngine.Task.getHourlyHistory));
+        assertTrue(fixture.recorder.awaitFinished(SyncFixture.TIMEOUT));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // The task is tried once and retried MAX_RETRIES times, each time on a new link, with
+        // a doubled backoff delay before every retry. Then all queued tasks are dropped.
+        int attempts = SyncEngine.MAX_RETRIES + 1;
+        assertEquals(attempts, fixture.transportRecorder.getTransportCount());
+        assertEquals(Collections.singletonList(SyncEngine.Failure.timeout),
+                fixture.recorder.getFailures());
+        long expected = attempts*discoveryDeadline + getBackoff(SyncEngine.MAX_RETRIES);
+        assertTrue(elapsed + " ms", elapsed >= expected);
+        assertTrue(elapsed + " ms", elapsed < expected + SLACK);
+        assertEquals(null, fixture.recorder.getHistory(HistoryType.hourly));
+    }
+
+    @Test
+    public void retriesTaskOnNewLink() throws InterruptedException {
+        peripheral.setStalled(true);
+        // The peripheral answers again while the engine waits for the first retry.
+        fixture.scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.setStalled(false);
+            }
+        }, discoveryDeadline + SyncEngine.RETRY_BACKOFF/2, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        fixture.run(SyncEngine.Task.getMinutelyHistory);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(2, fixture.transportRecorder.getTransportCount());
+        assertTrue(elapsed + " ms", elapsed >= discoveryDeadline + SyncEngine.RETRY_BACKOFF);
+        SyncFixture.assertHistory(0, 20, fixture.recorder.getHistory(HistoryType.minutely));
+    }
+}
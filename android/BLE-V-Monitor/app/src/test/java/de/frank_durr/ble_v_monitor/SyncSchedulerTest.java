@@ -0,0 +1,294 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Syncing several simulated devices: the session limit, the order of syncs, and syncs
+ * resumed from the history store.
+ */
+public class SyncSchedulerTest {
+
+    // Maximum time in milliseconds to wait for a sync of all devices.
+    static private final long TIMEOUT = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, SimulatedPeripheral> peripherals = new HashMap<>();
+    private ScheduledExecutorService scheduler;
+    private HistoryStore store;
+
+    // Links open at the same time, their maximum, and the devices in the order of their
+    // first connect.
+    private int openLinks = 0;
+    private int maxOpenLinks = 0;
+    private final LinkedHashSet<String> connectOrder = new LinkedHashSet<>();
+
+    /**
+     * Transport counting the open links to the simulated devices.
+     */
+    private class CountingTransport extends SimulatedGattTransport {
+        private final String address;
+        private boolean open = false;
+
+        CountingTransport(SimulatedPeripheral peripheral) {
+            super(peripheral);
+            address = peripheral.getAddress();
+        }
+
+        @Override
+        public boolean connect(Callback callback) {
+            synchronized (SyncSchedulerTest.this) {
+                if (!open) {
+                    open = true;
+                    openLinks++;
+                    maxOpenLinks = Math.max(maxOpenLinks, openLinks);
+                    connectOrder.add(address);
+                }
+            }
+            return super.connect(callback);
+        }
+
+        @Override
+        public void close() {
+            synchronized (SyncSchedulerTest.this) {
+                if (open) {
+                    open = false;
+                    openLinks--;
+                }
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Listener storing the retrieved histories like the sync service.
+     */
+    private class StoringListener implements SyncScheduler.Listener {
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final List<String> syncedDevices = new ArrayList<>();
+        private int finishedCount = 0;
+        private boolean failed = false;
+
+        @Override
+        public void onHistory(MonitoredDevice device, HistoryType historyType,
+                              HistorySeries history, long newestSeqNo, long newestTime) {
+            try {
+                store.append(device.getAddress(), historyType, newestSeqNo,
+                        (newestTime < 0 ? System.currentTimeMillis() : newestTime), history);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failed = true;
+                }
+            }
+        }
+
+        @Override
+        synchronized public void onDeviceSynced(MonitoredDevice device, boolean success) {
+            syncedDevices.add(device.getAddress());
+            failed |= !success;
+        }
+
+        @Override
+        public void onSyncFinished() {
+            synchronized (this) {
+                finishedCount++;
+            }
+            finished.countDown();
+        }
+
+        /**
+         * Wait until all devices have been synced without failures.
+         */
+        void awaitFinished() throws InterruptedException {
+            assertTrue(finished.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            synchronized (this) {
+                assertFalse(failed);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        store = new HistoryStore(folder.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        for (SimulatedPeripheral peripheral : peripherals.values()) {
+            peripheral.shutdown();
+        }
+    }
+
+    /**
+     * Add simulated devices with a minutely history of 30 samples.
+     *
+     * @param count number of devices
+     * @return registry of the devices in the order of their addresses
+     */
+    private DeviceRegistry addDevices(int count) {
+        DeviceRegistry registry = new DeviceRegistry();
+        for (int i = 0; i < count; i++) {
+            SimulatedPeripheral peripheral = new SimulatedPeripheral();
+            peripheral.setAddress(String.format("00:00:00:00:01:%02X", i));
+            peripheral.setConnectDelay(50);
+            peripheral.setDiscoveryDelay(10);
+            for (int j = 0; j < 30; j++) {
+                peripheral.appendHistory(HistoryType.minutely, j);
+            }
+            peripherals.put(peripheral.getAddress(), peripheral);
+            registry.add(peripheral.getAddress());
+        }
+
+        return registry;
+    }
+
+    private SyncScheduler.TransportProvider getTransportProvider() {
+        return new SyncScheduler.TransportProvider() {
+            @Override
+            public GattTransport.Factory getTransportFactory(String deviceAddress) {
+                final SimulatedPeripheral peripheral = peripherals.get(deviceAddress);
+                return new GattTransport.Factory() {
+                    @Override
+                    public GattTransport createTransport() {
+                        return new CountingTransport(peripheral);
+                    }
+                };
+            }
+        };
+    }
+
+    @Test
+    public void limitsConcurrentSessions() throws InterruptedException {
+        DeviceRegistry registry = addDevices(6);
+        StoringListener listener = new StoringListener();
+        SyncScheduler syncScheduler = new SyncScheduler(registry, store,
+                getTransportProvider(), scheduler, 2, listener);
+
+        syncScheduler.syncAll();
+        listener.awaitFinished();
+        assertFalse(syncScheduler.isBusy());
+
+        synchronized (this) {
+            assertEquals(2, maxOpenLinks);
+            assertEquals(0, openLinks);
+            assertEquals(6, connectOrder.size());
+        }
+        synchronized (listener) {
+            assertEquals(6, listener.syncedDevices.size());
+        }
+
+        // Finished only once, also after the links of the last devices have been closed.
+        Thread.sleep(200);
+        synchronized (listener) {
+            assertEquals(1, listener.finishedCount);
+        }
+    }
+
+    @Test
+    public void syncsStalestFirst() throws InterruptedException {
+        DeviceRegistry registry = addDevices(4);
+        List<MonitoredDevice> devices = registry.getDevices();
+        devices.get(0).setLastSyncTime(3000);
+        devices.get(2).setLastSyncTime(1000);
+        devices.get(3).setLastSyncTime(2000);
+        StoringListener listener = new StoringListener();
+        SyncScheduler syncScheduler = new SyncScheduler(registry, store,
+                getTransportProvider(), scheduler, 1, listener);
+
+        syncScheduler.syncAll();
+        listener.awaitFinished();
+
+        // The device never synced first, then the device with the oldest last sync.
+        List<String> expected = Arrays.asList(devices.get(1).getAddress(),
+                devices.get(2).getAddress(), devices.get(3).getAddress(),
+                devices.get(0).getAddress());
+        synchronized (this) {
+            assertEquals(expected, new ArrayList<>(connectOrder));
+        }
+        synchronized (listener) {
+            assertEquals(expected, listener.syncedDevices);
+            assertEquals(1, listener.finishedCount);
+        }
+    }
+
+    @Test
+    public void resumesFromStore() throws InterruptedException, IOException {
+        DeviceRegistry registry = addDevices(1);
+        String address = registry.getDevices().get(0).getAddress();
+        StoringListener listener = new StoringListener();
+        new SyncScheduler(registry, store, getTransportProvider(), scheduler, 1,
+                listener).syncAll();
+        listener.awaitFinished();
+        assertEquals(30, store.getCount(address, HistoryType.minutely));
+
+        // A new scheduler, e.g., of the next background sync, only retrieves the samples
+        // taken since.
+        SimulatedPeripheral peripheral = peripherals.get(address);
+        for (int j = 30; j < 35; j++) {
+            peripheral.appendHistory(HistoryType.minutely, j);
+        }
+        final TransportRecorder transportRecorder = new TransportRecorder(
+                getTransportProvider().getTransportFactory(address));
+        DeviceRegistry nextRegistry = new DeviceRegistry();
+        nextRegistry.add(address);
+        listener = new StoringListener();
+        new SyncScheduler(nextRegistry, store, new SyncScheduler.TransportProvider() {
+            @Override
+            public GattTransport.Factory getTransportFactory(String deviceAddress) {
+                return transportRecorder;
+            }
+        }, scheduler, 1, listener).syncAll();
+        listener.awaitFinished();
+
+        int sampleCount = 0;
+        for (HistoryFrame frame : transportRecorder.getFrames()) {
+            if (frame.type == HistoryFrame.Type.data) {
+                sampleCount += frame.samples.length;
+            }
+        }
+        assertEquals(5, sampleCount);
+        assertEquals(35, store.getCount(address, HistoryType.minutely));
+        assertEquals(34, store.getNewestSeqNo(address, HistoryType.minutely));
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * This file is part of BLE-V-Monitor.
+ *
+ * Copyright 2015 Frank Duerr
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.frank_durr.ble_v_monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Transport factory recording the framed history transfers of the transports created by
+ * another factory: subscriptions to history frames, commands written to the history
+ * control point, and the history frames received by the client.
+ */
+class TransportRecorder implements GattTransport.Factory {
+
+    private final GattTransport.Factory factory;
+
+    // Indication flag of every subscription to history frames.
+    private final List<Boolean> frameSubscriptions = new ArrayList<>();
+    private final List<byte[]> controlPointCommands = new ArrayList<>();
+
+    // Received history frames and the times they have been received in nanoseconds.
+    private final List<HistoryFrame> frames = new ArrayList<>();
+    private final List<Long> frameTimes = new ArrayList<>();
+
+    private int transportCount = 0;
+
+    private class RecordingTransport implements GattTransport {
+        private final GattTransport transport;
+
+        RecordingTransport(GattTransport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public boolean connect(final Callback callback) {
+            return transport.connect(new Callback() {
+                @Override
+                public void onConnectionStateChange(boolean connected) {
+                    callback.onConnectionStateChange(connected);
+                }
+
+                @Override
+                public void onServicesDiscovered(boolean success) {
+                    callback.onServicesDiscovered(success);
+                }
+
+                @Override
+                public void onCharacteristicRead(UUID characteristicUUID, byte[] value,
+                                                 boolean success) {
+                    callback.onCharacteristicRead(characteristicUUID, value, success);
+                }
+
+                @Override
+                public void onCharacteristicWrite(UUID characteristicUUID, boolean success) {
+                    callback.onCharacteristicWrite(characteristicUUID, success);
+                }
+
+                @Override
+                public void onDescriptorWrite(UUID characteristicUUID, boolean success) {
+                    callback.onDescriptorWrite(characteristicUUID, success);
+                }
+
+                @Override
+                public void onCharacteristicChanged(UUID characteristicUUID, byte[] value) {
+                    if (characteristicUUID.equals(GattProfile.HISTORY_DATA_UUID)) {
+                        addFrame(HistoryFrame.decode(value));
+                    }
+                    callback.onCharacteristicChanged(characteristicUUID, value);
+                }
+
+                @Override
+                public void onMtuChanged(int mtu, boolean success) {
+                    callback.onMtuChanged(mtu, success);
+                }
+            });
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return transport.discoverServices();
+        }
+
+        @Override
+        public boolean hasService() {
+            return transport.hasService();
+        }
+
+        @Override
+        public boolean hasCharacteristic(UUID characteristicUUID) {
+            return transport.hasCharacteristic(characteristicUUID);
+        }
+
+        @Override
+        public boolean canNotify(UUID characteristicUUID) {
+            return transport.canNotify(characteristicUUID);
+        }
+
+        @Override
+        public boolean readCharacteristic(UUID characteristicUUID) {
+            return transport.readCharacteristic(characteristicUUID);
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID characteristicUUID, byte[] value) {
+            if (characteristicUUID.equals(GattProfile.HISTORY_CONTROL_POINT_UUID)) {
+                addControlPointCommand(value);
+            }
+            return transport.writeCharacteristic(characteristicUUID, value);
+        }
+
+        @Override
+        public boolean subscribe(UUID characteristicUUID, boolean indications) {
+            if (characteristicUUID.equals(GattProfile.HISTORY_DATA_UUID)) {
+                addFrameSubscription(indications);
+            }
+            return transport.subscribe(characteristicUUID, indications);
+        }
+
+        @Override
+        public boolean unsubscribe(UUID characteristicUUID) {
+            return transport.unsubscribe(characteristicUUID);
+        }
+
+        @Override
+        public boolean requestConnectionPriority(ConnectionPriority priority) {
+            return transport.requestConnectionPriority(priority);
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return transport.requestMtu(mtu);
+        }
+
+        @Override
+        public void close() {
+            transport.close();
+        }
+    }
+
+    TransportRecorder(GattTransport.Factory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    synchronized public GattTransport createTransport() {
+        transportCount++;
+        return new RecordingTransport(factory.createTransport());
+    }
+
+    synchronized private void addFrame(HistoryFrame frame) {
+        frames.add(frame);
+        frameTimes.add(System.nanoTime());
+    }
+
+    synchronized private void addControlPointCommand(byte[] command) {
+        controlPointCommands.add(command.clone());
+    }
+
+    synchronized private void addFrameSubscription(boolean indications) {
+        frameSubscriptions.add(indications);
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    synchronized public void clear() {
+        frameSubscriptions.clear();
+        controlPointCommands.clear();
+        frames.clear();
+        frameTimes.clear();
+        transportCount = 0;
+    }
+
+    synchronized public int getTransportCount() {
+        return transportCount;
+    }
+
+    synchronized public List<Boolean> getFrameSubscriptions() {
+        return new ArrayList<>(frameSubscriptions);
+    }
+
+    synchronized public List<byte[]> getControlPointCommands() {
+        return new ArrayList<>(controlPointCommands);
+    }
+
+    synchronized public List<HistoryFrame> getFrames() {
+        return new ArrayList<>(frames);
+    }
+
+    /**
+     * Get the time between the first and the last frame received.
+     *
+     * @return the time in milliseconds
+     */
+    synchronized public long getFrameSpan() {
+        if (frameTimes.isEmpty()) {
+            return 0;
+        }
+
+        return (frameTimes.get(frameTimes.size()-1) - frameTimes.get(0))/1000000;
+    }
+}
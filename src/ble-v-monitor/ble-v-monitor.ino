@@ -192,6 +192,61 @@ boolean is_pipe_open_minutely_history = false;
 boolean is_pipe_open_hourly_history = false;
 boolean is_pipe_open_daily_history = false;
 
+// Framed history transfer. Instead of sending one sample per indication, up to 
+// FRAME_MAX_SAMPLES samples are packed into a single indication or notification 
+// of the history data characteristic. The history (or range of a history) to be 
+// sent is selected by writing to the history control point. The pipes are only 
+// defined if services.h has been generated from a service definition including 
+// these characteristics; otherwise, only the per-sample history characteristics 
+// are available.
+#ifdef PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK
+// History selectors used by the control point and the frame header.
+#define HISTORY_MINUTELY 0
+#define HISTORY_HOURLY 1
+#define HISTORY_DAILY 2
+
+// Control point opcodes:
+// - Start sending a complete history: [opcode, history]
+// - Start sending a range of a history backwards from to_seqno to from_seqno: 
+//   [opcode, history, from_seqno (uint32_t), to_seqno (uint32_t)]
+#define HISTORY_CP_OPCODE_START 0x01
+#define HISTORY_CP_OPCODE_RANGE 0x02
+
+// Frame header: 
+// byte 0: bits 7-6 frame type, bits 5-4 history, bits 3-0 number of samples
+// byte 1: frame number (incremented with every frame of a transfer)
+// The start frame (frame number 0) is followed by the sequence number of the 
+// first sample to be sent (uint32_t). This allows the client to resume an 
+// interrupted transfer by requesting the missing samples as range. It is 
+// followed by the age of this sample in seconds (uint32_t), derived from the 
+// phase counters of the minute, hour, and day. This allows the client to 
+// timestamp every sample although the device has no clock.
+// A data frame is followed by up to FRAME_MAX_SAMPLES samples (int16_t,  
+// backwards in history like the per-sample histories). The end frame is 
+// followed by the sequence number of the first sample sent (uint32_t) and
+// the number of samples sent (uint16_t).
+#define FRAME_TYPE_DATA 0x00
+#define FRAME_TYPE_END 0x40
+#define FRAME_TYPE_START 0x80
+#define FRAME_HEADER_SIZE 2
+#define FRAME_MAX_SAMPLES 9
+#define FRAME_MAX_SIZE (FRAME_HEADER_SIZE+FRAME_MAX_SAMPLES*sizeof(int16_t))
+
+// Frames are sent through the acknowledged pipe (indications), or through the 
+// unacknowledged pipe (notifications) if the client subscribed to notifications. 
+// Without acknowledgements, the number of frames per connection interval is only 
+// limited by the data credits of the nRF8001 (bulk mode). The client detects lost 
+// frames by the frame number and requests missing samples as range.
+boolean is_framed_history_due = false;
+uint8_t framed_history = HISTORY_MINUTELY;
+uint8_t framed_history_pipe = PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK;
+uint32_t framed_history_from_seqno = 0;
+uint32_t framed_history_start_seqno = 0;
+uint32_t framed_history_send_seqno = 0;
+uint16_t framed_history_sample_cnt = 0;
+uint8_t framed_history_frame_no = 0;
+#endif
+
 byte adcsra_save = ADCSRA;
 
 /**
@@ -444,6 +499,190 @@ void setup()
     start_watchdog();
 }
 
+#ifdef PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK
+/**
+ * Get the head of a history ring buffer.
+ * 
+ * @param history the history selector
+ *
+ * @returns the next sequence number to be written
+ */
+uint32_t get_history_head(uint8_t history)
+{
+    switch (history) {
+    case HISTORY_HOURLY:
+        return hourly_history_head;
+    case HISTORY_DAILY:
+        return daily_history_head;
+    default:
+        return minutely_history_head;
+    }
+}
+
+/**
+ * Get the age of a sample of a history. The age of the newest sample is the 
+ * time elapsed since the history has been updated last, i.e., the current 
+ * phase of the minute, hour, or day.
+ * 
+ * @param history the history selector
+ * @param seqno sequence number of the sample
+ *
+ * @returns the age in seconds
+ */
+uint32_t get_history_age(uint8_t history, uint32_t seqno)
+{
+    uint32_t age = (uint32_t) minute_timeout*SAMPLE_TIMEOUT_THRESHOLD + 
+                   sample_timeout;
+    uint32_t interval = 60;
+    if (history != HISTORY_MINUTELY) {
+        age += (uint32_t) hour_timeout*60;
+        interval = 60UL*60;
+    }
+    if (history == HISTORY_DAILY) {
+        age += (uint32_t) day_timeout*60*60;
+        interval = 24UL*60*60;
+    }
+    uint32_t last_seqno = get_history_head(history)-1;
+    
+    return age + (last_seqno-seqno)*interval;
+}
+
+/**
+ * Get a history ring buffer.
+ * 
+ * @param history the history selector
+ *
+ * @returns the ring buffer
+ */
+int16_t *get_history_ring(uint8_t history)
+{
+    switch (history) {
+    case HISTORY_HOURLY:
+        return hourly_history_ring;
+    case HISTORY_DAILY:
+        return daily_history_ring;
+    default:
+        return minutely_history_ring;
+    }
+}
+
+/**
+ * Handle a write to the history control point.
+ * 
+ * @param data the value written by the client
+ * @param len length of the value
+ */
+void handle_history_control_point(uint8_t *data, uint8_t len)
+{
+    if (len < 2 || data[1] > HISTORY_DAILY)
+        return;
+
+    // Frames can only be sent to a subscribed client. Prefer notifications.
+    #ifdef PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX
+    if (lib_aci_is_pipe_available(&aci_state, 
+                                  PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX)) {
+        framed_history_pipe = PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX;
+    } else
+    #endif
+    if (lib_aci_is_pipe_available(&aci_state, 
+                                  PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK)) {
+        framed_history_pipe = PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK;
+    } else {
+        return;
+    }
+
+    uint8_t history = data[1];
+    // The last sample written is at position head-1.
+    uint32_t last_seqno = get_history_head(history)-1;
+    switch (data[0]) {
+    case HISTORY_CP_OPCODE_START:
+        framed_history_from_seqno = 0;
+        framed_history_start_seqno = last_seqno;
+        break;
+    case HISTORY_CP_OPCODE_RANGE:
+        if (len < 10)
+            return;
+        // Data is sent in Little Endian order. ATmega is LE.
+        memcpy(&framed_history_from_seqno, &data[2], sizeof(uint32_t));
+        memcpy(&framed_history_start_seqno, &data[6], sizeof(uint32_t));
+        // Cannot send samples that have not been taken yet.
+        if (framed_history_start_seqno > last_seqno)
+            framed_history_start_seqno = last_seqno;
+        break;
+    default:
+        return;
+    }
+
+    // Start from the newest requested sample and proceed backwards. A transfer 
+    // in progress is restarted.
+    framed_history = history;
+    framed_history_send_seqno = framed_history_start_seqno;
+    framed_history_sample_cnt = 0;
+    framed_history_frame_no = 0;
+    is_framed_history_due = true;
+    send_pending_data();
+}
+
+/**
+ * Send the next frame of the framed history transfer. 
+ */
+void send_history_frame()
+{
+    uint8_t frame[FRAME_MAX_SIZE];
+    uint8_t len;
+    uint8_t cnt = 0;
+    uint32_t head = get_history_head(framed_history);
+    int16_t *ring = get_history_ring(framed_history);
+
+    // Same stopping conditions as for the per-sample histories (see 
+    // send_pending_data()). Additionally, stop at the first requested sample.
+    // The first frame of a transfer is the start frame carrying no samples.
+    boolean is_start = (framed_history_frame_no == 0 && framed_history_sample_cnt == 0);
+    while (!is_start && cnt < FRAME_MAX_SAMPLES && 
+           head < framed_history_send_seqno+HISTORY_RING_SIZE && 
+           framed_history_send_seqno != MAX_SEQ_NO &&
+           framed_history_send_seqno >= framed_history_from_seqno) {
+        int16_t data = ring[framed_history_send_seqno&HISTORY_RING_SIZE_MODMASK];
+        // Data is expected in Little Endian order. ATmega is LE.
+        memcpy(&frame[FRAME_HEADER_SIZE+cnt*sizeof(int16_t)], &data, sizeof(int16_t));
+        cnt++;
+        // One step backwards in history.
+        framed_history_send_seqno--;
+    }
+
+    if (is_start) {
+        // Send start frame, so the client knows the sequence number of every sample.
+        frame[0] = FRAME_TYPE_START | (framed_history<<4);
+        memcpy(&frame[FRAME_HEADER_SIZE], &framed_history_start_seqno, 
+               sizeof(uint32_t));
+        uint32_t age = get_history_age(framed_history, framed_history_start_seqno);
+        memcpy(&frame[FRAME_HEADER_SIZE+sizeof(uint32_t)], &age, sizeof(uint32_t));
+        len = FRAME_HEADER_SIZE + 2*sizeof(uint32_t);
+    } else if (cnt > 0) {
+        frame[0] = FRAME_TYPE_DATA | (framed_history<<4) | cnt;
+        len = FRAME_HEADER_SIZE + cnt*sizeof(int16_t);
+        framed_history_sample_cnt += cnt;
+    } else {
+        // Already sent all data. Send end frame.
+        frame[0] = FRAME_TYPE_END | (framed_history<<4);
+        memcpy(&frame[FRAME_HEADER_SIZE], &framed_history_start_seqno, 
+               sizeof(uint32_t));
+        memcpy(&frame[FRAME_HEADER_SIZE+sizeof(uint32_t)], &framed_history_sample_cnt, 
+               sizeof(uint16_t));
+        len = FRAME_HEADER_SIZE + sizeof(uint32_t) + sizeof(uint16_t);
+        is_framed_history_due = false;
+    }
+    frame[1] = framed_history_frame_no;
+    framed_history_frame_no++;
+
+    lib_aci_send_data(framed_history_pipe, frame, len);
+    aci_state.data_credit_available--;
+    if (framed_history_pipe == PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK)
+        aci_state.confirmation_pending = true;
+    credit_timeout = 0;
+}
+#endif
+
 /**
  * Send pending data.
  * 
@@ -574,6 +813,17 @@ void send_pending_data()
             daily_history_send_seqno--;
         }
     }    
+
+    #ifdef PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK
+    if (aci_state.data_credit_available == 0 || aci_state.confirmation_pending)
+        return;
+
+    // Notifications do not need to wait for acknowledgements. Send as many
+    // frames as there are data credits.
+    while (is_framed_history_due && aci_state.data_credit_available > 0 && 
+           !aci_state.confirmation_pending)
+        send_history_frame();
+    #endif
 }
 
 /**
@@ -689,6 +939,26 @@ void aci_loop()
                 is_pipe_open_daily_history = false;
                 is_daily_history_due = false;
             }
+            #ifdef PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK
+            if (!lib_aci_is_pipe_available(&aci_state, framed_history_pipe)) {
+                // Client unsubscribed. Stop the framed transfer.
+                is_framed_history_due = false;
+            }
+            #endif
+            break;
+        case ACI_EVT_DATA_RECEIVED:
+            // Client wrote a characteristic.
+            #ifdef DEBUG
+            Serial.println("DATA RECEIVED");
+            #endif
+            #ifdef PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_CONTROL_POINT_RX_ACK_AUTO
+            if (aci_evt->params.data_received.rx_data.pipe_number == 
+                PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_CONTROL_POINT_RX_ACK_AUTO) {
+                // Event length includes opcode and pipe number.
+                handle_history_control_point(aci_evt->params.data_received.rx_data.aci_data,
+                                             aci_evt->len-2);
+            }
+            #endif
             break;
         case ACI_EVT_TIMING:
             // Timing of connection changed.
@@ -707,6 +977,9 @@ void aci_loop()
             is_pipe_open_minutely_history = false;
             is_pipe_open_hourly_history = false;
             is_pipe_open_daily_history = false;
+            #ifdef PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK
+            is_framed_history_due = false;
+            #endif
             // Request to change to the preferred link timing as set in 
             // nRFgo Studio application.
             cmd_queue_enqueue(cmd_change_timing);
@@ -740,6 +1013,9 @@ void aci_loop()
                 case PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_MINUTELY_TX_ACK:
                 case PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_HOURLY_TX_ACK:
                 case PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DAILY_TX_ACK:
+                #ifdef PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK
+                case PIPE_BLE_V_MONITOR_BATTERY_VOLTAGE_HISTORY_DATA_TX_ACK:
+                #endif
                     aci_state.confirmation_pending = false;
                     break;
                 }